@@ -0,0 +1,182 @@
+/*
+ * Almacen_Blobs.java
+ * Almacén en disco de los archivos compartidos, direccionado por contenido.
+ * Cada archivo se guarda una sola vez con su SHA-256 como nombre, así que el
+ * mismo archivo enviado a varios chats ocupa disco una vez. Los miembros lo
+ * reciben leyendo del disco con FileChannel.transferTo (ver Region_Archivo).
+ * Directorio configurable con -Dchat.blobs (por defecto datos/blobs).
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+public class Almacen_Blobs {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path dir;
+	private final Path tmp;
+
+	public Almacen_Blobs(Path dir) throws IOException {
+		this.dir = dir;
+		this.tmp = dir.resolve("tmp");
+		Files.createDirectories(tmp);
+	}
+
+	public static Almacen_Blobs desdePropiedades() {
+		String prop = System.getProperty("chat.blobs");
+		Path dir = prop != null ? Paths.get(prop) : Paths.get("datos", "blobs");
+		try {
+			return new Almacen_Blobs(dir);
+		} catch (IOException e) {
+			throw new IllegalStateException("No se pudo crear el almacén de archivos en " + dir, e);
+		}
+	}
+
+	// Archivo ya guardado
+	public static final class Blob {
+		private final String hash;
+		private final long tamano;
+		private final Path ruta;
+
+		Blob(String hash, long tamano, Path ruta) {
+			this.hash = hash;
+			this.tamano = tamano;
+			this.ruta = ruta;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public long getTamano() {
+			return tamano;
+		}
+
+		public Path getRuta() {
+			return ruta;
+		}
+	}
+
+	// Escritura en curso: se guarda en tmp/ calculando el hash y al confirmar
+	// se mueve a su nombre definitivo (o se borra si el contenido ya existía)
+	public final class Escritura {
+		private final Path temporal;
+		private final FileChannel fc;
+		private final MessageDigest sha;
+		private long tamano;
+
+		private Escritura() throws IOException {
+			this.temporal = Files.createTempFile(tmp, "subida-", ".part");
+			this.fc = FileChannel.open(temporal, StandardOpenOption.WRITE);
+			this.sha = sha256();
+		}
+
+		public void escribir(ByteBuffer datos) throws IOException {
+			sha.update(datos.duplicate());
+			while (datos.hasRemaining()) {
+				tamano += fc.write(datos);
+			}
+		}
+
+		public Blob confirmar() throws IOException {
+			fc.close();
+			String hash = hex(sha.digest());
+			Path destino = ruta(hash);
+			if (Files.exists(destino)) {
+				Files.deleteIfExists(temporal); // contenido repetido
+			} else {
+				try {
+					Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+				} catch (FileAlreadyExistsException e) {
+					Files.deleteIfExists(temporal); // otro hilo lo guardó a la vez
+				}
+			}
+			return new Blob(hash, tamano, destino);
+		}
+
+		public void cancelar() {
+			try {
+				fc.close();
+				Files.deleteIfExists(temporal);
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	public Escritura nuevaEscritura() throws IOException {
+		return new Escritura();
+	}
+
+	public Blob guardar(byte[] datos) throws IOException {
+		Escritura e = nuevaEscritura();
+		try {
+			e.escribir(ByteBuffer.wrap(datos));
+			return e.confirmar();
+		} catch (IOException ex) {
+			e.cancelar();
+			throw ex;
+		}
+	}
+
+	public Blob buscar(String hash) {
+		if (hash == null || !hash.matches("[0-9a-f]{64}")) return null;
+		Path p = ruta(hash);
+		try {
+			return Files.exists(p) ? new Blob(hash, Files.size(p), p) : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Copia en Base64 del blob (para clientes del formato FILE_INCOMING).
+	// Se genera una sola vez por contenido y luego se sirve con transferTo.
+	public Path rutaBase64(Blob blob) throws IOException {
+		Path b64 = dir.resolve(blob.getHash() + ".b64");
+		if (Files.exists(b64)) return b64;
+		Path temporal = Files.createTempFile(tmp, "b64-", ".part");
+		try (FileChannel in = FileChannel.open(blob.getRuta(), StandardOpenOption.READ);
+				OutputStream out = Base64.getEncoder().wrap(Files.newOutputStream(temporal))) {
+			in.transferTo(0, in.size(), Channels.newChannel(out));
+		}
+		try {
+			Files.move(temporal, b64, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			Files.deleteIfExists(temporal);
+		}
+		return b64;
+	}
+
+	private Path ruta(String hash) {
+		return dir.resolve(hash);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] b) {
+		char[] c = new char[b.length * 2];
+		for (int i = 0; i < b.length; i++) {
+			c[2 * i] = HEX[(b[i] >> 4) & 0xF];
+			c[2 * i + 1] = HEX[b[i] & 0xF];
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Bitacora_B.java
+ * Registro de eventos del servidor fuera de los reactores.
+ *
+ * Quien registra sólo deja el evento en un anillo sin locks (cola acotada de
+ * varios productores con secuencia por ranura) y sigue; un hilo aparte lo
+ * vacía por lotes en un archivo que rota por tamaño (-Dchat.log, por
+ * defecto datos/log/servidor.log). Registrar nunca bloquea ni hace E/S:
+ *   - los textos largos (líneas /file en Base64, por ejemplo) se recortan a
+ *     -Dchat.logMaxTexto caracteres con un resumen del tamaño original;
+ *   - con el anillo a más de la mitad, el tráfico (linea) se muestrea: sólo
+ *     se guarda uno de cada MUESTREO;
+ *   - con el anillo lleno, el evento se descarta.
+ * Lo omitido se cuenta y se anota en el archivo, y aparece en /metricas.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Bitacora_B {
+
+	private static final File ARCHIVO = new File(System.getProperty("chat.log", "datos/log/servidor.log"));
+	private static final long TAMANO_ARCHIVO = Long.getLong("chat.logTamano", 16L * 1024 * 1024);
+	private static final int ARCHIVOS = Math.max(1, Integer.getInteger("chat.logArchivos", 5));
+	private static final int MAX_TEXTO = Math.max(16, Integer.getInteger("chat.logMaxTexto", 256));
+	// Además del archivo, copiar cada evento a la salida estándar
+	private static final boolean CONSOLA = Boolean.getBoolean("chat.logConsola");
+	// Capacidad del anillo (se redondea a potencia de 2)
+	private static final int CAPACIDAD = Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.logEventos", 16 * 1024) - 1) << 1);
+	private static final int MASCARA = CAPACIDAD - 1;
+	private static final int MUESTREO = 16;
+	// Eventos que el escritor saca del anillo antes de vaciar el archivo
+	private static final int LOTE = 1024;
+
+	// Ranura del anillo: la llena quien la reservó y la lee el escritor
+	private static final class Ranura {
+		long instante;
+		String origen;
+		String texto;
+	}
+
+	private static final Ranura[] ranuras = new Ranura[CAPACIDAD];
+	// Por ranura: p si está libre para el productor de la posición p,
+	// p + 1 si ya tiene el evento de la posición p
+	private static final AtomicLongArray secuencias = new AtomicLongArray(CAPACIDAD);
+	private static final AtomicLong cola = new AtomicLong();
+	// Próxima posición a leer (sólo la mueve el escritor)
+	private static final AtomicLong cabeza = new AtomicLong();
+
+	private static final LongAdder escritos = new LongAdder();
+	private static final LongAdder muestreados = new LongAdder();
+	private static final LongAdder descartados = new LongAdder();
+
+	private static volatile Thread escritor;
+	private static volatile boolean cerrando;
+
+	static {
+		for (int i = 0; i < CAPACIDAD; i++) {
+			ranuras[i] = new Ranura();
+			secuencias.set(i, i);
+		}
+	}
+
+	private Bitacora_B() {
+	}
+
+	// Arranca el hilo escritor (y lo vacía todo al terminar el proceso)
+	public static synchronized void iniciar() {
+		if (escritor != null) return;
+		Thread t = new Thread(Bitacora_B::escribir, "bitacora");
+		t.setDaemon(true);
+		escritor = t;
+		t.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			cerrando = true;
+			LockSupport.unpark(t);
+			try {
+				t.join(2000);
+			} catch (InterruptedException ignore) {
+			}
+		}, "bitacora-cierre"));
+	}
+
+	// Tráfico de una conexión (líneas y tramas recibidas): se muestrea bajo ráfagas
+	public static void linea(String origen, String texto) {
+		long ocupado = cola.get() - cabeza.get();
+		if (ocupado > CAPACIDAD / 2 && ThreadLocalRandom.current().nextInt(MUESTREO) != 0) {
+			muestreados.increment();
+			return;
+		}
+		publicar(origen, texto);
+	}
+
+	// Eventos del servidor (conexiones, clientes lentos, errores): sólo se
+	// pierden si el anillo está lleno
+	public static void evento(String origen, String texto) {
+		publicar(origen, texto);
+	}
+
+	public static void evento(String texto) {
+		publicar(null, texto);
+	}
+
+	public static long getEscritos() {
+		return escritos.sum();
+	}
+
+	public static long getMuestreados() {
+		return muestreados.sum();
+	}
+
+	public static long getDescartados() {
+		return descartados.sum();
+	}
+
+	public static long getPendientes() {
+		return cola.get() - cabeza.get();
+	}
+
+	private static void publicar(String origen, String texto) {
+		long pos = cola.get();
+		while (true) {
+			int i = (int) (pos & MASCARA);
+			long dif = secuencias.get(i) - pos;
+			if (dif == 0) {
+				if (cola.compareAndSet(pos, pos + 1)) break;
+				pos = cola.get();
+			} else if (dif < 0) {
+				// lleno: no se espera al escritor
+				descartados.increment();
+				return;
+			} else {
+				pos = cola.get();
+			}
+		}
+		int i = (int) (pos & MASCARA);
+		Ranura r = ranuras[i];
+		r.instante = System.currentTimeMillis();
+		r.origen = origen;
+		r.texto = recortar(texto);
+		secuencias.lazySet(i, pos + 1);
+	}
+
+	// Recorta antes de guardar: el anillo no retiene líneas de megabytes
+	private static String recortar(String texto) {
+		if (texto.length() <= MAX_TEXTO) return texto;
+		return texto.substring(0, MAX_TEXTO) + "... (" + texto.length() + " caracteres)";
+	}
+
+	// Hilo escritor: saca lotes del anillo y los escribe; si no hay nada, duerme un poco
+	private static void escribir() {
+		SimpleDateFormat formato = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date fecha = new Date();
+		StringBuilder sb = new StringBuilder(256);
+		Writer salida = null;
+		long tamano = 0;
+		long omitidosAnotados = 0;
+		while (true) {
+			boolean fin = cerrando;
+			int n = 0;
+			try {
+				if (salida == null) {
+					salida = abrir();
+					tamano = ARCHIVO.length();
+				}
+				long pos = cabeza.get();
+				while (n < LOTE) {
+					int i = (int) (pos & MASCARA);
+					if (secuencias.get(i) != pos + 1) break;
+					Ranura r = ranuras[i];
+					fecha.setTime(r.instante);
+					sb.setLength(0);
+					sb.append(formato.format(fecha)).append(' ');
+					if (r.origen != null) sb.append('[').append(r.origen).append("] ");
+					sb.append(r.texto).append('\n');
+					r.origen = null;
+					r.texto = null;
+					pos++;
+					secuencias.lazySet(i, pos - 1 + CAPACIDAD);
+					cabeza.lazySet(pos);
+					n++;
+					salida.write(sb.toString());
+					tamano += sb.length();
+					if (CONSOLA) System.out.print(sb);
+				}
+				long omitidos = muestreados.sum() + descartados.sum();
+				if (n == 0 && omitidos != omitidosAnotados) {
+					String aviso = formato.format(new Date()) + " [bitacora] " + (omitidos - omitidosAnotados)
+							+ " eventos omitidos por ráfagas (muestreados o con el anillo lleno)\n";
+					salida.write(aviso);
+					tamano += aviso.length();
+					omitidosAnotados = omitidos;
+				}
+				if (n > 0 || fin) salida.flush();
+				escritos.add(n);
+				if (tamano >= TAMANO_ARCHIVO) {
+					salida.close();
+					salida = null;
+					rotar();
+				}
+			} catch (IOException e) {
+				System.err.println("Error escribiendo la bitácora " + ARCHIVO + ": " + e.getMessage());
+				if (salida != null) {
+					try {
+						salida.close();
+					} catch (IOException ignore) {
+					}
+					salida = null;
+				}
+				LockSupport.parkNanos(1_000_000_000L);
+				continue;
+			}
+			if (fin && n == 0) {
+				try {
+					salida.close();
+				} catch (IOException ignore) {
+				}
+				return;
+			}
+			if (n < LOTE) LockSupport.parkNanos(5_000_000L);
+		}
+	}
+
+	private static Writer abrir() throws IOException {
+		File dir = ARCHIVO.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("no se pudo crear " + dir);
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ARCHIVO, true), StandardCharsets.UTF_8), 64 * 1024);
+	}
+
+	// servidor.log -> servidor.log.1 -> ... -> servidor.log.ARCHIVOS (se borra el último)
+	private static void rotar() {
+		File ultimo = new File(ARCHIVO.getPath() + "." + ARCHIVOS);
+		if (ultimo.exists() && !ultimo.delete()) return;
+		for (int i = ARCHIVOS - 1; i >= 1; i--) {
+			File f = new File(ARCHIVO.getPath() + "." + i);
+			if (f.exists() && !f.renameTo(new File(ARCHIVO.getPath() + "." + (i + 1)))) return;
+		}
+		if (!ARCHIVO.renameTo(new File(ARCHIVO.getPath() + ".1"))) {
+			System.err.println("No se pudo rotar la bitácora " + ARCHIVO);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Buzon_Privado.java
+ * Mensajes privados (/priv) pendientes para un usuario desconectado.
+ *
+ * Cada buzón funciona como un actor sobre el Pool_Trabajo (igual que
+ * Chat_Grupal): guardar y entregar se procesan en orden, así un mensaje que
+ * llega mientras el usuario se reconecta no se pierde ni se entrega dos veces.
+ * Los primeros mensajes quedan en memoria (-Dchat.privadosMemoria, por
+ * defecto 100); los siguientes se escriben en disco en <id>.spool dentro de
+ * -Dchat.privados (por defecto datos/privados). Cada usuario tiene como
+ * máximo -Dchat.privadosMaximo mensajes pendientes (por defecto 1000).
+ *
+ * Sólo se entrega a conexiones autenticadas para el usuario (ver
+ * Claves_Usuarios).
+ *
+ * En modo cluster, si el usuario se conecta en otro nodo, lo pendiente se le
+ * reenvía allí (ver Cluster_B).
+ *
+ * El disco sólo sirve de desborde: los archivos que queden de una ejecución
+ * anterior se borran al arrancar (los ids de usuario no se conservan).
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+public class Buzon_Privado {
+
+	private static final int MAX_MEMORIA = Integer.getInteger("chat.privadosMemoria", 100);
+	private static final int MAX_PENDIENTES = Integer.getInteger("chat.privadosMaximo", 1000);
+	private static final Path DIR = Paths.get(System.getProperty("chat.privados", "datos/privados"));
+
+	// Buzones por id de usuario
+	private static final ConcurrentHashMap<Integer, Buzon_Privado> buzones = new ConcurrentHashMap<>();
+
+	static {
+		try {
+			Files.createDirectories(DIR);
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(DIR, "*.spool")) {
+				for (Path p : ds) Files.deleteIfExists(p);
+			}
+		} catch (IOException e) {
+			Bitacora_B.evento("No se pudo preparar el directorio de mensajes privados " + DIR + ": " + e.getMessage());
+		}
+	}
+
+	private final int idUsuario;
+	// Mensajes aceptados (en memoria, en disco o aún en el buzón de tareas);
+	// se controla al aceptar para poder responder "lleno" sin esperar al actor
+	private final AtomicInteger total = new AtomicInteger();
+
+	// Actor: tareas pendientes y marca de "ya programado en el pool"
+	private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean programado = new AtomicBoolean(false);
+
+	// Estado del actor (sólo lo tocan sus tareas)
+	private final ArrayDeque<String> memoria = new ArrayDeque<>();
+	private final Path archivo;
+	private FileChannel disco;
+	private int enDisco;
+
+	private Buzon_Privado(int idUsuario) {
+		this.idUsuario = idUsuario;
+		this.archivo = DIR.resolve(idUsuario + ".spool");
+	}
+
+	// Acepta un mensaje (ya formateado, sin \n) para un usuario desconectado.
+	// Devuelve false si su buzón está lleno. No toca el disco: seguro en el reactor.
+	public static boolean guardar(int idUsuario, String mensaje) {
+		Buzon_Privado b = buzones.computeIfAbsent(idUsuario, Buzon_Privado::new);
+		if (b.total.incrementAndGet() > MAX_PENDIENTES) {
+			b.total.decrementAndGet();
+			return false;
+		}
+		b.ejecutar(() -> b.agregar(mensaje));
+		return true;
+	}
+
+	// Envía a la conexión todo lo pendiente, en una sola escritura.
+	// Si la conexión ya se cerró cuando le toca al actor, o no está
+	// autenticada, los mensajes se quedan.
+	public static void entregar(int idUsuario, Conexion destino) {
+		Buzon_Privado b = buzones.get(idUsuario);
+		if (b == null || destino == null || !destino.isAutenticada()) return;
+		b.ejecutar(() -> b.vaciarEn(destino));
+	}
+
+	// Pasa lo pendiente a otro nodo del cluster, donde se conectó el usuario
+	// (ver Cluster_B). Si envio devuelve false, los mensajes se quedan aquí.
+	public static void reenviar(int idUsuario, Predicate<List<String>> envio) {
+		Buzon_Privado b = buzones.get(idUsuario);
+		if (b == null) return;
+		b.ejecutar(() -> b.vaciar(envio));
+	}
+
+	// El usuario ya no existe: lo pendiente se tira (memoria y disco)
+	public static void descartar(int idUsuario) {
+		Buzon_Privado b = buzones.remove(idUsuario);
+		if (b != null) b.ejecutar(b::borrar);
+	}
+
+	public static int pendientes(int idUsuario) {
+		Buzon_Privado b = buzones.get(idUsuario);
+		return b == null ? 0 : b.total.get();
+	}
+
+	private void ejecutar(Runnable tarea) {
+		tareas.add(tarea);
+		programar();
+	}
+
+	private void programar() {
+		if (programado.compareAndSet(false, true)) {
+			Pool_Trabajo.ejecutar(this::procesar);
+		}
+	}
+
+	private void procesar() {
+		try {
+			Runnable t;
+			while ((t = tareas.poll()) != null) {
+				try {
+					t.run();
+				} catch (RuntimeException e) {
+					Bitacora_B.evento("Error en buzón privado de " + idUsuario + ": " + e);
+				}
+			}
+		} finally {
+			programado.set(false);
+			if (!tareas.isEmpty()) programar();
+		}
+	}
+
+	// Actor: a memoria mientras quepa y no haya nada en disco (para mantener el orden)
+	private void agregar(String mensaje) {
+		if (enDisco == 0 && memoria.size() < MAX_MEMORIA) {
+			memoria.add(mensaje);
+			return;
+		}
+		byte[] datos = mensaje.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(4 + datos.length);
+		buf.putInt(datos.length).put(datos).flip();
+		try {
+			if (disco == null) {
+				disco = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			}
+			while (buf.hasRemaining()) disco.write(buf);
+			enDisco++;
+		} catch (IOException e) {
+			Bitacora_B.evento("Error guardando mensaje privado para " + idUsuario + ": " + e.getMessage());
+			total.decrementAndGet();
+		}
+	}
+
+	// Actor: ver descartar
+	private void borrar() {
+		memoria.clear();
+		try {
+			if (disco != null) disco.close();
+			Files.deleteIfExists(archivo);
+		} catch (IOException ignore) {
+		}
+		disco = null;
+		enDisco = 0;
+		total.set(0);
+	}
+
+	// Actor: todo lo pendiente en un solo envío de texto
+	private void vaciarEn(Conexion destino) {
+		if (!destino.isAbierta() || !destino.isAutenticada()) return;
+		vaciar(mensajes -> {
+			destino.enviarTexto(bloque(mensajes));
+			return true;
+		});
+	}
+
+	// Actor: memoria primero, luego lo del disco. Si el envío no acepta los
+	// mensajes, se quedan en el buzón.
+	private void vaciar(Predicate<List<String>> envio) {
+		int n = memoria.size() + enDisco;
+		if (n == 0) return;
+		List<String> mensajes = new ArrayList<>(memoria);
+		if (enDisco > 0) {
+			try {
+				disco.close();
+				disco = null;
+				ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(archivo));
+				while (b.remaining() >= 4) {
+					byte[] datos = new byte[b.getInt()];
+					b.get(datos);
+					mensajes.add(new String(datos, StandardCharsets.UTF_8));
+				}
+			} catch (IOException e) {
+				// se reintenta en la próxima conexión
+				Bitacora_B.evento("Error leyendo mensajes privados de " + idUsuario + ": " + e.getMessage());
+				return;
+			}
+		}
+		if (!envio.test(mensajes)) return;
+		memoria.clear();
+		if (enDisco > 0) {
+			try {
+				Files.deleteIfExists(archivo);
+			} catch (IOException ignore) {
+			}
+			enDisco = 0;
+		}
+		total.addAndGet(-n);
+	}
+
+	// El aviso con los mensajes pendientes, tal como lo recibe el usuario
+	public static String bloque(List<String> mensajes) {
+		StringBuilder out = new StringBuilder();
+		out.append("--- ").append(mensajes.size()).append(" mensajes privados recibidos mientras estabas desconectado ---\n");
+		for (String m : mensajes) out.append(m).append('\n');
+		out.append("--- Fin de mensajes privados ---\n");
+		return out.toString();
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Carga_B.java
+ * Generador de carga para Servidor_B: abre miles de sesiones NIO desde un
+ * solo proceso, cada una sigue el protocolo del menú (crea o entra a una
+ * sala y luego manda mensajes de grupo, /priv y /file al ritmo pedido).
+ *
+ * Cada mensaje lleva "LT <nanoTime>" y quien lo recibe mide la latencia de
+ * extremo a extremo (emisor y receptores están en este mismo proceso, así
+ * que comparten reloj). Cada segundo muestra el ritmo y la latencia de ese
+ * segundo; al final, el total con p50/p99/p999.
+ *
+ * Uso: java [-Dcarga.opcion=valor ...] Carga_B
+ *   carga.host / carga.puerto       servidor (localhost:5000)
+ *   carga.sesiones                  sesiones simultáneas (1000)
+ *   carga.salas                     salas entre las que se reparten (10)
+ *   carga.ritmo                     mensajes por segundo de cada sesión (1)
+ *   carga.grupo / carga.priv / carga.file
+ *                                   mezcla en % (90 / 9 / 1)
+ *   carga.tamanoMensaje             bytes de texto por mensaje (64)
+ *   carga.tamanoArchivo             bytes de cada /file antes de Base64 (2048)
+ *   carga.duracion                  segundos de medición (30)
+ *   carga.conexionesPorSegundo      ritmo de apertura de sesiones (500)
+ *   carga.hilos                     selectores del generador (núcleos / 2)
+ *   carga.compresion                negociar compresión ZLIB (false); los
+ *                                   bytes recibidos son los comprimidos
+ * Con miles de sesiones hay que subir el límite de archivos abiertos
+ * (ulimit -n) tanto aquí como en el servidor.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+public class Carga_B {
+
+	private static final String HOST = System.getProperty("carga.host", "localhost");
+	private static final int PUERTO = Integer.getInteger("carga.puerto", 5000);
+	private static final int SESIONES = Integer.getInteger("carga.sesiones", 1000);
+	private static final int SALAS = Math.max(1, Integer.getInteger("carga.salas", 10));
+	private static final double RITMO = Double.parseDouble(System.getProperty("carga.ritmo", "1"));
+	private static final int P_GRUPO = Integer.getInteger("carga.grupo", 90);
+	private static final int P_PRIV = Integer.getInteger("carga.priv", 9);
+	private static final int P_FILE = Integer.getInteger("carga.file", 1);
+	private static final int TAMANO_MENSAJE = Integer.getInteger("carga.tamanoMensaje", 64);
+	private static final int TAMANO_ARCHIVO = Integer.getInteger("carga.tamanoArchivo", 2048);
+	// Negociar compresión (ZLIB) en cada sesión
+	private static final boolean COMPRESION = Boolean.getBoolean("carga.compresion");
+	private static final int DURACION = Integer.getInteger("carga.duracion", 30);
+	private static final int CONEXIONES_POR_SEGUNDO = Math.max(1, Integer.getInteger("carga.conexionesPorSegundo", 500));
+	private static final int HILOS = Math.max(1,
+			Integer.getInteger("carga.hilos", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+
+	private static final String MARCA = "LT ";
+	private static final long INTERVALO_NS = (long) (1e9 / RITMO);
+
+	// Contadores globales
+	private static final LongAdder enviados = new LongAdder();
+	private static final LongAdder recibidos = new LongAdder();
+	private static final LongAdder bytesEnviados = new LongAdder();
+	private static final LongAdder bytesRecibidos = new LongAdder();
+	private static final AtomicInteger listas = new AtomicInteger();
+	private static final AtomicInteger fallidas = new AtomicInteger();
+	// Latencia de extremo a extremo (us): total y la del último segundo
+	private static final Histograma latenciaTotal = new Histograma("latencia", "us");
+	private static volatile Histograma latenciaSegundo = new Histograma("latencia", "us");
+	// Las sesiones sólo mandan mensajes cuando ya entraron todas (o pasaron 30 s),
+	// así la entrada a las salas no se mezcla con la medición
+	private static volatile boolean midiendo;
+
+	private static Sesion[] sesiones;
+	private static String relleno;
+	private static String archivoBase64;
+
+	public static void main(String[] args) throws Exception {
+		char[] r = new char[TAMANO_MENSAJE];
+		Arrays.fill(r, 'x');
+		relleno = new String(r);
+		byte[] archivo = new byte[TAMANO_ARCHIVO];
+		ThreadLocalRandom.current().nextBytes(archivo);
+		archivoBase64 = Base64.getEncoder().encodeToString(archivo);
+
+		System.out.println(String.format(Locale.ROOT,
+				"Carga: %d sesiones en %d salas contra %s:%d, %.2f msg/s por sesión (grupo %d%%, priv %d%%, file %d%%), %d hilos",
+				SESIONES, SALAS, HOST, PUERTO, RITMO, P_GRUPO, P_PRIV, P_FILE, HILOS));
+
+		Selectora[] hilos = new Selectora[HILOS];
+		for (int i = 0; i < HILOS; i++) {
+			hilos[i] = new Selectora(i);
+			hilos[i].start();
+		}
+		sesiones = new Sesion[SESIONES];
+		for (int i = 0; i < SESIONES; i++) sesiones[i] = new Sesion(i, hilos[i % HILOS]);
+
+		// Abrir sesiones de a poco para no desbordar el backlog del servidor
+		long inicio = System.nanoTime();
+		long lote = Math.max(1, CONEXIONES_POR_SEGUNDO / 10);
+		for (int i = 0; i < SESIONES; i++) {
+			sesiones[i].hilo.conectar(sesiones[i]);
+			if ((i + 1) % lote == 0) Thread.sleep(100);
+		}
+		// esperar a que todas estén en su sala (como mucho 30 s)
+		long limite = System.nanoTime() + 30_000_000_000L;
+		while (listas.get() + fallidas.get() < SESIONES && System.nanoTime() < limite) {
+			Thread.sleep(200);
+		}
+		System.out.println(String.format(Locale.ROOT, "%d sesiones listas, %d fallidas, en %.1f s", listas.get(),
+				fallidas.get(), (System.nanoTime() - inicio) / 1e9));
+
+		midiendo = true;
+		for (Selectora h : hilos) h.selector.wakeup();
+		long e0 = enviados.sum(), r0 = recibidos.sum(), be0 = bytesEnviados.sum(), br0 = bytesRecibidos.sum();
+		long t0 = System.nanoTime();
+		long ePrev = e0, rPrev = r0;
+		for (int s = 1; s <= DURACION; s++) {
+			Thread.sleep(1000);
+			Histograma h = latenciaSegundo;
+			latenciaSegundo = new Histograma("latencia", "us");
+			long e = enviados.sum(), rr = recibidos.sum();
+			System.out.println(String.format(Locale.ROOT, "[%3ds] enviados %7d/s  recibidos %8d/s  p50 %6d us  p99 %7d us  p999 %7d us",
+					s, e - ePrev, rr - rPrev, h.percentil(50), h.percentil(99), h.percentil(99.9)));
+			ePrev = e;
+			rPrev = rr;
+		}
+		midiendo = false;
+		double seg = (System.nanoTime() - t0) / 1e9;
+		long e = enviados.sum() - e0, rr = recibidos.sum() - r0;
+		System.out.println("--- Resumen ---");
+		System.out.println(String.format(Locale.ROOT, "duración %.1f s, sesiones %d (fallidas %d)", seg, listas.get(),
+				fallidas.get()));
+		System.out.println(String.format(Locale.ROOT, "enviados %d (%.0f/s, %.1f MB/s), recibidos %d (%.0f/s, %.1f MB/s)", e,
+				e / seg, (bytesEnviados.sum() - be0) / seg / 1e6, rr, rr / seg, (bytesRecibidos.sum() - br0) / seg / 1e6));
+		System.out.println("latencia extremo a extremo: " + latenciaTotal.resumen());
+		System.exit(0);
+	}
+
+	private static void registrarLatencia(long enviadoNs) {
+		if (!midiendo) return;
+		long us = (System.nanoTime() - enviadoNs) / 1000;
+		latenciaTotal.registrar(us);
+		latenciaSegundo.registrar(us);
+		recibidos.increment();
+	}
+
+	// Un selector con sus sesiones y los envíos programados por tiempo
+	private static final class Selectora extends Thread {
+		private final Selector selector;
+		private final Queue<Sesion> nuevas = new ConcurrentLinkedQueue<>();
+		// Próximo envío de cada sesión lista, por tiempo
+		private final PriorityQueue<Sesion> agenda = new PriorityQueue<>((a, b) -> Long.compare(a.proximoEnvio, b.proximoEnvio));
+		private boolean arrancada;
+
+		Selectora(int i) throws IOException {
+			super("carga-" + i);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void conectar(Sesion s) {
+			nuevas.add(s);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					if (midiendo && !arrancada) arrancar();
+					long espera = 0;
+					Sesion prox = midiendo ? agenda.peek() : null;
+					if (prox != null) espera = Math.max(1, (prox.proximoEnvio - System.nanoTime()) / 1_000_000);
+					if (prox != null && prox.proximoEnvio <= System.nanoTime()) {
+						selector.selectNow();
+					} else {
+						selector.select(espera);
+					}
+					Sesion n;
+					while ((n = nuevas.poll()) != null) n.abrir(selector);
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+						Sesion s = (Sesion) k.attachment();
+						if (!k.isValid()) continue;
+						try {
+							if (k.isConnectable()) s.conectada(k);
+							if (k.isValid() && k.isReadable()) s.leer();
+							if (k.isValid() && k.isWritable()) s.escribir();
+						} catch (IOException e) {
+							s.fallar(e);
+						}
+					}
+
+					long ahora = System.nanoTime();
+					while (midiendo && (prox = agenda.peek()) != null && prox.proximoEnvio <= ahora) {
+						agenda.poll();
+						prox.enviarSiguiente();
+						prox.proximoEnvio += INTERVALO_NS;
+						// si se atrasó mucho, no intentar recuperar todo de golpe
+						if (prox.proximoEnvio < ahora - 1_000_000_000L) prox.proximoEnvio = ahora;
+						agenda.add(prox);
+					}
+				} catch (IOException e) {
+					System.err.println("Error en selector de carga: " + e.getMessage());
+				}
+			}
+		}
+
+		// Primer envío de cada sesión en un momento al azar dentro del primer intervalo
+		private void arrancar() {
+			arrancada = true;
+			long ahora = System.nanoTime();
+			Sesion[] todas = agenda.toArray(new Sesion[0]);
+			agenda.clear();
+			for (Sesion s : todas) {
+				s.proximoEnvio = ahora + (long) (ThreadLocalRandom.current().nextDouble() * INTERVALO_NS);
+				agenda.add(s);
+			}
+		}
+	}
+
+	// Una sesión simulada (sólo la toca su Selectora)
+	private static final class Sesion implements Lector_Lineas.Receptor {
+		final int indice;
+		final Selectora hilo;
+		final String sala;
+		final Lector_Lineas lector = new Lector_Lineas(64 * 1024 * 1024);
+		final ArrayDeque<ByteBuffer> salida = new ArrayDeque<>();
+		SocketChannel canal;
+		SelectionKey clave;
+		volatile int idUsuario = -1;
+		boolean enSala;
+		long proximoEnvio;
+		// bytes descomprimidos del próximo bloque (tras una línea ZLIB|)
+		int proximoZlib;
+		Compresion.Descompresor descompresor;
+
+		Sesion(int indice, Selectora hilo) {
+			this.indice = indice;
+			this.hilo = hilo;
+			this.sala = "carga-" + (indice % SALAS);
+		}
+
+		void abrir(Selector selector) {
+			try {
+				canal = SocketChannel.open();
+				canal.configureBlocking(false);
+				canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+				boolean ya = canal.connect(new InetSocketAddress(HOST, PUERTO));
+				clave = canal.register(selector, ya ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			} catch (IOException e) {
+				fallar(e);
+			}
+		}
+
+		void conectada(SelectionKey k) throws IOException {
+			canal.finishConnect();
+			k.interestOps(SelectionKey.OP_READ);
+		}
+
+		void leer() throws IOException {
+			int n = lector.leer(canal);
+			if (n < 0) throw new IOException("el servidor cerró la conexión");
+			bytesRecibidos.add(n);
+			lector.extraer(this);
+		}
+
+		void enviar(String texto) {
+			ByteBuffer b = ByteBuffer.wrap(texto.getBytes(StandardCharsets.UTF_8));
+			bytesEnviados.add(b.remaining());
+			salida.add(b);
+			try {
+				escribir();
+			} catch (IOException e) {
+				fallar(e);
+			}
+		}
+
+		void escribir() throws IOException {
+			while (!salida.isEmpty()) {
+				ByteBuffer b = salida.peek();
+				canal.write(b);
+				if (b.hasRemaining()) break;
+				salida.poll();
+			}
+			if (clave.isValid()) {
+				clave.interestOps(salida.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void fallar(IOException e) {
+			if (clave != null) clave.cancel();
+			try {
+				if (canal != null) canal.close();
+			} catch (IOException ignore) {
+			}
+			if (!enSala) {
+				int f = fallidas.incrementAndGet();
+				if (f <= 5) System.err.println("Sesión " + indice + " falló: " + e.getMessage());
+			} else {
+				enSala = false;
+				hilo.agenda.remove(this);
+				listas.decrementAndGet();
+				fallidas.incrementAndGet();
+			}
+			lector.liberar();
+		}
+
+		// Un mensaje según la mezcla configurada
+		void enviarSiguiente() {
+			int total = P_GRUPO + P_PRIV + P_FILE;
+			int dado = total <= 0 ? 0 : ThreadLocalRandom.current().nextInt(total);
+			long ahora = System.nanoTime();
+			if (dado < P_GRUPO) {
+				enviar(MARCA + ahora + " " + relleno + "\n");
+			} else if (dado < P_GRUPO + P_PRIV) {
+				int destino = sesiones[ThreadLocalRandom.current().nextInt(sesiones.length)].idUsuario;
+				if (destino < 0) destino = idUsuario;
+				enviar("/priv " + destino + " " + MARCA + ahora + " " + relleno + "\n");
+			} else {
+				enviar("/file LT_" + ahora + ".bin " + archivoBase64 + "\n");
+			}
+			enviados.increment();
+		}
+
+		@Override
+		public boolean linea(String linea) {
+			int i = linea.indexOf(" : " + MARCA);
+			if (i >= 0) {
+				int desde = i + 3 + MARCA.length();
+				int hasta = linea.indexOf(' ', desde);
+				registrarLatencia(Long.parseLong(linea.substring(desde, hasta < 0 ? linea.length() : hasta)));
+			} else if (linea.startsWith("FILE_INCOMING|")) {
+				int a = linea.indexOf("|LT_");
+				if (a >= 0) registrarLatencia(Long.parseLong(linea.substring(a + 4, linea.indexOf(".bin", a))));
+			} else if (linea.startsWith(Compresion.CABECERA)) {
+				String[] partes = linea.substring(Compresion.CABECERA.length()).split("\\|");
+				proximoZlib = Integer.parseInt(partes[1]);
+				lector.esperarBinario(Integer.parseInt(partes[0]));
+			} else if (linea.startsWith("Bienvenido")) {
+				int u = linea.indexOf("user-");
+				if (u >= 0) idUsuario = Integer.parseInt(linea.substring(u + 5).trim());
+				if (COMPRESION) {
+					descompresor = new Compresion.Descompresor();
+					enviar(Compresion.PEDIDO + "\n");
+				}
+				// crear la sala; si ya existe, se entra con la opción 4
+				enviar("3\n\n" + sala + "\n");
+			} else if (linea.startsWith("No se pudo crear el chat")) {
+				enviar("4\n" + sala + "\n");
+			} else if (linea.startsWith("Entrando al chat") && !enSala) {
+				enSala = true;
+				listas.incrementAndGet();
+				// si la medición ya empezó (sesión atrasada), entra directamente
+				proximoEnvio = System.nanoTime();
+				hilo.agenda.add(this);
+			}
+			return true;
+		}
+
+		@Override
+		public void lineaDemasiadoLarga(int maximo) {
+		}
+
+		@Override
+		public void bloque(ByteBuffer datos) {
+			if (proximoZlib == 0) return;
+			int originales = proximoZlib;
+			proximoZlib = 0;
+			try {
+				Compresion.Descompresor.entregar(descompresor.inflar(datos, originales), false, this);
+			} catch (DataFormatException e) {
+				fallar(new IOException("bloque comprimido inválido", e));
+			}
+		}
+
+		@Override
+		public boolean trama(ByteBuffer datos) {
+			return true;
+		}
+	}
+}
@@ -4,22 +4,135 @@
  * Integra un listado de usuarios y funcionalidades de chat.
  * El chat grupal permite a los usuarios enviar mensajes a todos los miembros conectados.
  * El chat privado permite a los usuarios enviar mensajes directos a otros usuarios específicos.
+ *
+ * Cada chat funciona como un actor: las tareas enviadas con ejecutar() se
+ * procesan en orden, una a la vez, sobre el Pool_Trabajo compartido. Así los
+ * mensajes de un chat quedan totalmente ordenados y chats distintos avanzan
+ * en paralelo.
+ *
+ * El historial se guarda en disco con Historial_Chat. En memoria sólo queda
+ * una ventana circular con los últimos mensajes (-Dchat.historialEntrada,
+ * por defecto 100), que se envía de una vez al entrar al chat; lo anterior
+ * se pide por páginas con /historial. El historial se abre en la primera
+ * tarea del actor, no en el constructor, para que crear un chat desde un
+ * reactor no toque el disco; si no se puede abrir, el chat queda sólo con
+ * la ventana en memoria (ver isHistorialAbierto).
+ *
+ * Los miembros se guardan en una foto inmutable (copy-on-write): cada alta,
+ * baja, conexión o desconexión arma una nueva bajo el lock del chat. Difundir
+ * sólo lee la referencia volátil y recorre el arreglo de conexiones de los
+ * miembros conectados, sin locks ni búsquedas por id.
  */
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Chat_Grupal {
 
+    private final int id;
     private final String nombre;
-    private final List<Usuario> miembros;
-    // Nuevo: historial de mensajes (mensajes ya formateados)
-    private final List<String> history;
+    private static final int HISTORIAL_ENTRADA = Math.max(1, Integer.getInteger("chat.historialEntrada", 100));
 
-    public Chat_Grupal(String nombre) {
+    // Foto de los miembros, en orden de llegada: usuarios[i] tiene la
+    // conexión conexiones[i] (null si no está conectado); conectados son las
+    // no nulas. Nunca se modifican: se reemplaza la foto entera.
+    private static final class Miembros {
+        static final Miembros VACIO = new Miembros(new Usuario[0], new Conexion[0], new Conexion[0]);
+
+        final Usuario[] usuarios;
+        final Conexion[] conexiones;
+        final Conexion[] conectados;
+
+        Miembros(Usuario[] usuarios, Conexion[] conexiones, Conexion[] conectados) {
+            this.usuarios = usuarios;
+            this.conexiones = conexiones;
+            this.conectados = conectados;
+        }
+
+        static Miembros con(Usuario[] usuarios, Conexion[] conexiones) {
+            int n = 0;
+            for (Conexion c : conexiones) {
+                if (c != null) n++;
+            }
+            Conexion[] conectados = new Conexion[n];
+            n = 0;
+            for (Conexion c : conexiones) {
+                if (c != null) conectados[n++] = c;
+            }
+            return new Miembros(usuarios, conexiones, conectados);
+        }
+    }
+
+    private volatile Miembros miembros = Miembros.VACIO;
+    // Posición de cada miembro en la foto (sólo bajo el lock del chat)
+    private final Map<Usuario, Integer> posiciones = new HashMap<>();
+    // Historial persistente de mensajes (mensajes ya formateados); null hasta
+    // que lo abre el actor, o si no se pudo abrir (sólo bajo el lock del chat)
+    private Historial_Chat history;
+    // Ventana circular de los últimos mensajes: el de número seq está en
+    // ventana[seq % largo]. finVentana es el número del próximo mensaje.
+    private final String[] ventana = new String[HISTORIAL_ENTRADA];
+    private long finVentana;
+    private int enVentana;
+    // Ventana ya codificada para los que entran (se rehace al llegar un mensaje)
+    private ByteBuffer loteEntrada;
+    // Lo mismo en una trama HISTORIAL, para los clientes binarios
+    private ByteBuffer loteBinario;
+    // Las dos anteriores y sus formas comprimidas, según la conexión
+    private Compresion.Compartido loteCompartido;
+
+    // Buzón del actor: tareas pendientes y marca de "ya programado en el pool"
+    private static final int LOTE_BUZON = 64;
+    private final Queue<Runnable> buzon = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean programado = new AtomicBoolean(false);
+
+    // Los chats se crean desde Registro_Chats, que asigna el id
+    public Chat_Grupal(String nombre, int id) {
+        this.id = id;
         this.nombre = nombre;
-        this.miembros = new ArrayList<>();
-        this.history = new ArrayList<>();
+        // primera tarea del buzón: todo lo que llegue al chat corre después
+        ejecutar(this::cargarHistorial);
+    }
+
+    // Actor: abre el historial y llena la ventana con lo que ya hubiera en disco
+    private void cargarHistorial() {
+        Historial_Chat h;
+        try {
+            h = Historial_Chat.abrir(nombre);
+        } catch (IOException e) {
+            Bitacora_B.evento("Chat " + nombre + ": sin historial en disco: " + e.getMessage());
+            return;
+        }
+        long fin = h.getSiguienteSeq();
+        long seq = Math.max(0, fin - HISTORIAL_ENTRADA);
+        List<String> recientes = h.leer(seq, fin);
+        synchronized (this) {
+            for (String m : recientes) {
+                ventana[(int) (seq++ % HISTORIAL_ENTRADA)] = m;
+                enVentana++;
+            }
+            finVentana = fin;
+            history = h;
+        }
+    }
+
+    // Desde el actor, después de cargarHistorial(): si el historial está en disco
+    public synchronized boolean isHistorialAbierto() {
+        return history != null;
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getNombre() {
@@ -27,47 +140,176 @@ public class Chat_Grupal {
     }
 
     public synchronized void agregarMiembro(Usuario u) {
-        if (u != null && !miembros.contains(u)) {
-            miembros.add(u);
-            u.agregarChat(this);
-        }
+        if (u == null || posiciones.containsKey(u)) return;
+        // primero el chat en el usuario y luego leer su conexión: si se
+        // conecta a la vez, o lo ve aquí o él llama a actualizarConexion()
+        u.agregarChat(this);
+        Miembros m = miembros;
+        int n = m.usuarios.length;
+        Usuario[] usuarios = Arrays.copyOf(m.usuarios, n + 1);
+        Conexion[] conexiones = Arrays.copyOf(m.conexiones, n + 1);
+        usuarios[n] = u;
+        conexiones[n] = u.getConexion();
+        posiciones.put(u, n);
+        miembros = Miembros.con(usuarios, conexiones);
     }
 
     // Nuevo: eliminar miembro
     public synchronized void eliminarMiembro(Usuario u) {
         if (u == null) return;
-        if (miembros.remove(u)) {
-            // mantener consistencia en el usuario
-            u.removerChat(this);
+        Integer pos = posiciones.remove(u);
+        if (pos == null) return;
+        Miembros m = miembros;
+        int n = m.usuarios.length - 1;
+        Usuario[] usuarios = new Usuario[n];
+        Conexion[] conexiones = new Conexion[n];
+        System.arraycopy(m.usuarios, 0, usuarios, 0, pos);
+        System.arraycopy(m.conexiones, 0, conexiones, 0, pos);
+        System.arraycopy(m.usuarios, pos + 1, usuarios, pos, n - pos);
+        System.arraycopy(m.conexiones, pos + 1, conexiones, pos, n - pos);
+        for (int i = pos; i < n; i++) posiciones.put(usuarios[i], i);
+        miembros = Miembros.con(usuarios, conexiones);
+        // mantener consistencia en el usuario
+        u.removerChat(this);
+    }
+
+    // El miembro se conectó, se desconectó o cambió de conexión
+    public synchronized void actualizarConexion(Usuario u) {
+        Integer pos = posiciones.get(u);
+        if (pos == null) return;
+        Miembros m = miembros;
+        Conexion c = u.getConexion();
+        if (m.conexiones[pos] == c) return;
+        Conexion[] conexiones = m.conexiones.clone();
+        conexiones[pos] = c;
+        miembros = Miembros.con(m.usuarios, conexiones);
+    }
+
+    // Vista de sólo lectura de la foto actual (no toma el lock)
+    public List<Usuario> getMiembros() {
+        return Collections.unmodifiableList(Arrays.asList(miembros.usuarios));
+    }
+
+    public int contarMiembros() {
+        return miembros.usuarios.length;
+    }
+
+    // Conexiones de los miembros conectados, para difundir. No modificar el
+    // arreglo devuelto: es compartido.
+    public Conexion[] getConectados() {
+        return miembros.conectados;
+    }
+
+    // Encola una tarea en el buzón del chat; se ejecuta en serie con las demás
+    public void ejecutar(Runnable tarea) {
+        buzon.add(tarea);
+        programar();
+    }
+
+    private void programar() {
+        if (programado.compareAndSet(false, true)) {
+            Pool_Trabajo.ejecutar(this::vaciarBuzon);
         }
     }
 
-    public synchronized List<Usuario> getMiembros() {
-        return new ArrayList<>(miembros);
+    // Procesa un lote de tareas y cede el hilo para no acaparar el pool
+    private void vaciarBuzon() {
+        try {
+            for (int i = 0; i < LOTE_BUZON; i++) {
+                Runnable tarea = buzon.poll();
+                if (tarea == null) break;
+                try {
+                    tarea.run();
+                } catch (RuntimeException e) {
+                    Bitacora_B.evento("Error en chat " + nombre + ": " + e);
+                }
+            }
+        } finally {
+            programado.set(false);
+            // si llegaron tareas mientras tanto, volver a programar
+            if (!buzon.isEmpty()) programar();
+        }
     }
 
     @Override
     public String toString() {
-        return "Chat_Grupal{name='" + nombre + "', miembros=" + miembros.size() + "}";
+        return "Chat_Grupal{id=" + id + ", name='" + nombre + "', miembros=" + contarMiembros() + "}";
     }
 
     // Devuelve lista de nombres (útil para enviar al cliente)
-    public synchronized List<String> listarNombresMiembros() {
+    public List<String> listarNombresMiembros() {
         List<String> names = new ArrayList<>();
-        for (Usuario u : miembros) {
+        for (Usuario u : miembros.usuarios) {
             names.add(u.getNombre());
         }
         return names;
     }
 
-    // Nuevo: añadir mensaje al historial (mensajes ya formateados sin \n)
-    public synchronized void addMessage(String msg) {
-        if (msg == null) return;
-        history.add(msg);
+    // Nuevo: añadir mensaje al historial (mensajes ya formateados sin \n).
+    // La escritura a disco la hace el hilo del historial. Devuelve el número
+    // del mensaje (-1 si no se agregó).
+    public synchronized long addMessage(String msg) {
+        if (msg == null) return -1;
+        long seq = history != null ? history.agregar(msg) : finVentana;
+        ventana[(int) (seq % HISTORIAL_ENTRADA)] = msg;
+        finVentana = seq + 1;
+        if (enVentana < HISTORIAL_ENTRADA) enVentana++;
+        loteEntrada = null;
+        loteBinario = null;
+        loteCompartido = null;
+        return seq;
+    }
+
+    // Los mensajes de la ventana en un solo buffer de sólo lectura ("\n" al
+    // final de cada uno). Se arma una vez y se comparte hasta el próximo mensaje.
+    public synchronized ByteBuffer getLoteEntrada() {
+        if (loteEntrada == null) {
+            StringBuilder sb = new StringBuilder();
+            for (long seq = finVentana - enVentana; seq < finVentana; seq++) {
+                sb.append(ventana[(int) (seq % HISTORIAL_ENTRADA)]).append('\n');
+            }
+            loteEntrada = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+        return loteEntrada.duplicate();
+    }
+
+    // La misma ventana como trama HISTORIAL del protocolo binario
+    public synchronized ByteBuffer getLoteEntradaBinario() {
+        if (loteBinario == null) {
+            List<String> mensajes = new ArrayList<>(enVentana);
+            for (long seq = finVentana - enVentana; seq < finVentana; seq++) {
+                mensajes.add(ventana[(int) (seq % HISTORIAL_ENTRADA)]);
+            }
+            loteBinario = Protocolo_Binario.historial(id, finVentana - enVentana, mensajes).asReadOnlyBuffer();
+        }
+        return loteBinario.duplicate();
+    }
+
+    // La ventana en la forma que usa la conexión (texto o binaria, comprimida
+    // o no); cada forma se arma una vez hasta el próximo mensaje
+    public synchronized ByteBuffer getLoteEntrada(Conexion c) {
+        if (loteCompartido == null) {
+            loteCompartido = new Compresion.Compartido(this::getLoteEntrada, this::getLoteEntradaBinario);
+        }
+        return loteCompartido.para(c);
     }
 
-    // Nuevo: obtener copia del historial
-    public synchronized List<String> getHistory() {
-        return new ArrayList<>(history);
+    // Número del mensaje más antiguo de la ventana (los anteriores están en disco)
+    public synchronized long getInicioVentana() {
+        return finVentana - enVentana;
+    }
+
+    // Número que tendrá el próximo mensaje
+    public synchronized long getSiguienteSeq() {
+        return finVentana;
+    }
+
+    // Mensajes con número en [desde, hasta), leídos del historial en disco
+    public List<String> leerHistorial(long desde, long hasta) {
+        Historial_Chat h;
+        synchronized (this) {
+            h = history;
+        }
+        return h != null ? h.leer(desde, hasta) : Collections.<String>emptyList();
     }
 }
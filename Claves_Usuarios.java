@@ -0,0 +1,58 @@
+/*
+ * Claves_Usuarios.java
+ * Claves para volver a entrar como un usuario existente (opción 7 o trama
+ * LOGIN): -Dchat.claves=Alice:secreto,Bob:otra da una clave a cada usuario
+ * nombrado.
+ *
+ * Sin la clave correcta no se pasa a otro usuario: sólo con el nombre no se
+ * entra, y a un usuario sin clave configurada sólo se vuelve reanudando su
+ * sesión. Una conexión está autenticada para su usuario si lo creó ella
+ * misma al conectarse, si entró con la clave correcta o si reanudó una sesión
+ * que ya lo estaba. Sólo las autenticadas reciben los privados del usuario
+ * (los guardados en Buzon_Privado y los nuevos, que si no se guardan hasta
+ * que llegue una) y cuentan como administradores para /metricas.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class Claves_Usuarios {
+
+	private static final Map<String, byte[]> CLAVES;
+
+	static {
+		Map<String, byte[]> claves = new HashMap<>();
+		for (String par : System.getProperty("chat.claves", "").split(",")) {
+			int i = par.indexOf(':');
+			if (i <= 0 || i == par.length() - 1) continue;
+			claves.put(par.substring(0, i).trim(), par.substring(i + 1).trim().getBytes(StandardCharsets.UTF_8));
+		}
+		CLAVES = Collections.unmodifiableMap(claves);
+	}
+
+	private Claves_Usuarios() {
+	}
+
+	// La clave es la configurada para ese usuario (sin clave configurada, nunca)
+	public static boolean comprobar(String nombre, String clave) {
+		byte[] esperada = CLAVES.get(nombre);
+		return esperada != null && clave != null
+				&& MessageDigest.isEqual(esperada, clave.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static boolean tieneClave(String nombre) {
+		return CLAVES.containsKey(nombre);
+	}
+
+	// "<nombre> <clave>" -> { nombre, clave }; si la línea entera es el nombre
+	// de un usuario existente, va sin clave
+	public static String[] separar(String linea, boolean existe) {
+		String l = linea.trim();
+		int i = l.lastIndexOf(' ');
+		if (existe || i < 0) return new String[] { l, null };
+		return new String[] { l.substring(0, i).trim(), l.substring(i + 1) };
+	}
+}
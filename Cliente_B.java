@@ -4,175 +4,899 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.Base64;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 
 public class Cliente_B {
-	private static final String HOST = "localhost";
-	private static final int PORT = 5000;
+	// Servidor (-Dchat.host, -Dchat.puerto): en cluster, cualquiera de sus nodos
+	private static final String HOST = System.getProperty("chat.host", "localhost");
+	private static final int PORT = Integer.getInteger("chat.puerto", 5000);
+
+	// Tamaño de cada bloque binario al enviar archivos
+	private static final int TAM_BLOQUE = 64 * 1024;
+	// Máximo de una línea recibida (los FILE_INCOMING no cuentan: se reciben en flujo)
+	private static final int MAX_LINEA = 4 * 1024 * 1024;
+	// Las respuestas sólo se encolan mientras se negocia (bienvenida,
+	// compresión, sesión, reconexión); después nadie las lee y la consola ya
+	// las mostró. Aun así la cola tiene un tope.
+	private static final int MAX_PENDIENTES = 256;
+	private static volatile boolean negociando = true;
+	// Las escrituras al socket (consola e hilos de envío de archivos) se serializan aquí
+	private static final Object escritura = new Object();
+	private static final AtomicInteger nextTransferId = new AtomicInteger(1);
+
+	// Protocolo binario (-Dchat.protocolo=bin o argumento "bin"); por defecto, texto
+	private static boolean binario = "bin".equalsIgnoreCase(System.getProperty("chat.protocolo", "texto"));
+	// Compresión de lo que manda el servidor (-Dchat.compresion=true o argumento "zlib")
+	private static boolean comprimir = Boolean.getBoolean("chat.compresion");
+	// En binario el menú lo muestra el cliente, y sabe si está dentro de un chat
+	private static volatile boolean enChat;
+	// Nombres conocidos por id (el protocolo binario sólo manda ids en los mensajes)
+	private static final Map<Integer, String> nombres = new java.util.concurrent.ConcurrentHashMap<>();
+	// Sesión reanudable (-Dchat.sesion=false para no pedirla): si la conexión
+	// se corta, se reconecta y se piden sólo los mensajes perdidos
+	private static final boolean SESION = Boolean.parseBoolean(System.getProperty("chat.sesion", "true"));
+	private static final int MAX_REINTENTOS = 10;
+	private static volatile String token;
+	// Último número de mensaje visto por chat (marcas SEQ| / tramas SECUENCIA)
+	private static final Map<Integer, Long> vistos = new java.util.concurrent.ConcurrentHashMap<>();
+	// Conexión actual (cambia al reconectar) y su hilo lector
+	private static volatile SocketChannel canal;
+	private static volatile Thread hiloLector;
+	// El usuario pidió salir: que el servidor cierre no es un corte
+	private static volatile boolean saliendo;
+	private static final String MENU_BINARIO = "Menu:\n1 - Listar usuarios\n2 - Listar chats\n3 - Crear chat grupal\n"
+			+ "4 - Listar mis chats y entrar\n6 - Salir de chat grupal\n7 - Entrar como usuario existente\n5 - Salir\n"
+			+ "Escribe una opción:";
 
 	public static void main(String[] args) {
-		try (SocketChannel client = SocketChannel.open()) {
-			client.connect(new InetSocketAddress(HOST, PORT));
-			System.out.println("Conectado al servidor " + safeRemoteAddress(client));
-			System.out.println("Escribe una opción (1-6) o 'salir'. (5 o 'salir' cierra la conexión). Puedes usar /sendfile <ruta> o /priv <id> <msg>");
+		for (String a : args) {
+			if ("bin".equalsIgnoreCase(a)) binario = true;
+			if ("zlib".equalsIgnoreCase(a)) comprimir = true;
+		}
+		try (SocketChannel primero = SocketChannel.open()) {
+			primero.connect(new InetSocketAddress(HOST, PORT));
+			canal = primero;
+			System.out.println("Conectado al servidor " + safeRemoteAddress(primero));
+			System.out.println("Escribe una opción (1-7) o 'salir'. (5 o 'salir' cierra la conexión). Puedes usar /sendfile <ruta> o /priv <id> <msg>");
 
 			// Nuevo: cola para recibir líneas desde el hilo lector
-			BlockingQueue<String> incoming = new LinkedBlockingQueue<>();
-			Thread reader = startReaderThread(client, incoming);
+			BlockingQueue<String> incoming = new ArrayBlockingQueue<>(MAX_PENDIENTES);
+			startReaderThread(primero, incoming);
 			// Esperar y mostrar bienvenida/menu inicial enviado por el servidor
 			collectUntilMatch(incoming, new String[] { "Escribe una opción" }, 5000);
+			boolean aceptado = negociar(primero, incoming);
+			finNegociacion(incoming);
+			if (!aceptado) return;
+			if (binario) System.out.println(MENU_BINARIO);
 
 			// debug print (opcional)
 			System.out.println("DEBUG: recibido welcome (ver líneas anteriores)");
 
 			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
 			String line;
-			
-			while ((line = console.readLine()) != null) {
-				
-				// 1. Detección y codificación de archivos
-				if (line.trim().toLowerCase().startsWith("/sendfile ")) {
-					
-					String filePath = line.trim().substring(10).trim();
-					line = processAndEncodeFile(filePath); 
-					
-					if (line.startsWith("ERROR")) {
-						System.err.println("Error al procesar archivo: " + line.substring(6));
-						continue; // No enviamos nada si hay error
-					}
-					
-					System.out.println("DEBUG: Preparando para enviar archivo codificado. Tamaño de mensaje: " + line.length() + " caracteres.");
-				}
-				
-				// 2. Mensaje de debug simple
-				System.out.println("DEBUG: Enviando entrada -> " + line.trim());
-				
-				// 3. Enviar al servidor
-				String toSend = line + "\n";
-				ByteBuffer out = ByteBuffer.wrap(toSend.getBytes(StandardCharsets.UTF_8));
-				while (out.hasRemaining()) {
-					client.write(out);
-				}
 
-				// 4. Cerrar cliente si es necesario
-				if ("salir".equalsIgnoreCase(line.trim()) || "5".equals(line.trim())) {
-					System.out.println("Has solicitado salir. Cerrando conexión...");
-					break;
+			while ((line = console.readLine()) != null) {
+				// tras una reconexión, la conexión nueva
+				SocketChannel client = canal;
+				try {
+					if (!atenderEntrada(client, console, line)) break;
+				} catch (IOException e) {
+					System.err.println("Sin conexión con el servidor (" + e.getMessage() + "); no se envió: " + line);
 				}
 			}
 
 			// ordenada: parar lector e cerrar socket
+			saliendo = true;
+			Thread reader = hiloLector;
 			reader.interrupt();
 			try { reader.join(500); } catch (InterruptedException ignored) {}
-			client.close();
+			canal.close();
 			System.out.println("Conexión cerrada.");
 		} catch (IOException e) {
 			System.err.println("No se pudo conectar: " + e.getMessage());
 		}
 	}
-    
+
    //Métodos de soporte para el cliente
 
-	// Metodo para leer, codificar y generar el protocolo /file
-	private static String processAndEncodeFile(String filePath) {
-		try {
-			File file = new File(filePath);
-			if (!file.exists()) {
-				return "ERROR: Archivo no encontrado en la ruta: " + filePath;
-			}
-			if (file.length() > 2097152) { // Limitar a 2MB
-				return "ERROR: El archivo es demasiado grande (Máx. 2MB).";
-			}
-			
-			// 1. Leer bytes del archivo
-			byte[] fileBytes = Files.readAllBytes(file.toPath());
-			
-			// 2. Codificar los bytes a Base64
-			String base64Content = Base64.getEncoder().encodeToString(fileBytes);
-			
-			// 3. Devolver la línea de protocolo para el Servidor: /file <nombre> <contenido>
-			return "/file " + file.getName() + " " + base64Content;
-			
-		} catch (IOException e) {
-			return "ERROR: Falló la lectura/codificación: " + e.getMessage();
+	// Compresión, sesión y protocolo binario, en ese orden (los tres se piden
+	// con líneas de texto). Devuelve false si el servidor no aceptó el binario.
+	private static boolean negociar(SocketChannel client, BlockingQueue<String> incoming) throws IOException {
+		if (comprimir) {
+			// se negocia antes del protocolo binario (es una línea de texto)
+			writeLine(client, Compresion.PEDIDO);
+			if (collectUntilMatch(incoming, new String[] { Compresion.ACEPTADO }, 5000) == null) {
+				System.err.println("El servidor no aceptó la compresión; se sigue sin comprimir.");
+			} else {
+				System.out.println("Compresión activa.");
+			}
+		}
+		if (SESION) {
+			writeLine(client, Registro_Sesiones.PEDIDO);
+			if (collectUntilMatch(incoming, new String[] { Registro_Sesiones.PEDIDO + " " }, 5000) == null || token == null) {
+				System.err.println("El servidor no dio una sesión; si se corta la conexión no se podrá reanudar.");
+			}
+		}
+		if (binario) {
+			// negociar: desde la respuesta, todo son tramas
+			writeLine(client, Protocolo_Binario.PEDIDO);
+			if (collectUntilMatch(incoming, new String[] { Protocolo_Binario.ACEPTADO }, 5000) == null) {
+				System.err.println("El servidor no aceptó el protocolo binario.");
+				return false;
+			}
+			System.out.println("Protocolo binario activo.");
+		}
+		return true;
+	}
+
+	// La conexión se cortó sin que el usuario saliera: reconectar con espera
+	// creciente y reanudar la sesión (sólo llegan los mensajes perdidos). Si
+	// ya no se puede reanudar, se sigue con una sesión y un usuario nuevos.
+	private static void reconectar(BlockingQueue<String> incoming) {
+		long espera = 500;
+		for (int intento = 1; intento <= MAX_REINTENTOS && !saliendo; intento++) {
+			try {
+				Thread.sleep(espera);
+			} catch (InterruptedException e) {
+				return;
+			}
+			espera = Math.min(espera * 2, 10_000);
+			SocketChannel client;
+			try {
+				client = SocketChannel.open(new InetSocketAddress(HOST, PORT));
+			} catch (IOException e) {
+				System.err.println("Reconexión " + intento + " de " + MAX_REINTENTOS + " fallida: " + e.getMessage());
+				continue;
+			}
+			incoming.clear();
+			negociando = true;
+			canal = client;
+			startReaderThread(client, incoming);
+			try {
+				collectUntilMatch(incoming, new String[] { "Escribe una opción" }, 5000);
+				if (reanudar(client, incoming)) {
+					finNegociacion(incoming);
+					return;
+				}
+				// sesión vencida: empezar de cero con un usuario nuevo
+				enChat = false;
+				vistos.clear();
+				token = null;
+				if (negociar(client, incoming)) {
+					finNegociacion(incoming);
+					System.out.println("Reconectado con un usuario nuevo (la sesión anterior venció).");
+					if (binario) System.out.println(MENU_BINARIO);
+					return;
+				}
+			} catch (IOException e) {
+				System.err.println("Reconexión " + intento + " de " + MAX_REINTENTOS + " fallida: " + e.getMessage());
+			}
+			try { client.close(); } catch (IOException ignore) {}
+		}
+		finNegociacion(incoming);
+		if (!saliendo) System.err.println("No se pudo reconectar con el servidor.");
+	}
+
+	// Desde aquí las líneas ya no se encolan (ver MAX_PENDIENTES)
+	private static void finNegociacion(BlockingQueue<String> incoming) {
+		negociando = false;
+		incoming.clear();
+	}
+
+	// REANUDAR <token> <chat>:<seq>,... Si la sesión sigue abierta en la
+	// conexión cortada, el servidor la cierra y se reintenta.
+	private static boolean reanudar(SocketChannel client, BlockingQueue<String> incoming) throws IOException {
+		String t = token;
+		if (t == null) return false;
+		for (int i = 0; i < 5; i++) {
+			StringBuilder pedido = new StringBuilder(Registro_Sesiones.REANUDAR).append(' ').append(t);
+			String sep = " ";
+			for (Map.Entry<Integer, Long> e : vistos.entrySet()) {
+				pedido.append(sep).append(e.getKey()).append(':').append(e.getValue());
+				sep = ",";
+			}
+			writeLine(client, pedido.toString());
+			String r = collectUntilMatch(incoming, new String[] { Registro_Sesiones.REANUDADA, "Error:" }, 5000);
+			if (r == null) return false;
+			if (r.contains(Registro_Sesiones.REANUDADA)) return true;
+			if (!r.contains("reintenta")) return false;
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	// Una línea de la consola. Devuelve false si el usuario pidió salir.
+	private static boolean atenderEntrada(SocketChannel client, BufferedReader console, String line) throws IOException {
+		// 1. Envío de archivos por bloques binarios, en un hilo aparte
+		// para poder seguir chateando mientras se sube
+		if (line.trim().toLowerCase().startsWith("/sendfile ")) {
+			String filePath = line.trim().substring(10).trim();
+			startFileSender(client, filePath);
+			return true;
+		}
+
+		if (binario) {
+			return enviarBinario(client, console, line.trim());
+		}
+
+		// 2. Mensaje de debug simple
+		System.out.println("DEBUG: Enviando entrada -> " + line.trim());
+
+		// 3. Enviar al servidor (si es para salir, el cierre que sigue no es un corte)
+		boolean salir = "salir".equalsIgnoreCase(line.trim()) || "5".equals(line.trim());
+		if (salir) saliendo = true;
+		writeLine(client, line);
+
+		// 4. Cerrar cliente si es necesario
+		if (salir) {
+			System.out.println("Has solicitado salir. Cerrando conexión...");
+			return false;
 		}
+		return true;
+	}
+
+	// Traduce lo escrito en la consola a tramas del protocolo binario.
+	// Devuelve false si el usuario pidió salir.
+	private static boolean enviarBinario(SocketChannel client, BufferedReader console, String line) throws IOException {
+		if (line.equals("/metricas")) {
+			writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.METRICAS).fin());
+		} else if (enChat) {
+			String low = line.toLowerCase();
+			if (line.equalsIgnoreCase("MEN0")) {
+				enChat = false;
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.MENU).fin());
+				System.out.println(MENU_BINARIO);
+			} else if (low.startsWith("/priv ")) {
+				String[] parts = line.substring(6).trim().split("\\s+", 2);
+				try {
+					writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.PRIVADO).entero(Integer.parseInt(parts[0]))
+							.resto(parts.length > 1 ? parts[1] : "").fin());
+				} catch (NumberFormatException e) {
+					System.out.println("Uso: /priv <id> <mensaje>");
+				}
+			} else if (low.equals("/historial") || low.startsWith("/historial ")) {
+				String n = line.substring(10).trim();
+				try {
+					writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.PEDIR_HISTORIAL)
+							.corto(n.isEmpty() ? 0 : Integer.parseInt(n)).fin());
+				} catch (NumberFormatException e) {
+					System.out.println("Uso: /historial [n]");
+				}
+			} else if (low.startsWith("/descargar ")) {
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.DESCARGAR).nombre(line.substring(11).trim()).fin());
+			} else {
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.MENSAJE).resto(line).fin());
+			}
+		} else {
+			switch (line.toLowerCase()) {
+			case "1":
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.LISTAR_USUARIOS).fin());
+				break;
+			case "2":
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.LISTAR_CHATS).fin());
+				break;
+			case "3": {
+				System.out.println("Escribe los IDs separados por comas (puedes incluirte):");
+				String ids = console.readLine();
+				System.out.println("Escribe nombre del chat grupal:");
+				String nombre = console.readLine();
+				if (ids == null || nombre == null) return false;
+				java.util.List<Integer> lista = new java.util.ArrayList<>();
+				for (String p : ids.split("[,\\s]+")) {
+					try {
+						lista.add(Integer.parseInt(p.trim()));
+					} catch (NumberFormatException ignore) {}
+				}
+				Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.CREAR_CHAT).nombre(nombre.trim())
+						.corto(lista.size());
+				for (int id : lista) t.entero(id);
+				writeFrame(client, t.fin());
+				break;
+			}
+			case "4":
+			case "6": {
+				boolean entrar = line.equals("4");
+				if (entrar) writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.MIS_CHATS).fin());
+				System.out.println(entrar ? "Escribe el id del chat al que quieres entrar (opción 2 lista todos):"
+						: "Escribe el id del chat del que quieres salir:");
+				String id = console.readLine();
+				if (id == null) return false;
+				try {
+					writeFrame(client, new Protocolo_Binario.Trama(entrar ? Protocolo_Binario.ENTRAR_CHAT : Protocolo_Binario.SALIR_CHAT)
+							.entero(Integer.parseInt(id.trim())).fin());
+				} catch (NumberFormatException e) {
+					System.out.println("Id inválido: " + id);
+				}
+				break;
+			}
+			case "7": {
+				System.out.println("Escribe tu nombre de usuario y su clave (<nombre> <clave>):");
+				String nombre = console.readLine();
+				if (nombre == null) return false;
+				// "<nombre> <clave>": la clave va como segundo campo
+				String[] nc = nombre.trim().split("\\s+", 2);
+				Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.LOGIN).nombre(nc[0]);
+				if (nc.length > 1) t.nombre(nc[1]);
+				writeFrame(client, t.fin());
+				break;
+			}
+			case "5":
+			case "salir":
+				saliendo = true;
+				writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.ADIOS).fin());
+				System.out.println("Has solicitado salir. Cerrando conexión...");
+				return false;
+			default:
+				System.out.println(MENU_BINARIO);
+			}
+		}
+		return true;
+	}
+
+	// Escribe una trama completa al servidor
+	private static void writeFrame(SocketChannel client, ByteBuffer frame) throws IOException {
+		synchronized (escritura) {
+			while (frame.hasRemaining()) {
+				client.write(frame);
+			}
+		}
+	}
+
+	// Escribe una línea completa al servidor
+	private static void writeLine(SocketChannel client, String line) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+		synchronized (escritura) {
+			while (out.hasRemaining()) {
+				client.write(out);
+			}
+		}
+	}
+
+	// Sube un archivo por bloques: /fileinit, luego /chunk + bytes crudos, y /fileend con el CRC32.
+	// Se lee con FileChannel bloque a bloque, así que el archivo nunca está entero en memoria.
+	private static void startFileSender(SocketChannel client, String filePath) {
+		File file = new File(filePath);
+		if (!file.isFile()) {
+			System.err.println("Error al procesar archivo: Archivo no encontrado en la ruta: " + filePath);
+			return;
+		}
+		String id = "t" + nextTransferId.getAndIncrement();
+		Thread t = new Thread(() -> {
+			long size = file.length();
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if (binario) {
+					writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.SUBIR_INICIO).nombre(id).largo(size)
+							.nombre(file.getName()).fin());
+				} else {
+					writeLine(client, "/fileinit " + id + " " + size + " " + file.getName());
+				}
+				CRC32 crc = new CRC32();
+				ByteBuffer data = ByteBuffer.allocateDirect(TAM_BLOQUE);
+				long sent = 0;
+				while (sent < size) {
+					data.clear();
+					if (size - sent < TAM_BLOQUE) data.limit((int) (size - sent));
+					int n = fc.read(data, sent);
+					if (n <= 0) break;
+					data.flip();
+					crc.update(data.duplicate());
+					ByteBuffer header;
+					if (binario) {
+						// trama SUBIR_BLOQUE: la cabecera lleva el largo total y el id
+						byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+						header = ByteBuffer.allocate(4 + 1 + 2 + idBytes.length);
+						header.putInt(1 + 2 + idBytes.length + n).put(Protocolo_Binario.SUBIR_BLOQUE)
+								.putShort((short) idBytes.length).put(idBytes).flip();
+					} else {
+						header = ByteBuffer.wrap(("/chunk " + id + " " + n + "\n").getBytes(StandardCharsets.UTF_8));
+					}
+					// cabecera y datos juntos, para que no se cuele otra línea en medio
+					ByteBuffer[] frame = { header, data };
+					synchronized (escritura) {
+						while (data.hasRemaining()) {
+							client.write(frame);
+						}
+					}
+					sent += n;
+				}
+				if (binario) {
+					writeFrame(client, new Protocolo_Binario.Trama(Protocolo_Binario.SUBIR_FIN).nombre(id)
+							.entero((int) crc.getValue()).fin());
+				} else {
+					writeLine(client, "/fileend " + id + " " + Long.toHexString(crc.getValue()));
+				}
+				System.out.println("DEBUG: Archivo " + file.getName() + " enviado (" + sent + " bytes).");
+			} catch (IOException e) {
+				System.err.println("Error al enviar archivo: " + e.getMessage());
+			}
+		}, "cliente-envio-" + id);
+		t.setDaemon(true);
+		t.start();
 	}
 
 	// Nuevo: hilo lector que imprime cada línea recibida y la encola
 	private static Thread startReaderThread(SocketChannel client, BlockingQueue<String> incoming) {
+		Lector_Lineas lector = new Lector_Lineas(MAX_LINEA);
+		lector.detectarFlujo("FILE_INCOMING|", 2);
+		Receptor receptor = new Receptor(lector, incoming);
 		Thread t = new Thread(() -> {
-			ByteBuffer buf = ByteBuffer.allocate(4096); // Aumentar buffer
-			StringBuilder sb = new StringBuilder();
 			try {
 				while (!Thread.currentThread().isInterrupted()) {
-					buf.clear();
-					int r = client.read(buf); // blocking read
+					int r = lector.leer(client); // blocking read
 					if (r == -1) {
 						System.out.println("Servidor cerró la conexión.");
 						break;
 					} else if (r > 0) {
-						buf.flip();
-						sb.append(StandardCharsets.UTF_8.decode(buf).toString());
-						int idx;
-						while ((idx = sb.indexOf("\n")) != -1) {
-							String line = sb.substring(0, idx).trim();
-							sb.delete(0, idx + 1);
-							
-							
-							// LÓGICA DE RECEPCIÓN Y DECODIFICACIÓN DE ARCHIVOS 
-							
-							if (line.startsWith("FILE_INCOMING|")) {
-								
-								// 1. Descomponer el protocolo: FILE_INCOMING|<sender>|<name>|<base64>
-								String[] parts = line.substring(14).split("\\|", 3);
-								if (parts.length == 3) {
-									String senderName = parts[0];
-									String fileName = parts[1];
-									String base64Content = parts[2].trim().replaceAll("\\s", "").replaceAll("[^a-zA-Z0-9+/=]", "");
-									
-									// 2. Decodificar Base64 a bytes
-									byte[] fileBytes = Base64.getDecoder().decode(base64Content);
-									
-									// 3. Guardar el archivo
-									try (FileOutputStream fos = new FileOutputStream("RECEIVED_" + fileName)) {
-										fos.write(fileBytes);
-										System.out.println("\n--- ARCHIVO RECIBIDO ---");
-										System.out.println("De: " + senderName);
-										System.out.println("Guardado como: RECEIVED_" + fileName + " (Tamaño: " + fileBytes.length / 1024 + " KB)");
-										System.out.println("------------------------\nEscribe entrada ->");
-										
-									} catch (IOException e) {
-										System.err.println("Error al guardar archivo: " + e.getMessage());
-									}
-								}
-								
-							} else {
-								// Mensajes de chat normales y comandos del servidor
-								System.out.println("Servidor: " + line);
-							}
-							// ==========================================================
-							
-							// intentar encolar sin bloquear indefinidamente
-							incoming.offer(line);
-						}
+						lector.extraer(receptor);
 					}
 				}
 			} catch (IOException e) {
 				// si ocurre error de E/S, terminar hilo
 			}
+			receptor.cerrar();
+			// corte sin que el usuario saliera: reconectar desde este mismo hilo
+			if (!saliendo && token != null && client == canal && !Thread.currentThread().isInterrupted()) {
+				try { client.close(); } catch (IOException ignore) {}
+				System.out.println("Conexión perdida; reconectando...");
+				reconectar(incoming);
+			}
 		}, "cliente-reader");
 		t.setDaemon(true);
+		hiloLector = t;
 		t.start();
 		return t;
 	}
 
+	// Archivo que se está recibiendo por bloques (FILE_BEGIN ... FILE_END)
+	private static final class Recepcion {
+		final String sender;
+		final String fileName;
+		final FileChannel fc;
+		final CRC32 crc = new CRC32();
+		long written;
+		// FILE_INCOMING: el Base64 que va llegando se decodifica aquí
+		Base64_Flujo base64;
+
+		Recepcion(String sender, String fileName, FileChannel fc) {
+			this.sender = sender;
+			this.fileName = fileName;
+			this.fc = fc;
+		}
+	}
+
+	// Decodifica Base64 a medida que llega, sin juntar el texto: cada carácter
+	// válido suma 6 bits y cada 8 bits sale un byte. Los saltos de línea, el
+	// relleno '=' y cualquier otro carácter se saltan.
+	private static final class Base64_Flujo {
+		private static final byte[] VALORES = new byte[256];
+
+		static {
+			Arrays.fill(VALORES, (byte) -1);
+			String alfabeto = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int i = 0; i < alfabeto.length(); i++) VALORES[alfabeto.charAt(i)] = (byte) i;
+		}
+
+		private final byte[] entrada = new byte[16 * 1024];
+		private final ByteBuffer salida = ByteBuffer.allocate(48 * 1024);
+		private int acumulado;
+		private int bits;
+
+		// Decodifica datos; lo que llena el buffer de salida se escribe en fc
+		long agregar(ByteBuffer datos, FileChannel fc) throws IOException {
+			long escritos = 0;
+			while (datos.hasRemaining()) {
+				int n = Math.min(entrada.length, datos.remaining());
+				datos.get(entrada, 0, n);
+				for (int i = 0; i < n; i++) {
+					int v = VALORES[entrada[i] & 0xFF];
+					if (v < 0) continue;
+					acumulado = (acumulado << 6) | v;
+					bits += 6;
+					if (bits >= 8) {
+						bits -= 8;
+						salida.put((byte) (acumulado >> bits));
+						acumulado &= (1 << bits) - 1;
+						if (!salida.hasRemaining()) escritos += vaciar(fc);
+					}
+				}
+			}
+			return escritos;
+		}
+
+		// Escribe lo decodificado que quede (al final de la línea)
+		long vaciar(FileChannel fc) throws IOException {
+			salida.flip();
+			long escritos = 0;
+			while (salida.hasRemaining()) escritos += fc.write(salida);
+			salida.clear();
+			return escritos;
+		}
+	}
+
+	// Procesa lo que llega del servidor: líneas de texto y bloques de archivo
+	private static final class Receptor implements Lector_Lineas.Receptor {
+		private final Lector_Lineas lector;
+		private final BlockingQueue<String> incoming;
+		private final Map<String, Recepcion> receiving = new HashMap<>();
+		// transferencia a la que pertenece el próximo bloque binario
+		private Recepcion nextChunk;
+		// el próximo bloque binario es un ZLIB| de estos bytes descomprimidos
+		private int nextZlib;
+		// FILE_INCOMING que se está recibiendo en flujo
+		private Recepcion entrante;
+		private final Compresion.Descompresor descompresor = new Compresion.Descompresor();
+
+		Receptor(Lector_Lineas lector, BlockingQueue<String> incoming) {
+			this.lector = lector;
+			this.incoming = incoming;
+		}
+
+		@Override
+		public boolean linea(String line) {
+			if (line.startsWith(Registro_Sesiones.MARCA)) {
+				// SEQ|<chat>|<seq>: número del mensaje que sigue (no se muestra)
+				String[] parts = line.substring(Registro_Sesiones.MARCA.length()).split("\\|");
+				visto(Integer.parseInt(parts[0].trim()), Long.parseLong(parts[1].trim()));
+				return true;
+			}
+			if (line.startsWith(Registro_Sesiones.PEDIDO + " ")) {
+				token = line.substring(Registro_Sesiones.PEDIDO.length() + 1).trim();
+				encolar(line);
+				return true;
+			}
+			if (line.startsWith(Registro_Sesiones.REANUDADA + " ")) {
+				// REANUDADA <id> <nombre>; si era binaria, lo que sigue ya son tramas
+				if (binario) lector.usarTramas();
+				String[] parts = line.split(" ", 3);
+				System.out.println("Sesión reanudada: eres " + (parts.length == 3 ? parts[2] : "?"));
+				encolar(line);
+				return true;
+			}
+			if (binario && line.equals(Protocolo_Binario.ACEPTADO)) {
+				// lo que sigue ya son tramas
+				lector.usarTramas();
+				encolar(line);
+				return true;
+			}
+
+			if (line.startsWith(Compresion.CABECERA)) {
+				// ZLIB|<comprimidos>|<originales> seguido de los bytes comprimidos
+				String[] parts = line.substring(Compresion.CABECERA.length()).split("\\|");
+				nextZlib = Integer.parseInt(parts[1].trim());
+				lector.esperarBinario(Integer.parseInt(parts[0].trim()));
+				return true;
+			}
+
+			// LÓGICA DE RECEPCIÓN Y DECODIFICACIÓN DE ARCHIVOS
+
+			if (line.startsWith("FILE_BEGIN|")) {
+				// FILE_BEGIN|<id>|<sender>|<size>|<name>
+				String[] parts = line.substring(11).split("\\|", 4);
+				if (parts.length == 4) {
+					abrirRecepcion(parts[0], parts[1], Long.parseLong(parts[2].trim()), parts[3]);
+				}
+				return true;
+			} else if (line.startsWith("FILE_CHUNK|")) {
+				// FILE_CHUNK|<id>|<n> seguido de n bytes crudos
+				String[] parts = line.substring(11).split("\\|");
+				nextChunk = receiving.get(parts[0]);
+				lector.esperarBinario(Integer.parseInt(parts[1].trim()));
+				return true;
+			} else if (line.startsWith("FILE_END|") || line.startsWith("FILE_ABORT|")) {
+				boolean ok = line.startsWith("FILE_END|");
+				String[] parts = line.substring(ok ? 9 : 11).split("\\|", 2);
+				terminarRecepcion(parts[0], ok, parts.length == 2 ? parts[1].trim() : null);
+				return true;
+			} else if (line.startsWith("FILE_INCOMING|")) {
+				// Formato antiguo dentro de un bloque comprimido: llega la
+				// línea entera, pero se procesa igual que en flujo
+				int cabecera = line.indexOf('|', line.indexOf('|', 14) + 1) + 1;
+				if (cabecera > 0) {
+					inicioFlujo(line.substring(0, cabecera));
+					datosFlujo(ByteBuffer.wrap(line.substring(cabecera).getBytes(StandardCharsets.US_ASCII)));
+					finFlujo();
+				}
+				return true;
+			} else {
+				// Mensajes de chat normales y comandos del servidor
+				System.out.println("Servidor: " + line);
+			}
+
+			encolar(line);
+			return true;
+		}
+
+		// Sólo mientras alguien espera una respuesta; sin bloquear (si la cola
+		// está llena, la línea ya se mostró y se pierde sólo para la espera)
+		private void encolar(String line) {
+			if (negociando) incoming.offer(line);
+		}
+
+		// Formato antiguo: FILE_INCOMING|<sender>|<name>|<base64>, todo en una
+		// línea. El Lector_Lineas la entrega por partes y el Base64 se
+		// decodifica directo al archivo: nunca está entero en memoria.
+		@Override
+		public void inicioFlujo(String cabecera) {
+			String[] parts = cabecera.substring(14).split("\\|", -1);
+			if (parts.length < 3) return;
+			String fileName = new File(parts[1]).getName();
+			try {
+				FileChannel fc = FileChannel.open(Paths.get("RECEIVED_" + fileName),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				entrante = new Recepcion(parts[0], fileName, fc);
+				entrante.base64 = new Base64_Flujo();
+			} catch (IOException e) {
+				System.err.println("Error al guardar archivo: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void datosFlujo(ByteBuffer datos) {
+			Recepcion rec = entrante;
+			if (rec == null) return;
+			try {
+				rec.written += rec.base64.agregar(datos, rec.fc);
+			} catch (IOException e) {
+				System.err.println("Error al guardar archivo: " + e.getMessage());
+				entrante = null;
+				try { rec.fc.close(); } catch (IOException ignore) {}
+			}
+		}
+
+		@Override
+		public void finFlujo() {
+			Recepcion rec = entrante;
+			entrante = null;
+			if (rec == null) return;
+			try {
+				rec.written += rec.base64.vaciar(rec.fc);
+				rec.fc.close();
+				System.out.println("\n--- ARCHIVO RECIBIDO ---");
+				System.out.println("De: " + rec.sender);
+				System.out.println("Guardado como: RECEIVED_" + rec.fileName + " (Tamaño: " + rec.written / 1024 + " KB)");
+				System.out.println("------------------------\nEscribe entrada ->");
+			} catch (IOException e) {
+				System.err.println("Error al guardar archivo: " + e.getMessage());
+				try { rec.fc.close(); } catch (IOException ignore) {}
+			}
+		}
+
+		@Override
+		public void lineaDemasiadoLarga(int maximo) {
+			System.err.println("Línea del servidor descartada (> " + maximo + " bytes).");
+		}
+
+		// Tramas del protocolo binario
+		@Override
+		public boolean trama(ByteBuffer t) {
+			byte codigo = t.get();
+			switch (codigo) {
+			case Protocolo_Binario.BIENVENIDA: {
+				int id = t.getInt();
+				String nombre = Protocolo_Binario.leerNombre(t);
+				nombres.put(id, nombre);
+				System.out.println("Servidor: eres " + nombre + " (id " + id + ")");
+				break;
+			}
+			case Protocolo_Binario.USUARIOS: {
+				int n = t.getInt();
+				System.out.println("Usuarios (id - nombre):");
+				for (int i = 0; i < n; i++) {
+					int id = t.getInt();
+					String nombre = Protocolo_Binario.leerNombre(t);
+					nombres.put(id, nombre);
+					System.out.println(id + " - " + nombre);
+				}
+				break;
+			}
+			case Protocolo_Binario.CHATS: {
+				int n = t.getInt();
+				System.out.println("Chats (id - nombre):");
+				for (int i = 0; i < n; i++) {
+					int id = t.getInt();
+					int miembros = t.getInt();
+					System.out.println(id + " - " + Protocolo_Binario.leerNombre(t) + " (miembros: " + miembros + ")");
+				}
+				break;
+			}
+			case Protocolo_Binario.EN_CHAT: {
+				int id = t.getInt();
+				String chat = Protocolo_Binario.leerNombre(t);
+				int n = t.getInt();
+				StringBuilder sb = new StringBuilder("Entrando al chat " + chat + " (id " + id + "). Miembros:");
+				for (int i = 0; i < n; i++) {
+					int uid = t.getInt();
+					String nombre = Protocolo_Binario.leerNombre(t);
+					nombres.put(uid, nombre);
+					sb.append(' ').append(nombre);
+				}
+				System.out.println(sb.append("\nPara volver al menu escribe MEN0"));
+				enChat = true;
+				break;
+			}
+			case Protocolo_Binario.MENSAJE_CHAT: {
+				t.getInt(); // chat
+				String de = nombre(t.getInt());
+				System.out.println(de + " : " + Protocolo_Binario.leerResto(t));
+				break;
+			}
+			case Protocolo_Binario.PRIVADO_DE: {
+				String de = nombre(t.getInt());
+				System.out.println("[PRIVADO de " + de + "] : " + Protocolo_Binario.leerResto(t));
+				break;
+			}
+			case Protocolo_Binario.AVISO:
+				t.getInt(); // chat
+				System.out.println(Protocolo_Binario.leerResto(t));
+				break;
+			case Protocolo_Binario.TEXTO:
+				System.out.println("Servidor: " + Protocolo_Binario.leerResto(t));
+				break;
+			case Protocolo_Binario.HISTORIAL: {
+				int chat = t.getInt();
+				long primero = t.getLong();
+				int n = t.getInt();
+				if (n > 0) visto(chat, primero + n - 1);
+				for (int i = 0; i < n; i++) System.out.println(Protocolo_Binario.leerTextoLargo(t));
+				if (primero > 0) System.out.println("(Hay " + primero + " mensajes anteriores. Escribe /historial [n] para verlos)");
+				break;
+			}
+			case Protocolo_Binario.MIEMBRO: {
+				t.getInt(); // chat
+				int uid = t.getInt();
+				boolean entra = t.get() == 1;
+				String nombre = Protocolo_Binario.leerNombre(t);
+				nombres.put(uid, nombre);
+				System.out.println(nombre + (entra ? " se unió al chat" : " ha salido del chat"));
+				break;
+			}
+			case Protocolo_Binario.PRESENCIA: {
+				int n = t.getInt();
+				StringBuilder sb = new StringBuilder("[Presencia]");
+				for (int i = 0; i < n; i++) {
+					int uid = t.getInt();
+					boolean enLinea = t.get() == 1;
+					String nombre = Protocolo_Binario.leerNombre(t);
+					nombres.put(uid, nombre);
+					sb.append(' ').append(nombre).append(enLinea ? " (en línea)" : " (desconectado)");
+				}
+				System.out.println(sb);
+				break;
+			}
+			case Protocolo_Binario.ARCHIVO_INICIO: {
+				String id = Long.toString(t.getLong());
+				String de = nombre(t.getInt());
+				long tamano = t.getLong();
+				abrirRecepcion(id, de, tamano, Protocolo_Binario.leerNombre(t));
+				break;
+			}
+			case Protocolo_Binario.ARCHIVO_BLOQUE:
+				nextChunk = receiving.get(Long.toString(t.getLong()));
+				bloque(t.slice());
+				break;
+			case Protocolo_Binario.COMPRIMIDO: {
+				int originales = t.getInt();
+				return descomprimir(t, originales, true);
+			}
+			case Protocolo_Binario.SECUENCIA: {
+				int chat = t.getInt();
+				visto(chat, t.getLong());
+				break;
+			}
+			case Protocolo_Binario.ARCHIVO_FIN: {
+				String id = Long.toString(t.getLong());
+				terminarRecepcion(id, true, Long.toHexString(t.getInt() & 0xFFFFFFFFL));
+				break;
+			}
+			default:
+				System.err.println("Trama desconocida: 0x" + Integer.toHexString(codigo & 0xFF));
+			}
+			return true;
+		}
+
+		// FILE_BEGIN / ARCHIVO_INICIO: el archivo se escribe a medida que llegan bloques
+		private void abrirRecepcion(String id, String sender, long size, String name) {
+			String fileName = new File(name).getName();
+			try {
+				FileChannel fc = FileChannel.open(Paths.get("RECEIVED_" + fileName),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				receiving.put(id, new Recepcion(sender, fileName, fc));
+				System.out.println("DEBUG: Recibiendo " + fileName + " de " + sender + " (" + size + " bytes)...");
+			} catch (IOException e) {
+				System.err.println("Error al crear archivo: " + e.getMessage());
+			}
+		}
+
+		// FILE_END / ARCHIVO_FIN (ok) o FILE_ABORT: cerrar y comprobar el CRC32
+		private void terminarRecepcion(String id, boolean ok, String detalle) {
+			Recepcion rec = receiving.remove(id);
+			if (rec == null) return;
+			try { rec.fc.close(); } catch (IOException ignore) {}
+			String crc = Long.toHexString(rec.crc.getValue());
+			if (ok && detalle != null && crc.equalsIgnoreCase(detalle)) {
+				System.out.println("\n--- ARCHIVO RECIBIDO ---");
+				System.out.println("De: " + rec.sender);
+				System.out.println("Guardado como: RECEIVED_" + rec.fileName + " (Tamaño: " + rec.written / 1024 + " KB)");
+				System.out.println("------------------------\nEscribe entrada ->");
+			} else {
+				System.err.println("Archivo " + rec.fileName + " no recibido: "
+						+ (ok ? "checksum distinto" : (detalle != null ? detalle : "abortado")));
+			}
+		}
+
+		// Último mensaje visto del chat (las páginas de /historial son anteriores)
+		private void visto(int chat, long seq) {
+			vistos.merge(chat, seq, Math::max);
+		}
+
+		// Conexión terminada: las recepciones a medias no se completarán
+		void cerrar() {
+			if (entrante != null) {
+				try { entrante.fc.close(); } catch (IOException ignore) {}
+				entrante = null;
+			}
+			for (Recepcion rec : receiving.values()) {
+				try { rec.fc.close(); } catch (IOException ignore) {}
+			}
+			receiving.clear();
+		}
+
+		private String nombre(int id) {
+			String n = nombres.get(id);
+			return n != null ? n : (id == 0 ? "almacen" : "#" + id);
+		}
+
+		// Un bloque comprimido trae líneas o tramas completas: se procesan igual
+		// que si hubieran llegado sueltas
+		private boolean descomprimir(ByteBuffer datos, int originales, boolean tramas) {
+			try {
+				return Compresion.Descompresor.entregar(descompresor.inflar(datos, originales), tramas, this);
+			} catch (DataFormatException e) {
+				System.err.println("Bloque comprimido inválido: " + e.getMessage());
+				return true;
+			}
+		}
+
+		@Override
+		public void bloque(ByteBuffer datos) {
+			if (nextZlib > 0) {
+				int originales = nextZlib;
+				nextZlib = 0;
+				descomprimir(datos, originales, false);
+				return;
+			}
+			// los bytes van directo al archivo
+			Recepcion rec = nextChunk;
+			nextChunk = null;
+			if (rec == null) return;
+			try {
+				rec.crc.update(datos.duplicate());
+				while (datos.hasRemaining()) {
+					rec.written += rec.fc.write(datos);
+				}
+			} catch (IOException e) {
+				System.err.println("Error al escribir archivo: " + e.getMessage());
+			}
+		}
+	}
+
 	// Nuevo: recoge líneas desde la cola hasta encontrar alguna que coincida con algún patrón
 	private static String collectUntilMatch(BlockingQueue<String> incoming, String[] patterns, long timeoutMs) {
 		StringBuilder sb = new StringBuilder();
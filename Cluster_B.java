@@ -0,0 +1,713 @@
+/*
+ * Cluster_B.java
+ * Modo cluster: varios procesos servidor, cada uno con sus propias conexiones.
+ *
+ * Se activa con -Dchat.cluster=1=host:puerto,2=host:puerto,... (los nodos y
+ * su puerto de enlace; la misma lista en todos) y -Dchat.nodo=<id> (cuál es
+ * este proceso). Cada nodo escucha a sus pares en su puerto de enlace y abre
+ * una conexión TCP hacia cada uno. Por ella manda, en orden, tramas con el
+ * formato del protocolo binario ([int largo][byte código][contenido]); un
+ * hilo por par las junta y las escribe por lotes. Sin intermediarios: sólo
+ * los procesos servidor.
+ *
+ * Cada chat tiene un nodo dueño, elegido por hashing consistente del nombre
+ * (un anillo con -Dchat.clusterVirtuales puntos por nodo, por defecto 64).
+ * El dueño ordena el chat: los demás nodos le pasan los mensajes, altas y
+ * bajas de sus usuarios; él los guarda, los difunde a sus conexiones y los
+ * reenvía como eventos a todos los nodos. Cada nodo tiene una réplica del
+ * chat (miembros e historial) a la que aplica los eventos en el actor del
+ * chat y entrega a sus conexiones; entrar a un chat y /historial siguen
+ * siendo locales. El nombre de un chat nuevo lo reserva su dueño.
+ *
+ * Cada nodo anuncia además qué usuarios tiene conectados: con eso se
+ * listan los usuarios de todo el cluster, Presencia avisa de los de otros
+ * nodos y /priv llega al nodo del destinatario. Un privado para alguien
+ * desconectado queda en el buzón del nodo que lo recibió y se reenvía
+ * cuando el usuario se conecta en cualquier nodo.
+ *
+ * Cada enlace de salida acota lo que tiene encolado (-Dchat.clusterCola, en
+ * bytes, por defecto 64 MB): si un par no lee (colgado pero con el socket
+ * abierto) y se pasa el tope, el enlace se corta y se reconecta, y las
+ * tramas que queden se pierden como en cualquier caída del enlace.
+ *
+ * Seguridad: el enlace no está autenticado ni cifrado. Cada nodo escucha
+ * sólo en el host que tiene en -Dchat.cluster y acepta a un par sólo si su
+ * HOLA trae el id de otro nodo de la lista y la conexión viene de una
+ * dirección de ese nodo; aun así, quien pueda conectarse desde esa máquina
+ * puede hacerse pasar por él y mandar mensajes en nombre de cualquier
+ * usuario. El puerto de enlace debe quedar en una red de confianza.
+ *
+ * Límites: si el dueño de un chat no está disponible, los mensajes sólo se
+ * reparten dentro de cada nodo (y no se pueden crear chats que le toquen).
+ * Un nodo que arranca tarde recibe los chats y sus miembros, no el
+ * historial anterior. Los archivos (/file, /fileinit) no pasan entre nodos.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+public final class Cluster_B {
+
+	// ---- Tramas entre nodos ----
+	private static final byte HOLA = 0x01; // int nodo (también como latido)
+	private static final byte USUARIO = 0x02; // int usuario, byte 2 conectado aquí y autenticado / 1 sin autenticar / 0 no, nombre
+	private static final byte CHAT = 0x03; // int chat, nombre, int n, (int usuario, nombre) * n
+	// nodo -> dueño del chat
+	private static final byte PEDIR_MENSAJE = 0x10; // int chat, int usuario, nombre, resto
+	private static final byte PEDIR_MIEMBRO = 0x11; // int chat, int usuario, nombre, byte 1 entra / 0 sale
+	private static final byte PEDIR_CREAR = 0x12; // long pedido, nombre chat, int creador, nombre, int n, int usuario * n
+	private static final byte CREADO = 0x13; // long pedido, int chat (0: nombre ocupado, SIN_HISTORIAL)
+	// dueño del chat -> todos los nodos
+	private static final byte MENSAJE = 0x20; // int chat, int usuario, nombre, texto largo (línea guardada), resto
+	private static final byte MIEMBRO = 0x21; // int chat, int usuario, nombre, byte 1 entra / 0 sale
+	// al nodo del destinatario
+	private static final byte PRIVADO = 0x30; // int destino, int emisor, nombre, texto largo (línea guardada), resto
+	private static final byte BUZON = 0x31; // int destino, int n, texto largo * n
+
+	// Respuesta de CREADO: el dueño no pudo abrir el historial del chat
+	public static final int SIN_HISTORIAL = -2;
+
+	private static final int VIRTUALES = Math.max(1, Integer.getInteger("chat.clusterVirtuales", 64));
+	// Espera antes de escribir, para juntar más tramas en el lote (microsegundos)
+	private static final long ESPERA_NANOS = Math.max(0, Long.getLong("chat.clusterEspera", 200)) * 1000;
+	private static final int LOTE = 256;
+	private static final int MAX_BYTES_LOTE = 256 * 1024;
+	private static final int MAX_TRAMA = 64 * 1024 * 1024;
+	private static final long MAX_COLA = Math.max(MAX_BYTES_LOTE, Long.getLong("chat.clusterCola", 64L * 1024 * 1024));
+	// Sin tráfico, cada cuánto se manda un latido (así se nota un par caído)
+	private static final long LATIDO_NANOS = 1_000_000_000L;
+	private static final long REINTENTO_MILLIS = 1000;
+
+	private static final class Nodo {
+		final int id;
+		final String host;
+		final int puerto;
+
+		Nodo(int id, String host, int puerto) {
+			this.id = id;
+			this.host = host;
+			this.puerto = puerto;
+		}
+
+		@Override
+		public String toString() {
+			return id + "=" + host + ":" + puerto;
+		}
+	}
+
+	// Configuración (igual en todos los nodos); vacía fuera del modo cluster
+	private static final List<Nodo> nodos = new ArrayList<>();
+	private static final Nodo yo;
+	private static final String errorConfiguracion;
+	// Anillo de hashing consistente: punto -> nodo (sólo se lee tras cargarlo)
+	private static final TreeMap<Integer, Nodo> anillo = new TreeMap<>();
+
+	// Enlaces de salida, uno por cada otro nodo
+	private static final Map<Integer, Enlace> enlaces = new TreeMap<>();
+	// Usuario -> nodo en el que está conectado (sólo usuarios de otros nodos)
+	private static final ConcurrentHashMap<Integer, Integer> nodoDeUsuario = new ConcurrentHashMap<>();
+	// Nodo -> hilo lector vigente de su conexión entrante
+	private static final ConcurrentHashMap<Integer, Thread> lectores = new ConcurrentHashMap<>();
+
+	// "Crear chat" esperando la respuesta del dueño
+	private static final class Pedido {
+		final int nodo;
+		final IntConsumer respuesta;
+
+		Pedido(int nodo, IntConsumer respuesta) {
+			this.nodo = nodo;
+			this.respuesta = respuesta;
+		}
+	}
+
+	private static final ConcurrentHashMap<Long, Pedido> pedidos = new ConcurrentHashMap<>();
+	private static final AtomicLong siguientePedido = new AtomicLong(1);
+
+	static {
+		String lista = System.getProperty("chat.cluster", "").trim();
+		Nodo propio = null;
+		String error = null;
+		if (!lista.isEmpty()) {
+			try {
+				for (String parte : lista.split(",")) {
+					String p = parte.trim();
+					int igual = p.indexOf('=');
+					int dosPuntos = p.lastIndexOf(':');
+					if (igual < 1 || dosPuntos < igual) throw new IllegalArgumentException("nodo mal escrito: " + p);
+					nodos.add(new Nodo(Integer.parseInt(p.substring(0, igual).trim()), p.substring(igual + 1, dosPuntos).trim(),
+							Integer.parseInt(p.substring(dosPuntos + 1).trim())));
+				}
+				nodos.sort((a, b) -> Integer.compare(a.id, b.id));
+				Integer id = Integer.getInteger("chat.nodo");
+				if (id == null) throw new IllegalArgumentException("falta -Dchat.nodo=<id>");
+				for (Nodo n : nodos) {
+					if (n.id == id) propio = n;
+					for (int v = 0; v < VIRTUALES; v++) anillo.put(hash(n.id + "#" + v), n);
+				}
+				if (propio == null) throw new IllegalArgumentException("el nodo " + id + " no está en -Dchat.cluster");
+			} catch (IllegalArgumentException e) {
+				error = e.getMessage();
+				nodos.clear();
+				anillo.clear();
+				propio = null;
+			}
+		}
+		yo = propio;
+		errorConfiguracion = error;
+	}
+
+	private Cluster_B() {
+	}
+
+	public static boolean isActivo() {
+		return yo != null;
+	}
+
+	// Cantidad de nodos y posición de este (para repartir ids sin repetir)
+	public static int cantidad() {
+		return isActivo() ? nodos.size() : 1;
+	}
+
+	public static int posicion() {
+		return isActivo() ? nodos.indexOf(yo) : 0;
+	}
+
+	public static int getNodo() {
+		return isActivo() ? yo.id : 0;
+	}
+
+	// Arranca la escucha de los pares y los enlaces hacia ellos
+	public static void iniciar() throws IOException {
+		if (errorConfiguracion != null) throw new IllegalArgumentException("-Dchat.cluster: " + errorConfiguracion);
+		if (!isActivo()) return;
+		ServerSocket escucha = new ServerSocket();
+		escucha.setReuseAddress(true);
+		escucha.bind(new InetSocketAddress(yo.host, yo.puerto));
+		Thread t = new Thread(() -> aceptar(escucha), "cluster-escucha");
+		t.setDaemon(true);
+		t.start();
+		for (Nodo n : nodos) {
+			if (n == yo) continue;
+			Enlace e = new Enlace(n);
+			enlaces.put(n.id, e);
+			e.iniciar();
+		}
+	}
+
+	// ---- Dueños de los chats ----
+
+	// Nodo dueño de un chat: el primer punto del anillo desde el hash del nombre
+	private static Nodo dueno(String nombreChat) {
+		Map.Entry<Integer, Nodo> e = anillo.ceilingEntry(hash(nombreChat.trim().toLowerCase(Locale.ROOT)));
+		return e != null ? e.getValue() : anillo.firstEntry().getValue();
+	}
+
+	// true si el chat le toca a otro nodo
+	public static boolean esRemoto(String nombreChat) {
+		return isActivo() && dueno(nombreChat) != yo;
+	}
+
+	// FNV-1a de 32 bits con mezcla final (murmur3): reparte bien claves parecidas
+	private static int hash(String clave) {
+		int h = 0x811C9DC5;
+		for (byte b : clave.getBytes(StandardCharsets.UTF_8)) {
+			h = (h ^ (b & 0xFF)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	// ---- Usuarios de otros nodos ----
+
+	public static boolean enOtroNodo(int idUsuario) {
+		return isActivo() && nodoDeUsuario.containsKey(idUsuario);
+	}
+
+	// Un usuario de este nodo se conectó o desconectó: se anuncia su estado
+	// actual (el que tenga al escribirse el lote) a todos los nodos
+	public static void usuarioCambiado(Usuario u) {
+		if (!isActivo()) return;
+		for (Enlace e : enlaces.values()) e.anunciar(u);
+	}
+
+	// ---- Pedidos al dueño (false: el chat es de este nodo o su dueño no está) ----
+
+	public static boolean pedirMensaje(Chat_Grupal chat, Usuario u, String texto) {
+		Enlace e = enlaceDueno(chat.getNombre());
+		return e != null && e.enviar(new Protocolo_Binario.Trama(PEDIR_MENSAJE, 12 + texto.length()).entero(chat.getId())
+				.entero(u.getId()).nombre(u.getNombre()).resto(texto).fin());
+	}
+
+	public static boolean pedirMiembro(Chat_Grupal chat, Usuario u, boolean entra) {
+		Enlace e = enlaceDueno(chat.getNombre());
+		return e != null && e.enviar(new Protocolo_Binario.Trama(PEDIR_MIEMBRO).entero(chat.getId()).entero(u.getId())
+				.nombre(u.getNombre()).octeto(entra ? 1 : 0).fin());
+	}
+
+	// Pide al dueño que cree el chat. respuesta recibe el id del chat ya
+	// registrado aquí, 0 si el nombre estaba ocupado, SIN_HISTORIAL o -1 si se
+	// perdió el enlace; se llama desde un hilo del cluster, no desde el
+	// reactor de quien pidió.
+	public static boolean pedirCrear(String nombre, Usuario creador, List<Integer> ids, IntConsumer respuesta) {
+		Enlace e = enlaceDueno(nombre);
+		if (e == null) return false;
+		long pedido = siguientePedido.getAndIncrement();
+		Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(PEDIR_CREAR, 32 + ids.size() * 4).largo(pedido).nombre(nombre)
+				.entero(creador.getId()).nombre(creador.getNombre()).entero(ids.size());
+		for (int id : ids) t.entero(id);
+		pedidos.put(pedido, new Pedido(e.nodo.id, respuesta));
+		if (e.enviar(t.fin())) return true;
+		pedidos.remove(pedido);
+		return false;
+	}
+
+	// Privado para un usuario conectado en otro nodo; false si no lo está
+	public static boolean pedirPrivado(int destino, Usuario emisor, String linea, String texto) {
+		if (!isActivo()) return false;
+		Integer nodo = nodoDeUsuario.get(destino);
+		Enlace e = nodo == null ? null : enlaces.get(nodo);
+		return e != null && e.enviar(new Protocolo_Binario.Trama(PRIVADO, 16 + linea.length() + texto.length()).entero(destino)
+				.entero(emisor.getId()).nombre(emisor.getNombre()).textoLargo(linea).resto(texto).fin());
+	}
+
+	private static Enlace enlaceDueno(String nombreChat) {
+		if (!isActivo()) return null;
+		Nodo d = dueno(nombreChat);
+		return d == yo ? null : enlaces.get(d.id);
+	}
+
+	// ---- Eventos del dueño para las réplicas ----
+
+	// Un chat nuevo (o ya existente, al reconectar) con sus miembros
+	public static void eventoChat(Chat_Grupal chat) {
+		if (isActivo()) aTodos(tramaChat(chat));
+	}
+
+	public static void eventoMensaje(Chat_Grupal chat, Usuario u, String linea, String texto) {
+		if (!isActivo()) return;
+		aTodos(new Protocolo_Binario.Trama(MENSAJE, 16 + linea.length() + texto.length()).entero(chat.getId()).entero(u.getId())
+				.nombre(u.getNombre()).textoLargo(linea).resto(texto).fin());
+	}
+
+	public static void eventoMiembro(Chat_Grupal chat, Usuario u, boolean entra) {
+		if (!isActivo()) return;
+		aTodos(new Protocolo_Binario.Trama(MIEMBRO).entero(chat.getId()).entero(u.getId()).nombre(u.getNombre())
+				.octeto(entra ? 1 : 0).fin());
+	}
+
+	// Una sola trama de sólo lectura; cada enlace lleva su propia posición
+	private static void aTodos(ByteBuffer trama) {
+		ByteBuffer compartida = trama.asReadOnlyBuffer();
+		for (Enlace e : enlaces.values()) e.enviar(compartida.duplicate());
+	}
+
+	private static ByteBuffer tramaChat(Chat_Grupal chat) {
+		List<Usuario> miembros = chat.getMiembros();
+		Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(CHAT, 32 + miembros.size() * 16).entero(chat.getId())
+				.nombre(chat.getNombre()).entero(miembros.size());
+		for (Usuario m : miembros) t.entero(m.getId()).nombre(m.getNombre());
+		return t.fin();
+	}
+
+	private static ByteBuffer tramaUsuario(Usuario u) {
+		Conexion c = u.getConexion();
+		return new Protocolo_Binario.Trama(USUARIO).entero(u.getId()).octeto(c == null ? 0 : c.isAutenticada() ? 2 : 1)
+				.nombre(u.getNombre()).fin();
+	}
+
+	// ---- Recepción ----
+
+	private static void aceptar(ServerSocket escucha) {
+		while (true) {
+			Socket s;
+			try {
+				s = escucha.accept();
+				s.setTcpNoDelay(true);
+			} catch (IOException e) {
+				Bitacora_B.evento("cluster", "Error aceptando un nodo: " + e.getMessage());
+				continue;
+			}
+			Thread t = new Thread(() -> leer(s), "cluster-entrada");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	// Hilo lector de un par: la primera trama es HOLA con su id
+	private static void leer(Socket s) {
+		int origen = -1;
+		try (Socket socket = s) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			while (true) {
+				int largo = in.readInt();
+				if (largo < 1 || largo > MAX_TRAMA) throw new IOException("trama de " + largo + " bytes");
+				byte[] datos = new byte[largo];
+				in.readFully(datos);
+				ByteBuffer t = ByteBuffer.wrap(datos);
+				Metricas_B.clusterRecibidas.increment();
+				if (origen < 0) {
+					if (t.get() != HOLA) throw new IOException("se esperaba HOLA");
+					int id = t.getInt();
+					if (!esPar(id, socket.getInetAddress())) throw new IOException("HOLA de un nodo desconocido: " + id);
+					origen = id;
+					lectores.put(origen, Thread.currentThread());
+					Bitacora_B.evento("cluster", "Nodo " + origen + " conectado desde " + socket.getRemoteSocketAddress());
+					continue;
+				}
+				try {
+					recibir(origen, t);
+				} catch (BufferUnderflowException | IllegalArgumentException e) {
+					Bitacora_B.evento("cluster", "Trama mal formada del nodo " + origen + ": " + e);
+				}
+			}
+		} catch (EOFException e) {
+			// el par cerró
+		} catch (IOException e) {
+			Bitacora_B.evento("cluster", "Enlace desde el nodo " + origen + " cerrado: " + e.getMessage());
+		}
+		if (origen >= 0 && lectores.remove(origen, Thread.currentThread())) nodoCaido(origen);
+	}
+
+	// true si id es otro nodo de la lista y la conexión viene de su host
+	private static boolean esPar(int id, InetAddress remota) {
+		for (Nodo n : nodos) {
+			if (n.id != id) continue;
+			if (n == yo) return false;
+			try {
+				for (InetAddress a : InetAddress.getAllByName(n.host)) {
+					if (a.equals(remota)) return true;
+				}
+			} catch (UnknownHostException e) {
+				Bitacora_B.evento("cluster", "No se pudo resolver el host del nodo " + n + ": " + e.getMessage());
+			}
+			return false;
+		}
+		return false;
+	}
+
+	// Sin conexión entrante de un nodo: sus usuarios pasan a desconectados
+	private static void nodoCaido(int nodo) {
+		Bitacora_B.evento("cluster", "Nodo " + nodo + " desconectado");
+		for (Map.Entry<Integer, Integer> e : nodoDeUsuario.entrySet()) {
+			if (e.getValue() != nodo || !nodoDeUsuario.remove(e.getKey(), nodo)) continue;
+			Usuario u = Servidor_B.buscarUsuario(e.getKey());
+			if (u != null) Servidor_B.presenciaRemota(u, false);
+		}
+	}
+
+	private static void recibir(int origen, ByteBuffer t) {
+		byte codigo = t.get();
+		switch (codigo) {
+		case HOLA:
+			return;
+		case USUARIO: {
+			int id = t.getInt();
+			byte estado = t.get();
+			boolean conectado = estado != 0;
+			Usuario u = Servidor_B.usuarioRemoto(id, Protocolo_Binario.leerNombre(t));
+			if (conectado) {
+				nodoDeUsuario.put(id, origen);
+				// lo que se le guardó aquí mientras no estaba (sólo si entró autenticado)
+				Enlace e = enlaces.get(origen);
+				if (estado == 2 && e != null && Buzon_Privado.pendientes(id) > 0) {
+					Buzon_Privado.reenviar(id, mensajes -> e.enviar(tramaBuzon(id, mensajes)));
+				}
+			} else if (!nodoDeUsuario.remove(id, origen)) {
+				return; // ya estaba en otro nodo
+			}
+			Servidor_B.presenciaRemota(u, conectado);
+			return;
+		}
+		case CHAT: {
+			int id = t.getInt();
+			String nombre = Protocolo_Binario.leerNombre(t);
+			int n = t.getInt();
+			List<Usuario> miembros = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				int uid = t.getInt();
+				miembros.add(Servidor_B.usuarioRemoto(uid, Protocolo_Binario.leerNombre(t)));
+			}
+			Servidor_B.chatRemoto(id, nombre, miembros);
+			return;
+		}
+		case PEDIR_MENSAJE:
+		case MENSAJE: {
+			Chat_Grupal chat = Servidor_B.buscarChat(t.getInt());
+			int uid = t.getInt();
+			Usuario u = Servidor_B.usuarioRemoto(uid, Protocolo_Binario.leerNombre(t));
+			if (chat == null) return;
+			if (codigo == PEDIR_MENSAJE) {
+				Servidor_B.mensajePedido(chat, u, Protocolo_Binario.leerResto(t));
+			} else {
+				String linea = Protocolo_Binario.leerTextoLargo(t);
+				Servidor_B.mensajeRemoto(chat, u, linea, Protocolo_Binario.leerResto(t));
+			}
+			return;
+		}
+		case PEDIR_MIEMBRO:
+		case MIEMBRO: {
+			Chat_Grupal chat = Servidor_B.buscarChat(t.getInt());
+			int uid = t.getInt();
+			Usuario u = Servidor_B.usuarioRemoto(uid, Protocolo_Binario.leerNombre(t));
+			boolean entra = t.get() == 1;
+			if (chat == null) return;
+			if (codigo == PEDIR_MIEMBRO) {
+				Servidor_B.miembroPedido(chat, u, entra);
+			} else {
+				Servidor_B.miembroRemoto(chat, u, entra);
+			}
+			return;
+		}
+		case PEDIR_CREAR: {
+			long pedido = t.getLong();
+			String nombre = Protocolo_Binario.leerNombre(t);
+			int uid = t.getInt();
+			Usuario creador = Servidor_B.usuarioRemoto(uid, Protocolo_Binario.leerNombre(t));
+			int n = t.getInt();
+			List<Integer> ids = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) ids.add(t.getInt());
+			// el evento CHAT sale antes que la respuesta por el mismo enlace
+			Enlace e = enlaces.get(origen);
+			Servidor_B.crearChatPedido(nombre, creador, ids, chat -> {
+				if (e != null) e.enviar(new Protocolo_Binario.Trama(CREADO).largo(pedido).entero(chat).fin());
+			});
+			return;
+		}
+		case CREADO: {
+			Pedido p = pedidos.remove(t.getLong());
+			if (p != null) p.respuesta.accept(t.getInt());
+			return;
+		}
+		case PRIVADO: {
+			int destino = t.getInt();
+			int uid = t.getInt();
+			Usuario emisor = Servidor_B.usuarioRemoto(uid, Protocolo_Binario.leerNombre(t));
+			String linea = Protocolo_Binario.leerTextoLargo(t);
+			Servidor_B.privadoRemoto(destino, emisor, linea, Protocolo_Binario.leerResto(t));
+			return;
+		}
+		case BUZON: {
+			int destino = t.getInt();
+			int n = t.getInt();
+			List<String> mensajes = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) mensajes.add(Protocolo_Binario.leerTextoLargo(t));
+			Servidor_B.buzonRemoto(destino, mensajes);
+			return;
+		}
+		default:
+			Bitacora_B.evento("cluster", "Código desconocido del nodo " + origen + ": 0x" + Integer.toHexString(codigo & 0xFF));
+		}
+	}
+
+	private static ByteBuffer tramaBuzon(int destino, List<String> mensajes) {
+		Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(BUZON, 8 + mensajes.size() * 64).entero(destino).entero(mensajes.size());
+		for (String m : mensajes) t.textoLargo(m);
+		return t.fin();
+	}
+
+	// Se perdió el enlace con un nodo: sus "crear chat" pendientes fallan
+	private static void fallarPedidos(int nodo) {
+		Iterator<Map.Entry<Long, Pedido>> it = pedidos.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Pedido> e = it.next();
+			if (e.getValue().nodo == nodo && pedidos.remove(e.getKey(), e.getValue())) e.getValue().respuesta.accept(-1);
+		}
+	}
+
+	// ---- Envío ----
+
+	// Conexión de salida hacia un par. Quien envía sólo encola la trama; el
+	// hilo del enlace la escribe junto con las que se acumularon en un solo
+	// write. Si se cae, reconecta y vuelve a mandar la foto de este nodo.
+	private static final class Enlace implements Runnable {
+		final Nodo nodo;
+		private final Queue<ByteBuffer> cola = new ConcurrentLinkedQueue<>();
+		// Bytes en la cola (tope MAX_COLA)
+		private final AtomicLong pendientes = new AtomicLong();
+		// Usuarios con un cambio de conexión sin anunciar (se manda el último estado)
+		private final Set<Usuario> usuarios = ConcurrentHashMap.newKeySet();
+		private volatile boolean conectado;
+		// Canal abierto (para cortarlo desde otro hilo si se pasa el tope)
+		private volatile SocketChannel canal;
+		private Thread hilo;
+
+		Enlace(Nodo nodo) {
+			this.nodo = nodo;
+		}
+
+		void iniciar() {
+			hilo = new Thread(this, "cluster-enlace-" + nodo.id);
+			hilo.setDaemon(true);
+			hilo.start();
+		}
+
+		// Encola una trama; false si el enlace está caído o se acaba de cortar
+		// por pasar el tope
+		boolean enviar(ByteBuffer trama) {
+			if (!conectado) return false;
+			long n = encolar(trama);
+			if (n > MAX_COLA) {
+				cortar(n);
+				return false;
+			}
+			LockSupport.unpark(hilo);
+			return true;
+		}
+
+		private long encolar(ByteBuffer trama) {
+			cola.add(trama);
+			return pendientes.addAndGet(trama.remaining());
+		}
+
+		// El par no lee: cerrar el canal desbloquea al hilo del enlace, que
+		// descarta la cola y reconecta
+		private void cortar(long n) {
+			SocketChannel c = canal;
+			if (!conectado || c == null) return;
+			conectado = false;
+			Bitacora_B.evento("cluster", "Enlace con el nodo " + nodo + " cortado: " + n + " bytes sin enviar (máx. " + MAX_COLA + ")");
+			try {
+				c.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		void anunciar(Usuario u) {
+			if (!conectado) return;
+			usuarios.add(u);
+			LockSupport.unpark(hilo);
+		}
+
+		private void descartarCola() {
+			ByteBuffer t;
+			while ((t = cola.poll()) != null) pendientes.addAndGet(-t.remaining());
+		}
+
+		boolean isConectado() {
+			return conectado;
+		}
+
+		@Override
+		public void run() {
+			boolean avisado = false;
+			while (true) {
+				try (SocketChannel canal = SocketChannel.open()) {
+					canal.connect(new InetSocketAddress(nodo.host, nodo.puerto));
+					canal.socket().setTcpNoDelay(true);
+					Bitacora_B.evento("cluster", "Enlace con el nodo " + nodo + " abierto");
+					avisado = false;
+					this.canal = canal;
+					saludar();
+					escribir(canal);
+				} catch (AsynchronousCloseException e) {
+					// lo cortó cortar(), que ya lo anotó
+				} catch (IOException e) {
+					if (conectado || !avisado) {
+						Bitacora_B.evento("cluster", "Sin enlace con el nodo " + nodo + ": " + e.getMessage());
+						avisado = true;
+					}
+				}
+				conectado = false;
+				canal = null;
+				descartarCola();
+				usuarios.clear();
+				fallarPedidos(nodo.id);
+				try {
+					Thread.sleep(REINTENTO_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		// Foto de este nodo para el par: sus usuarios conectados y sus chats
+		private void saludar() {
+			// lo que un envío haya dejado al caerse el enlace no va antes del HOLA
+			descartarCola();
+			encolar(new Protocolo_Binario.Trama(HOLA).entero(yo.id).fin());
+			for (Chat_Grupal chat : Servidor_B.todosLosChats()) {
+				if (dueno(chat.getNombre()) == yo) encolar(tramaChat(chat));
+			}
+			usuarios.addAll(Servidor_B.usuariosConectados());
+			conectado = true;
+		}
+
+		private void escribir(SocketChannel canal) throws IOException {
+			ByteBuffer[] lote = new ByteBuffer[LOTE];
+			long ultimo = System.nanoTime();
+			while (true) {
+				if (cola.isEmpty() && usuarios.isEmpty()) {
+					LockSupport.parkNanos(this, LATIDO_NANOS);
+					if (cola.isEmpty() && usuarios.isEmpty()) {
+						if (System.nanoTime() - ultimo < LATIDO_NANOS) continue;
+						encolar(new Protocolo_Binario.Trama(HOLA).entero(yo.id).fin());
+					}
+				} else if (ESPERA_NANOS > 0) {
+					// dar tiempo a que se junten más tramas
+					LockSupport.parkNanos(ESPERA_NANOS);
+				}
+				for (Iterator<Usuario> it = usuarios.iterator(); it.hasNext();) {
+					Usuario u = it.next();
+					it.remove();
+					encolar(tramaUsuario(u));
+				}
+				while (!cola.isEmpty()) {
+					int n = 0;
+					long bytes = 0;
+					ByteBuffer t;
+					while (n < LOTE && bytes < MAX_BYTES_LOTE && (t = cola.poll()) != null) {
+						lote[n++] = t;
+						bytes += t.remaining();
+					}
+					pendientes.addAndGet(-bytes);
+					while (bytes > 0) bytes -= canal.write(lote, 0, n);
+					Arrays.fill(lote, 0, n, null);
+					Metricas_B.clusterEnviadas.add(n);
+					Metricas_B.clusterLotes.increment();
+				}
+				ultimo = System.nanoTime();
+			}
+		}
+	}
+
+	// Para /metricas: "nodo 1 de 3, enlaces 2/2, 5 usuarios en otros nodos"
+	public static String resumen() {
+		if (!isActivo()) return "inactivo";
+		int abiertos = 0;
+		for (Enlace e : enlaces.values()) {
+			if (e.isConectado()) abiertos++;
+		}
+		return "nodo " + yo.id + " de " + nodos.size() + ", enlaces " + abiertos + "/" + enlaces.size() + ", "
+				+ nodoDeUsuario.size() + " usuarios en otros nodos";
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Cola_Escritura.java
+ * Cola de salida de una conexión con contabilidad de bytes en memoria.
+ *
+ * Elementos: ByteBuffer, Region_Archivo (datos en disco, no cuentan) o
+ * líneas de chat marcadas como descartables. Cuando los bytes encolados
+ * superan la marca alta (-Dchat.colaAlta) la conexión queda "saturada" y el
+ * reactor aplica la política de cliente lento (-Dchat.politicaLenta):
+ *   PAUSAR      deja de leer de la conexión hasta bajar de la marca baja:
+ *               frena sólo lo que el propio cliente pide (historial,
+ *               descargas, listas), no los mensajes que otros mandan al chat;
+ *               para esos queda el tope de -Dchat.colaMaxima
+ *   DESCARTAR   quita las líneas de chat más antiguas hasta la marca baja
+ *   DESCONECTAR avisa al cliente y cierra la conexión
+ * Pase lo que pase, por encima de -Dchat.colaMaxima se desconecta.
+ *
+ * Varios hilos agregan a la vez (actores de chat, privados, presencia). Lo
+ * hacen bajo un lock corto para que un grupo (agregarTodos: una cabecera y
+ * sus bytes) quede seguido en la cola; el reactor la lee sin lock.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Cola_Escritura {
+
+	public enum Politica { PAUSAR, DESCARTAR, DESCONECTAR }
+
+	public static final long ALTA = Long.getLong("chat.colaAlta", 4L * 1024 * 1024);
+	public static final long BAJA = Math.min(ALTA, Long.getLong("chat.colaBaja", 1024L * 1024));
+	public static final long MAXIMA = Math.max(ALTA, Long.getLong("chat.colaMaxima", 4 * ALTA));
+	public static final Politica POLITICA =
+			Politica.valueOf(System.getProperty("chat.politicaLenta", "DESCARTAR").toUpperCase(Locale.ROOT));
+
+	// Totales de todo el servidor (para observar el estado de las colas)
+	private static final LongAdder bytesTotales = new LongAdder();
+	private static final LongAdder lineasDescartadas = new LongAdder();
+	private static final AtomicInteger colasSaturadas = new AtomicInteger();
+
+	// Línea de chat que puede descartarse si el cliente no da abasto
+	static final class Descartable {
+		final ByteBuffer buf;
+
+		Descartable(ByteBuffer buf) {
+			this.buf = buf;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Object> q = new ConcurrentLinkedQueue<>();
+	// Sólo entre productores (ver arriba)
+	private final Object productores = new Object();
+	private final AtomicLong bytes = new AtomicLong();
+	// Sólo pasa a true o a false con compareAndSet: cada cambio se cuenta una vez
+	private final AtomicBoolean saturada = new AtomicBoolean();
+
+	// Devuelve true si con este elemento la cola pasó la marca alta
+	public boolean agregar(Object e) {
+		synchronized (productores) {
+			q.add(e);
+		}
+		return contar(tamano(e));
+	}
+
+	// Agrega los elementos seguidos: ningún otro productor puede meter nada
+	// en medio. Devuelve lo mismo que agregar().
+	public boolean agregarTodos(Object... elementos) {
+		long n = 0;
+		synchronized (productores) {
+			for (Object e : elementos) {
+				q.add(e);
+				n += tamano(e);
+			}
+		}
+		return contar(n);
+	}
+
+	private boolean contar(long n) {
+		if (n == 0) return false;
+		bytesTotales.add(n);
+		long total = bytes.addAndGet(n);
+		if (total >= ALTA && !saturada.get() && saturada.compareAndSet(false, true)) {
+			colasSaturadas.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public boolean agregarDescartable(ByteBuffer buf) {
+		return agregar(new Descartable(buf));
+	}
+
+	public Object cabeza() {
+		Object e = q.peek();
+		return e instanceof Descartable ? ((Descartable) e).buf : e;
+	}
+
+	public void retirar() {
+		q.poll();
+	}
+
+	// Llena destino con los buffers consecutivos desde la cabeza.
+	// Devuelve cuántos puso (0 si la cabeza no es un buffer).
+	public int recolectar(ByteBuffer[] destino) {
+		int n = 0;
+		for (Object e : q) {
+			if (e instanceof Descartable) e = ((Descartable) e).buf;
+			if (!(e instanceof ByteBuffer)) break;
+			destino[n++] = (ByteBuffer) e;
+			if (n == destino.length) break;
+		}
+		return n;
+	}
+
+	// El reactor informa los bytes de memoria ya escritos al socket
+	public void escritos(long n) {
+		if (n <= 0) return;
+		bytesTotales.add(-n);
+		bytes.addAndGet(-n);
+	}
+
+	// Sólo el reactor dueño: quita líneas descartables (nunca la cabeza, que
+	// puede estar a medio escribir) hasta bajar de la marca baja
+	public int descartarAntiguas() {
+		int quitadas = 0;
+		Iterator<Object> it = q.iterator();
+		if (it.hasNext()) it.next();
+		while (bytes.get() > BAJA && it.hasNext()) {
+			Object e = it.next();
+			if (e instanceof Descartable) {
+				long n = ((Descartable) e).buf.remaining();
+				it.remove();
+				bytesTotales.add(-n);
+				bytes.addAndGet(-n);
+				quitadas++;
+			}
+		}
+		lineasDescartadas.add(quitadas);
+		return quitadas;
+	}
+
+	// Sólo el reactor dueño: vacía la cola y cierra las regiones de archivo
+	public void vaciar() {
+		Object e;
+		while ((e = q.poll()) != null) {
+			if (e instanceof Region_Archivo) ((Region_Archivo) e).cerrar();
+		}
+		bytesTotales.add(-bytes.getAndSet(0));
+		actualizarSaturacion();
+	}
+
+	// Quita la marca de saturada al bajar de la marca baja; true si cambió
+	public boolean actualizarSaturacion() {
+		if (saturada.get() && bytes.get() <= BAJA && saturada.compareAndSet(true, false)) {
+			colasSaturadas.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isSaturada() {
+		return saturada.get();
+	}
+
+	public boolean isDesbordada() {
+		return bytes.get() > MAXIMA;
+	}
+
+	public boolean isEmpty() {
+		return q.isEmpty();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public int getElementos() {
+		return q.size();
+	}
+
+	public static long getBytesTotales() {
+		return bytesTotales.sum();
+	}
+
+	public static long getLineasDescartadas() {
+		return lineasDescartadas.sum();
+	}
+
+	public static int getColasSaturadas() {
+		return colasSaturadas.get();
+	}
+
+	private static long tamano(Object e) {
+		if (e instanceof ByteBuffer) return ((ByteBuffer) e).remaining();
+		if (e instanceof Descartable) return ((Descartable) e).buf.remaining();
+		return 0;
+	}
+}
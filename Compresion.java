@@ -0,0 +1,226 @@
+/*
+ * Compresion.java
+ * Compresión opcional (zlib) de lo que el servidor envía a un cliente.
+ *
+ * Negociación: desde el menú principal, y antes de "PROTO BIN" si se quiere
+ * el protocolo binario, el cliente manda la línea "ZLIB" y el servidor
+ * contesta "ZLIB OK". Desde ahí cada envío de al menos -Dchat.compresionUmbral
+ * bytes (por defecto 512) puede llegar comprimido como un bloque:
+ *
+ *   texto:   "ZLIB|<comprimidos>|<originales>\n" + bytes zlib
+ *   binario: trama COMPRIMIDO: [int originales][bytes zlib]
+ *
+ * Descomprimido, un bloque trae líneas (o tramas) completas, igual que si
+ * hubieran llegado sin comprimir. Cada envío se comprime por separado, así
+ * una línea descartable sigue pudiéndose quitar de la cola. Los bloques de
+ * archivo (FILE_CHUNK, ARCHIVO_BLOQUE) nunca se comprimen. Lo que no se
+ * achica se manda tal cual. Sólo se comprime del servidor al cliente.
+ *
+ * Los Deflater (memoria nativa) salen de un pool compartido por todas las
+ * conexiones, porque se comprime desde cualquier hilo que envíe.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class Compresion {
+
+	// Línea de negociación y su respuesta
+	public static final String PEDIDO = "ZLIB";
+	public static final String ACEPTADO = "ZLIB OK";
+	// Prefijo de la línea que anuncia un bloque comprimido (protocolo de texto)
+	public static final String CABECERA = "ZLIB|";
+
+	public static final int UMBRAL = Math.max(1, Integer.getInteger("chat.compresionUmbral", 512));
+	public static final int NIVEL = Math.max(Deflater.BEST_SPEED,
+			Math.min(Deflater.BEST_COMPRESSION, Integer.getInteger("chat.compresionNivel", 6)));
+	// Deflater guardados como máximo en el pool
+	private static final int MAX_LIBRES = Integer.getInteger("chat.compresionPool", 4 * Runtime.getRuntime().availableProcessors());
+
+	private static final Queue<Deflater> libres = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger cuentaLibres = new AtomicInteger();
+
+	// Bytes de copia reutilizables por hilo (entrada de sólo lectura y salida)
+	private static final int SCRATCH = 64 * 1024;
+	private static final ThreadLocal<byte[][]> scratch = ThreadLocal.withInitial(() -> new byte[][] { new byte[SCRATCH], new byte[SCRATCH] });
+
+	private Compresion() {
+	}
+
+	// Comprime un envío para una conexión que negoció compresión. Devuelve el
+	// bloque listo para encolar, o el mismo buffer si es chico o no se achica.
+	public static ByteBuffer comprimir(ByteBuffer datos, boolean binario) {
+		int n = datos.remaining();
+		if (n < UMBRAL) return datos;
+		long inicio = System.nanoTime();
+		byte[][] tmp = scratch.get();
+		byte[] entrada;
+		int desde;
+		if (datos.hasArray()) {
+			entrada = datos.array();
+			desde = datos.arrayOffset() + datos.position();
+		} else {
+			entrada = n <= SCRATCH ? tmp[0] : new byte[n];
+			datos.duplicate().get(entrada, 0, n);
+			desde = 0;
+		}
+		byte[] salida = n <= SCRATCH ? tmp[1] : new byte[n];
+		Deflater d = obtener();
+		int largo = 0;
+		boolean termino;
+		try {
+			d.setInput(entrada, desde, n);
+			d.finish();
+			while (!d.finished() && largo < n) {
+				largo += d.deflate(salida, largo, n - largo);
+			}
+			termino = d.finished();
+		} finally {
+			devolver(d);
+		}
+		ByteBuffer resultado;
+		if (!termino || largo + 32 >= n) {
+			// no vale la pena: va sin comprimir
+			Metricas_B.compresionSinGanancia.increment();
+			resultado = datos;
+		} else {
+			byte[] cabecera = binario ? null : (CABECERA + largo + "|" + n + "\n").getBytes(StandardCharsets.UTF_8);
+			if (binario) {
+				resultado = ByteBuffer.allocate(4 + 1 + 4 + largo);
+				resultado.putInt(1 + 4 + largo).put(Protocolo_Binario.COMPRIMIDO).putInt(n);
+			} else {
+				resultado = ByteBuffer.allocate(cabecera.length + largo);
+				resultado.put(cabecera);
+			}
+			resultado.put(salida, 0, largo);
+			resultado.flip();
+			Metricas_B.compresionOriginal.add(n);
+			Metricas_B.compresionComprimido.add(resultado.remaining());
+		}
+		Metricas_B.compresion.registrar((System.nanoTime() - inicio) / 1000);
+		return resultado;
+	}
+
+	private static Deflater obtener() {
+		Deflater d = libres.poll();
+		if (d == null) return new Deflater(NIVEL);
+		cuentaLibres.decrementAndGet();
+		return d;
+	}
+
+	private static void devolver(Deflater d) {
+		if (cuentaLibres.incrementAndGet() > MAX_LIBRES) {
+			cuentaLibres.decrementAndGet();
+			d.end();
+			return;
+		}
+		d.reset();
+		libres.add(d);
+	}
+
+	// Un mismo contenido para muchas conexiones (difusión, ventana del chat):
+	// cada forma (texto o binaria, comprimida o no, con o sin el número del
+	// mensaje para las conexiones con sesión) se arma una sola vez y sólo si
+	// algún destino la usa. No es seguro entre hilos: se usa desde el actor
+	// del chat o bajo su lock.
+	public static final class Compartido {
+		private final Supplier<ByteBuffer> texto;
+		private final Supplier<ByteBuffer> binario;
+		private final ByteBuffer[] formas = new ByteBuffer[8];
+		// Chat y número del mensaje (ver Registro_Sesiones); seq < 0: sin marca
+		private int chat;
+		private long seq = -1;
+
+		public Compartido(Supplier<ByteBuffer> texto, Supplier<ByteBuffer> binario) {
+			this.texto = texto;
+			this.binario = binario;
+		}
+
+		// Las conexiones con sesión reciben antes el número del mensaje
+		public Compartido conSecuencia(int chat, long seq) {
+			this.chat = chat;
+			this.seq = seq;
+			return this;
+		}
+
+		// La forma que le toca a la conexión, lista para Conexion.enviarListo()
+		public ByteBuffer para(Conexion c) {
+			return forma(c.isBinario(), c.isComprimida(), seq >= 0 && c.getSesion() != null);
+		}
+
+		public ByteBuffer forma(boolean bin, boolean comprimida) {
+			return forma(bin, comprimida, false);
+		}
+
+		private ByteBuffer forma(boolean bin, boolean comprimida, boolean marcada) {
+			int i = (bin ? 1 : 0) + (comprimida ? 2 : 0) + (marcada ? 4 : 0);
+			if (formas[i] == null) {
+				ByteBuffer b;
+				if (comprimida) {
+					b = comprimir(forma(bin, false, marcada), bin);
+				} else if (marcada) {
+					b = Registro_Sesiones.marcar(chat, seq, bin, forma(bin, false, false));
+				} else {
+					b = (bin ? binario : texto).get();
+				}
+				formas[i] = b.asReadOnlyBuffer();
+			}
+			return formas[i].duplicate();
+		}
+	}
+
+	// Lado del cliente: descomprime los bloques de una conexión. El Inflater
+	// se reutiliza entre bloques; sólo lo usa el hilo lector.
+	public static final class Descompresor {
+		private final Inflater inflater = new Inflater();
+
+		public byte[] inflar(ByteBuffer datos, int originales) throws DataFormatException {
+			byte[] entrada = new byte[datos.remaining()];
+			datos.get(entrada);
+			byte[] salida = new byte[originales];
+			try {
+				inflater.setInput(entrada);
+				int n = 0;
+				while (n < originales && !inflater.finished()) {
+					int r = inflater.inflate(salida, n, originales - n);
+					if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += r;
+				}
+				if (n != originales) throw new DataFormatException("bloque incompleto: " + n + " de " + originales + " bytes");
+			} finally {
+				inflater.reset();
+			}
+			return salida;
+		}
+
+		// Entrega al receptor las líneas (o las tramas) de un bloque ya inflado
+		public static boolean entregar(byte[] datos, boolean tramas, Lector_Lineas.Receptor receptor) {
+			int i = 0;
+			if (tramas) {
+				ByteBuffer b = ByteBuffer.wrap(datos);
+				while (b.remaining() >= 4) {
+					int largo = b.getInt();
+					if (largo < 1 || largo > b.remaining()) return true;
+					ByteBuffer t = ByteBuffer.allocate(largo);
+					t.put(datos, b.position(), largo).flip();
+					b.position(b.position() + largo);
+					if (!receptor.trama(t)) return false;
+				}
+				return true;
+			}
+			for (int j = 0; j < datos.length; j++) {
+				if (datos[j] != '\n') continue;
+				if (!receptor.linea(new String(datos, i, j - i, StandardCharsets.UTF_8).trim())) return false;
+				i = j + 1;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Conexion.java
+ * Estado de un cliente conectado al servidor.
+ * Cada conexión pertenece a un único Reactor_B, que es el único hilo que lee
+ * y escribe en su canal. Otros hilos sólo pueden encolar datos con enviar().
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Conexion implements Lector_Lineas.Receptor {
+
+	private final SocketChannel canal;
+	private final Reactor_B reactor;
+	// Dirección remota ya formateada, para la bitácora (se obtiene una vez)
+	private final String direccion;
+
+	// Separador de líneas sobre bytes (sólo lo usa el reactor dueño)
+	private final Lector_Lineas lector = new Lector_Lineas();
+	// Cola de escritura (ByteBuffer o Region_Archivo): cualquier hilo puede
+	// encolar, el reactor dueño la vacía. Lleva la cuenta de bytes pendientes
+	// para detectar clientes lentos (ver Cola_Escritura).
+	private final Cola_Escritura escritura = new Cola_Escritura();
+	// Evita despertar al reactor varias veces por la misma conexión
+	final AtomicBoolean escrituraSolicitada = new AtomicBoolean(false);
+	// Ya está en el lote de escritura del reactor (sólo lo toca el reactor dueño)
+	boolean enLote;
+	// Lectura detenida por la política PAUSAR (sólo lo toca el reactor dueño)
+	boolean lecturaPausada;
+	// Bytes de subidas entregados al actor del chat y aún no escritos en el
+	// almacén (suma el reactor, resta el actor; ver Transferencia.MAX_EN_COLA)
+	final AtomicLong subidaEnCola = new AtomicLong();
+	// Lectura detenida hasta que el actor escriba esos bloques (sólo el reactor dueño)
+	boolean subidaPausada;
+	// Líneas de chat descartadas desde el último aviso al cliente
+	int descartadas;
+
+	private volatile Usuario usuario;
+	// Protocolo binario negociado con "PROTO BIN" (ver Protocolo_Binario)
+	private volatile boolean binario;
+	// Compresión negociada con "ZLIB" (ver Compresion)
+	private volatile boolean comprimida;
+	private volatile boolean cerrada;
+	private volatile boolean cerrarTrasEscribir;
+	// Otra conexión reanudó su sesión: el reactor la cierra sin esperar
+	private volatile boolean reemplazada;
+	// Sesión reanudable pedida con "SESION" (ver Registro_Sesiones)
+	private volatile Registro_Sesiones.Sesion sesion;
+	// Tiene su usuario por derecho propio, no sólo por el nombre (ver Claves_Usuarios)
+	private volatile boolean autenticada;
+
+	// Estado interactivo del menú (sólo lo toca el reactor dueño)
+	private Estado_Conexion estado = Estado_Conexion.IDLE;
+	private String temp;
+	// Chat en el que está el cliente (estado IN_CHAT)
+	private Chat_Grupal chatActual;
+	// Número del mensaje más antiguo que ya vio del historial del chat actual
+	// (lo fija el actor al entrar, lo mueve /historial); -1 si aún no entró
+	private volatile long cursorHistorial = -1;
+	// Subidas de archivo en curso, por id del cliente, y destino del próximo bloque
+	private final Map<String, Transferencia> transferencias = new HashMap<>();
+	private Transferencia destinoBloque;
+
+	public Conexion(SocketChannel canal, Reactor_B reactor) {
+		this.canal = canal;
+		this.reactor = reactor;
+		this.direccion = direccionRemota(canal);
+	}
+
+	private static String direccionRemota(SocketChannel canal) {
+		try {
+			return String.valueOf(canal.getRemoteAddress());
+		} catch (IOException e) {
+			return "desconocido";
+		}
+	}
+
+	public SocketChannel getCanal() {
+		return canal;
+	}
+
+	public String getDireccion() {
+		return direccion;
+	}
+
+	public Reactor_B getReactor() {
+		return reactor;
+	}
+
+	public Lector_Lineas getLector() {
+		return lector;
+	}
+
+	@Override
+	public boolean linea(String linea) {
+		long inicio = System.nanoTime();
+		boolean seguir = Servidor_B.procesarLinea(this, linea);
+		Metricas_B.comando.registrar((System.nanoTime() - inicio) / 1000);
+		Metricas_B.mensajesEntrada.increment();
+		return seguir;
+	}
+
+	@Override
+	public boolean trama(ByteBuffer datos) {
+		long inicio = System.nanoTime();
+		boolean seguir = Servidor_B.procesarTrama(this, datos);
+		Metricas_B.comando.registrar((System.nanoTime() - inicio) / 1000);
+		Metricas_B.mensajesEntrada.increment();
+		return seguir;
+	}
+
+	@Override
+	public void lineaDemasiadoLarga(int maximo) {
+		Servidor_B.lineaDemasiadoLarga(this, maximo);
+	}
+
+	@Override
+	public void bloque(ByteBuffer datos) {
+		Servidor_B.bloqueRecibido(this, datos);
+	}
+
+	public Cola_Escritura getEscritura() {
+		return escritura;
+	}
+
+	public boolean isBinario() {
+		return binario;
+	}
+
+	// Sólo el reactor dueño, desde linea(): lo que sigue son tramas
+	public void usarBinario() {
+		binario = true;
+		lector.usarTramas();
+	}
+
+	public boolean isComprimida() {
+		return comprimida;
+	}
+
+	// Desde aquí los envíos grandes pueden salir comprimidos
+	public void usarCompresion() {
+		comprimida = true;
+	}
+
+	// Texto para el cliente: tal cual, o en una trama TEXTO si es binario
+	public ByteBuffer codificarTexto(String texto) {
+		return binario ? Protocolo_Binario.texto(texto) : ByteBuffer.wrap(texto.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void enviarTexto(String texto) {
+		enviar(codificarTexto(texto));
+	}
+
+	public Usuario getUsuario() {
+		return usuario;
+	}
+
+	public void setUsuario(Usuario usuario) {
+		this.usuario = usuario;
+	}
+
+	public Estado_Conexion getEstado() {
+		return estado;
+	}
+
+	public void setEstado(Estado_Conexion estado) {
+		this.estado = estado;
+	}
+
+	public String getTemp() {
+		return temp;
+	}
+
+	public void setTemp(String temp) {
+		this.temp = temp;
+	}
+
+	public Chat_Grupal getChatActual() {
+		return chatActual;
+	}
+
+	public void setChatActual(Chat_Grupal chatActual) {
+		this.chatActual = chatActual;
+	}
+
+	public long getCursorHistorial() {
+		return cursorHistorial;
+	}
+
+	public void setCursorHistorial(long cursorHistorial) {
+		this.cursorHistorial = cursorHistorial;
+	}
+
+	public Map<String, Transferencia> getTransferencias() {
+		return transferencias;
+	}
+
+	public Transferencia getDestinoBloque() {
+		return destinoBloque;
+	}
+
+	public void setDestinoBloque(Transferencia destinoBloque) {
+		this.destinoBloque = destinoBloque;
+	}
+
+	public boolean isAbierta() {
+		return !cerrada && canal.isOpen();
+	}
+
+	void marcarCerrada() {
+		this.cerrada = true;
+	}
+
+	public boolean isCerrarTrasEscribir() {
+		return cerrarTrasEscribir;
+	}
+
+	// Cierra la conexión cuando se haya vaciado la cola de escritura
+	public void cerrarTrasEscribir() {
+		this.cerrarTrasEscribir = true;
+		reactor.solicitarEscritura(this);
+	}
+
+	public boolean isReemplazada() {
+		return reemplazada;
+	}
+
+	// Seguro desde cualquier hilo: el reactor dueño la cierra en su próxima vuelta
+	public void reemplazar() {
+		this.reemplazada = true;
+		reactor.solicitarEscritura(this);
+	}
+
+	public boolean isAutenticada() {
+		return autenticada;
+	}
+
+	public void setAutenticada(boolean autenticada) {
+		this.autenticada = autenticada;
+	}
+
+	public Registro_Sesiones.Sesion getSesion() {
+		return sesion;
+	}
+
+	public void setSesion(Registro_Sesiones.Sesion sesion) {
+		this.sesion = sesion;
+	}
+
+	// Encola datos para este cliente; seguro desde cualquier hilo. Deben ser
+	// líneas o tramas completas: si se negoció compresión pueden comprimirse.
+	public void enviar(ByteBuffer buf) {
+		enviarListo(comprimida ? Compresion.comprimir(buf, binario) : buf, false);
+	}
+
+	// Como enviar(), pero la línea puede descartarse si el cliente es lento
+	public void enviarDescartable(ByteBuffer buf) {
+		enviarListo(comprimida ? Compresion.comprimir(buf, binario) : buf, true);
+	}
+
+	// Datos ya preparados para esta conexión (por ejemplo con
+	// Compresion.Compartido): se encolan tal cual
+	public void enviarListo(ByteBuffer buf, boolean descartable) {
+		if (cerrada) return;
+		if (descartable ? escritura.agregarDescartable(buf) : escritura.agregar(buf)) avisarSaturada();
+		Metricas_B.mensajesSalida.increment();
+		reactor.solicitarEscritura(this);
+	}
+
+	// Encola varios elementos juntos (buffers o regiones de archivo), sin que
+	// otro hilo meta nada entre ellos; nunca se comprimen, porque pueden ser
+	// cabeceras seguidas de bytes crudos
+	public void enviarTodos(Object... elementos) {
+		if (cerrada) return;
+		if (escritura.agregarTodos(elementos)) avisarSaturada();
+		reactor.solicitarEscritura(this);
+	}
+
+	private void avisarSaturada() {
+		Usuario u = usuario;
+		Bitacora_B.evento(direccion, "Cliente lento " + (u != null ? u.getNombre() : direccion) + ": cola de escritura sobre la marca alta ("
+				+ escritura.getBytes() + " bytes), política " + Cola_Escritura.POLITICA);
+	}
+
+	// Al cerrar: suelta los archivos abiertos por regiones pendientes
+	void descartarEscrituras() {
+		escritura.vaciar();
+	}
+}
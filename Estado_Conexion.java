@@ -0,0 +1,21 @@
+/*
+ * Estado_Conexion.java
+ * Estado interactivo del menú de cada conexión. Servidor_B tiene una
+ * Tabla_Comandos por estado que decide qué hacer con cada línea recibida.
+ */
+
+public enum Estado_Conexion {
+	// En el menú principal
+	IDLE,
+	// Opción 3: esperando los IDs de los miembros y luego el nombre
+	AWAIT_CREATE_IDS,
+	AWAIT_CREATE_NAME,
+	// Opción 4: esperando el nombre del chat al que entrar
+	AWAIT_ENTER_CHAT,
+	// Opción 6: esperando el nombre del chat del que salir
+	AWAIT_LEAVE_CHAT,
+	// Opción 7: esperando el nombre de un usuario existente
+	AWAIT_LOGIN,
+	// Dentro de un chat: las líneas son mensajes o comandos del chat
+	IN_CHAT
+}
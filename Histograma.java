@@ -0,0 +1,101 @@
+/*
+ * Histograma.java
+ * Histograma de valores enteros no negativos con cubetas logarítmicas
+ * (8 sub-cubetas por potencia de 2, error relativo < 12,5 %).
+ * registrar() no reserva memoria ni usa locks: se puede llamar desde los
+ * reactores y el pool a la vez. Los percentiles se calculan al consultar.
+ */
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histograma {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	// valores < 2*SUB van en su propia cubeta; luego SUB cubetas por potencia de 2
+	private static final int CUBETAS = 2 * SUB + (63 - SUB_BITS - 1) * SUB;
+
+	private final String nombre;
+	private final String unidad;
+	private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+	private final LongAdder cuenta = new LongAdder();
+	private final LongAdder suma = new LongAdder();
+	private final AtomicLong maximo = new AtomicLong();
+
+	public Histograma(String nombre, String unidad) {
+		this.nombre = nombre;
+		this.unidad = unidad;
+	}
+
+	public void registrar(long valor) {
+		if (valor < 0) valor = 0;
+		cubetas.incrementAndGet(indice(valor));
+		cuenta.increment();
+		suma.add(valor);
+		long m;
+		while (valor > (m = maximo.get()) && !maximo.compareAndSet(m, valor)) {
+			// reintentar
+		}
+	}
+
+	public String getNombre() {
+		return nombre;
+	}
+
+	public long getCuenta() {
+		return cuenta.sum();
+	}
+
+	public long getMaximo() {
+		return maximo.get();
+	}
+
+	public double getMedia() {
+		long n = cuenta.sum();
+		return n == 0 ? 0 : (double) suma.sum() / n;
+	}
+
+	// Límite superior de la cubeta donde cae el percentil p (0-100)
+	public long percentil(double p) {
+		long total = 0;
+		long[] copia = new long[CUBETAS];
+		for (int i = 0; i < CUBETAS; i++) {
+			copia[i] = cubetas.get(i);
+			total += copia[i];
+		}
+		if (total == 0) return 0;
+		long objetivo = (long) Math.ceil(total * p / 100.0);
+		if (objetivo < 1) objetivo = 1;
+		long acumulado = 0;
+		for (int i = 0; i < CUBETAS; i++) {
+			acumulado += copia[i];
+			if (acumulado >= objetivo) return Math.min(limiteSuperior(i), maximo.get());
+		}
+		return maximo.get();
+	}
+
+	// "nombre (unidad): n=.. media=.. p50=.. p99=.. p999=.. max=.."
+	public String resumen() {
+		return String.format(Locale.ROOT, "%s (%s): n=%d media=%.1f p50=%d p99=%d p999=%d max=%d", nombre, unidad, getCuenta(),
+				getMedia(), percentil(50), percentil(99), percentil(99.9), getMaximo());
+	}
+
+	static int indice(long v) {
+		if (v < 2 * SUB) return (int) v;
+		int e = 63 - Long.numberOfLeadingZeros(v); // e >= SUB_BITS + 1
+		int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+		return 2 * SUB + (e - SUB_BITS - 1) * SUB + sub;
+	}
+
+	static long limiteSuperior(int i) {
+		if (i < 2 * SUB) return i;
+		int e = (i - 2 * SUB) / SUB + SUB_BITS + 1;
+		int sub = (i - 2 * SUB) % SUB;
+		long inferior = (long) (SUB + sub) << (e - SUB_BITS);
+		long superior = inferior + (1L << (e - SUB_BITS)) - 1;
+		return superior < 0 ? Long.MAX_VALUE : superior;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * Historial_Chat.java
+ * Historial persistente de un chat grupal: un log de sólo agregar repartido
+ * en segmentos de archivo, en un directorio por chat (derivado del nombre,
+ * así que un chat que se vuelve a crear con el mismo nombre recupera su
+ * historial). Directorio base configurable con -Dchat.historial (por
+ * defecto datos/historial). abrir() hace E/S: se llama desde el actor del
+ * chat, nunca desde un reactor.
+ *
+ * Formato: <seq inicial>.log con registros [int largo][bytes UTF-8] y
+ * <seq inicial>.idx con pares [long seq][long posición] cada INTERVALO_INDICE
+ * registros (índice disperso).
+ *
+ * agregar() sólo numera el mensaje y lo deja en memoria; un único hilo
+ * escritor lo guarda junto con todo lo que se haya acumulado mientras tanto
+ * (un force() por chat y por lote). Las lecturas juntan lo que sigue en
+ * memoria con lo ya escrito, que se lee con los segmentos mapeados en memoria
+ * saltando con el índice, sin recorrer el log entero.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Historial_Chat {
+
+	private static final long TAMANO_SEGMENTO = Long.getLong("chat.segmentoHistorial", 8L * 1024 * 1024);
+	private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("chat.historialSync", "true"));
+	private static final int INTERVALO_INDICE = 64;
+	// Largo máximo del nombre de directorio (los sistemas de archivos suelen
+	// aceptar 255 bytes) y prefijo legible que se deja en los más largos
+	private static final int MAX_DIRECTORIO = 100;
+	private static final int PREFIJO_DIRECTORIO = 32;
+
+	private static final Path BASE = Paths.get(System.getProperty("chat.historial", "datos/historial"));
+	// Un historial por directorio, aunque se pida varias veces
+	private static final Map<Path, Historial_Chat> abiertos = new ConcurrentHashMap<>();
+
+	// Historiales con mensajes pendientes de escribir
+	private static final BlockingQueue<Historial_Chat> sucios = new LinkedBlockingQueue<>();
+
+	static {
+		Thread t = new Thread(Historial_Chat::bucleEscritor, "historial-escritor");
+		t.setDaemon(true);
+		t.start();
+		// al apagar el servidor, escribir lo que quede pendiente
+		Runtime.getRuntime().addShutdownHook(new Thread(Historial_Chat::escribirPendientes));
+	}
+
+	// Mensaje aún no escrito en disco
+	private static final class Registro {
+		final long seq;
+		final byte[] datos;
+
+		Registro(long seq, byte[] datos) {
+			this.seq = seq;
+			this.datos = datos;
+		}
+	}
+
+	// Un archivo del log. tamano, registros e indice sólo crecen; los cambia
+	// el escritor con el lock del historial tomado.
+	private static final class Segmento {
+		final long base;
+		final Path ruta;
+		final Path rutaIndice;
+		long tamano;
+		long registros;
+		// pares (seq, posición)
+		long[] indice = new long[16];
+		int nIndice;
+		// Sólo el escritor
+		FileChannel canal;
+		FileChannel canalIndice;
+		// Mapa de lectura (se rehace si el segmento creció)
+		private MappedByteBuffer mapa;
+
+		Segmento(Path dir, long base) {
+			this.base = base;
+			String nombre = String.format("%020d", base);
+			this.ruta = dir.resolve(nombre + ".log");
+			this.rutaIndice = dir.resolve(nombre + ".idx");
+		}
+
+		void agregarIndice(long seq, long pos) {
+			if (nIndice * 2 == indice.length) indice = Arrays.copyOf(indice, indice.length * 2);
+			indice[nIndice * 2] = seq;
+			indice[nIndice * 2 + 1] = pos;
+			nIndice++;
+		}
+
+		synchronized ByteBuffer mapa(long hasta) throws IOException {
+			if (mapa == null || mapa.capacity() < hasta) {
+				try (FileChannel fc = FileChannel.open(ruta, StandardOpenOption.READ)) {
+					mapa = fc.map(FileChannel.MapMode.READ_ONLY, 0, hasta);
+				}
+			}
+			return mapa.duplicate();
+		}
+
+		void cerrarCanales() {
+			try {
+				if (canal != null) canal.close();
+				if (canalIndice != null) canalIndice.close();
+			} catch (IOException ignore) {
+			}
+			canal = null;
+			canalIndice = null;
+		}
+	}
+
+	private final Path dir;
+	private final AtomicBoolean encolado = new AtomicBoolean(false);
+	// Sólo escribe un hilo a la vez (el escritor, o el apagado del servidor)
+	private final Object escritor = new Object();
+	// Protegidos por this
+	private final List<Segmento> segmentos = new ArrayList<>();
+	private final ArrayDeque<Registro> enMemoria = new ArrayDeque<>();
+	private long siguienteSeq;
+	private long escritoHasta;
+
+	private Historial_Chat(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		recuperar();
+	}
+
+	// Historial del chat con ese nombre (sin distinguir mayúsculas)
+	public static Historial_Chat abrir(String nombreChat) throws IOException {
+		Path dir = BASE.resolve(nombreDirectorio(nombreChat));
+		try {
+			return abiertos.computeIfAbsent(dir, d -> {
+				try {
+					return new Historial_Chat(d);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw new IOException("No se pudo abrir el historial en " + dir + ": " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	// Agrega un mensaje y devuelve su número; O(1), no toca el disco
+	public long agregar(String mensaje) {
+		byte[] datos = mensaje.getBytes(StandardCharsets.UTF_8);
+		long seq;
+		synchronized (this) {
+			seq = siguienteSeq++;
+			enMemoria.add(new Registro(seq, datos));
+		}
+		if (encolado.compareAndSet(false, true)) sucios.add(this);
+		return seq;
+	}
+
+	public synchronized long getSiguienteSeq() {
+		return siguienteSeq;
+	}
+
+	// Los últimos k mensajes, del más antiguo al más nuevo
+	public List<String> ultimos(int k) {
+		long fin = getSiguienteSeq();
+		return leer(Math.max(0, fin - k), fin);
+	}
+
+	// Mensajes con seq en [desde, hasta)
+	public List<String> leer(long desde, long hasta) {
+		Segmento[] segs;
+		long[] registrosSeg;
+		long[] tamanoSeg;
+		List<Registro> memoria;
+		long disco;
+		synchronized (this) {
+			segs = segmentos.toArray(new Segmento[0]);
+			registrosSeg = new long[segs.length];
+			tamanoSeg = new long[segs.length];
+			for (int i = 0; i < segs.length; i++) {
+				registrosSeg[i] = segs[i].registros;
+				tamanoSeg[i] = segs[i].tamano;
+			}
+			memoria = new ArrayList<>(enMemoria);
+			disco = escritoHasta;
+		}
+		if (hasta <= desde) return Collections.emptyList();
+		List<String> out = new ArrayList<>((int) Math.min(hasta - desde, 1024));
+		if (desde < disco) {
+			for (int i = 0; i < segs.length; i++) {
+				Segmento s = segs[i];
+				long finSeg = s.base + registrosSeg[i];
+				if (finSeg <= desde || registrosSeg[i] == 0) continue;
+				if (s.base >= Math.min(hasta, disco)) break;
+				try {
+					leerSegmento(s, tamanoSeg[i], Math.max(desde, s.base), Math.min(Math.min(hasta, disco), finSeg), out);
+				} catch (IOException e) {
+					Bitacora_B.evento("Error leyendo historial " + s.ruta + ": " + e.getMessage());
+				}
+			}
+		}
+		for (Registro r : memoria) {
+			if (r.seq >= hasta) break;
+			if (r.seq >= desde) out.add(new String(r.datos, StandardCharsets.UTF_8));
+		}
+		return out;
+	}
+
+	private static void leerSegmento(Segmento s, long tamano, long desde, long hasta, List<String> out) throws IOException {
+		// entrada del índice más cercana por debajo de desde
+		int lo = 0, hi;
+		long[] indice;
+		synchronized (s) {
+			indice = s.indice;
+			hi = s.nIndice - 1;
+		}
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (indice[mid * 2] <= desde) lo = mid;
+			else hi = mid - 1;
+		}
+		long seq = indice[lo * 2];
+		ByteBuffer m = s.mapa(tamano);
+		m.position((int) indice[lo * 2 + 1]);
+		while (seq < hasta && m.remaining() >= 4) {
+			int largo = m.getInt();
+			if (seq >= desde) {
+				byte[] b = new byte[largo];
+				m.get(b);
+				out.add(new String(b, StandardCharsets.UTF_8));
+			} else {
+				m.position(m.position() + largo);
+			}
+			seq++;
+		}
+	}
+
+	// --- Escritor (un solo hilo para todos los chats) ---
+
+	private static void bucleEscritor() {
+		List<Historial_Chat> lote = new ArrayList<>();
+		while (true) {
+			try {
+				lote.add(sucios.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			sucios.drainTo(lote);
+			for (Historial_Chat h : lote) h.escribirPendientesDeEste();
+			lote.clear();
+		}
+	}
+
+	private static void escribirPendientes() {
+		Historial_Chat h;
+		while ((h = sucios.poll()) != null) h.escribirPendientesDeEste();
+		for (Historial_Chat abierto : abiertos.values()) abierto.escribirPendientesDeEste();
+	}
+
+	// Escribe de una vez todo lo acumulado y hace un solo force()
+	private void escribirPendientesDeEste() {
+		encolado.set(false);
+		synchronized (escritor) {
+			Registro[] pendientes;
+			Segmento activo;
+			// Segmento escrito en este intento y largo previo de su índice
+			Segmento intento = null;
+			long tamanoIndice = 0;
+			synchronized (this) {
+				if (enMemoria.isEmpty()) return;
+				pendientes = enMemoria.toArray(new Registro[0]);
+				activo = segmentos.isEmpty() ? null : segmentos.get(segmentos.size() - 1);
+			}
+			try {
+				int total = 0;
+				for (Registro r : pendientes) total += 4 + r.datos.length;
+				if (activo == null || (activo.registros > 0 && activo.tamano + total > TAMANO_SEGMENTO)) {
+					activo = nuevoSegmento(pendientes[0].seq);
+				}
+				intento = activo;
+				tamanoIndice = activo.canalIndice.size();
+				ByteBuffer buf = ByteBuffer.allocate(total);
+				ByteBuffer idx = ByteBuffer.allocate(16 * (pendientes.length / INTERVALO_INDICE + 1));
+				long pos = activo.tamano;
+				long[] nuevasEntradas = new long[2 * (pendientes.length / INTERVALO_INDICE + 1)];
+				int nuevas = 0;
+				for (Registro r : pendientes) {
+					if ((r.seq - activo.base) % INTERVALO_INDICE == 0) {
+						idx.putLong(r.seq).putLong(pos);
+						nuevasEntradas[nuevas * 2] = r.seq;
+						nuevasEntradas[nuevas * 2 + 1] = pos;
+						nuevas++;
+					}
+					buf.putInt(r.datos.length).put(r.datos);
+					pos += 4 + r.datos.length;
+				}
+				buf.flip();
+				while (buf.hasRemaining()) activo.canal.write(buf);
+				if (SYNC) activo.canal.force(false);
+				idx.flip();
+				while (idx.hasRemaining()) activo.canalIndice.write(idx);
+
+				synchronized (this) {
+					synchronized (activo) {
+						for (int i = 0; i < nuevas; i++) activo.agregarIndice(nuevasEntradas[i * 2], nuevasEntradas[i * 2 + 1]);
+					}
+					activo.tamano = pos;
+					activo.registros += pendientes.length;
+					for (int i = 0; i < pendientes.length; i++) enMemoria.poll();
+					escritoHasta = pendientes[pendientes.length - 1].seq + 1;
+				}
+			} catch (IOException e) {
+				// se reintenta con el próximo mensaje
+				Bitacora_B.evento("Error escribiendo historial en " + dir + ": " + e.getMessage());
+				if (intento != null) descartarParcial(intento, tamanoIndice);
+			}
+		}
+	}
+
+	// Tras un error a mitad de escritura: cortar lo que haya quedado del lote
+	// para que el reintento escriba desde tamano y el índice siga valiendo
+	private void descartarParcial(Segmento s, long tamanoIndice) {
+		try {
+			if (s.canal.size() > s.tamano) s.canal.truncate(s.tamano);
+			if (s.canalIndice.size() > tamanoIndice) s.canalIndice.truncate(tamanoIndice);
+		} catch (IOException e) {
+			Bitacora_B.evento("Error recortando historial en " + dir + ": " + e.getMessage());
+		}
+	}
+
+	private Segmento nuevoSegmento(long base) throws IOException {
+		Segmento nuevo = new Segmento(dir, base);
+		nuevo.canal = FileChannel.open(nuevo.ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		nuevo.canalIndice = FileChannel.open(nuevo.rutaIndice, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		synchronized (this) {
+			if (!segmentos.isEmpty()) segmentos.get(segmentos.size() - 1).cerrarCanales();
+			segmentos.add(nuevo);
+		}
+		return nuevo;
+	}
+
+	// --- Recuperación al abrir ---
+
+	private void recuperar() throws IOException {
+		List<Long> bases = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log")) {
+			for (Path p : ds) {
+				String n = p.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(n.substring(0, n.length() - 4)));
+				} catch (NumberFormatException ignore) {
+				}
+			}
+		}
+		Collections.sort(bases);
+		for (int i = 0; i < bases.size(); i++) {
+			Segmento s = new Segmento(dir, bases.get(i));
+			s.tamano = Files.size(s.ruta);
+			cargarIndice(s);
+			if (i + 1 < bases.size()) {
+				s.registros = bases.get(i + 1) - s.base;
+			} else {
+				recorrerCola(s);
+			}
+			segmentos.add(s);
+		}
+		if (!segmentos.isEmpty()) {
+			Segmento ultimo = segmentos.get(segmentos.size() - 1);
+			siguienteSeq = ultimo.base + ultimo.registros;
+			ultimo.canal = FileChannel.open(ultimo.ruta, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			ultimo.canalIndice = FileChannel.open(ultimo.rutaIndice, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		}
+		escritoHasta = siguienteSeq;
+	}
+
+	// Entradas válidas del .idx (las que apuntan dentro del .log)
+	private static void cargarIndice(Segmento s) throws IOException {
+		s.agregarIndice(s.base, 0);
+		if (!Files.exists(s.rutaIndice)) return;
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(s.rutaIndice));
+		while (b.remaining() >= 16) {
+			long seq = b.getLong();
+			long pos = b.getLong();
+			if (seq <= s.indice[(s.nIndice - 1) * 2] || pos >= s.tamano) continue;
+			s.agregarIndice(seq, pos);
+		}
+	}
+
+	// Último segmento: cuenta los registros desde la última entrada del índice
+	// y corta un registro a medio escribir (caída del servidor)
+	private void recorrerCola(Segmento s) throws IOException {
+		long seq = s.indice[(s.nIndice - 1) * 2];
+		long pos = s.indice[(s.nIndice - 1) * 2 + 1];
+		try (FileChannel fc = FileChannel.open(s.ruta, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer largo = ByteBuffer.allocate(4);
+			boolean indexado = true; // el primero ya está en el índice
+			while (true) {
+				largo.clear();
+				if (fc.read(largo, pos) < 4) break;
+				largo.flip();
+				int n = largo.getInt();
+				if (n < 0 || pos + 4 + n > s.tamano) break;
+				if (!indexado && (seq - s.base) % INTERVALO_INDICE == 0) s.agregarIndice(seq, pos);
+				indexado = false;
+				pos += 4 + n;
+				seq++;
+			}
+			if (pos < s.tamano) {
+				Bitacora_B.evento("Historial " + s.ruta + ": se descarta un registro incompleto al final");
+				fc.truncate(pos);
+				s.tamano = pos;
+			}
+		}
+		s.registros = seq - s.base;
+	}
+
+	// Nombre de directorio seguro: a-z, 0-9, '-' y '_' tal cual, el resto
+	// como %XX de sus bytes UTF-8 (reversible). Si pasa de MAX_DIRECTORIO
+	// caracteres, queda un prefijo seguido de '~' y el SHA-256 del nombre
+	// ('~' no aparece en los otros, que lo escriben %7E)
+	static String nombreDirectorio(String nombreChat) {
+		byte[] b = nombreChat.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+		StringBuilder sb = new StringBuilder(b.length);
+		for (byte x : b) {
+			char c = (char) (x & 0xFF);
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+				sb.append(c);
+			} else {
+				sb.append('%').append(String.format("%02X", x & 0xFF));
+			}
+		}
+		if (sb.length() <= MAX_DIRECTORIO) return sb.toString();
+		// sin cortar un %XX por la mitad
+		int corte = PREFIJO_DIRECTORIO;
+		int porcentaje = sb.lastIndexOf("%", corte - 1);
+		if (porcentaje > corte - 3) corte = porcentaje;
+		sb.setLength(corte);
+		sb.append('~');
+		for (byte x : sha256(b)) sb.append(String.format("%02x", x & 0xFF));
+		return sb.toString();
+	}
+
+	private static byte[] sha256(byte[] datos) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(datos);
+		} catch (NoSuchAlgorithmException e) {
+			// toda JVM trae SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Lector_Lineas.java
+ * Separa en líneas los bytes recibidos de una conexión.
+ * Busca '\n' directamente sobre los bytes (sin decodificar) en un buffer
+ * directo del Pool_Buffers que crece o se encoge según el tamaño de las
+ * líneas; sólo las líneas completas se decodifican a UTF-8. Las líneas más
+ * largas que el máximo (-Dchat.maxLinea, en bytes) se descartan.
+ *
+ * Bloques binarios: si al recibir una línea el receptor llama a
+ * esperarBinario(n), los n bytes siguientes no se tratan como texto sino que
+ * se entregan tal cual en bloque() (usado por las transferencias de archivos).
+ *
+ * Tramas: tras usarTramas() (llamado desde linea(), al negociar el protocolo
+ * binario) ya no se buscan líneas; la entrada son tramas [int largo][datos]
+ * que se entregan enteras en trama(). Las mayores que el máximo se descartan.
+ *
+ * Flujos: tras detectarFlujo(prefijo, campos), una línea que empieza con el
+ * prefijo no se junta entera. En cuanto llega su cabecera (el prefijo y los
+ * campos siguientes, cada uno terminado en '|') se entrega en inicioFlujo(),
+ * y el resto en datosFlujo() a medida que se lee, hasta finFlujo() en el
+ * '\n'. Estas líneas no tienen máximo (usado para los FILE_INCOMING).
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+public class Lector_Lineas {
+
+	public static final int MAX_LINEA_DEFAULT = Integer.getInteger("chat.maxLinea", 4 * 1024 * 1024);
+	private static final int INICIAL = 1 << Pool_Buffers.MIN_SHIFT;
+	// Bytes de copia reutilizables por hilo para decodificar líneas normales
+	private static final int SCRATCH = 16 * 1024;
+	private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[SCRATCH]);
+
+	// Quien recibe las líneas ya decodificadas
+	public interface Receptor {
+		// Devuelve false para dejar de entregar líneas de esta conexión
+		boolean linea(String linea);
+
+		void lineaDemasiadoLarga(int maximo);
+
+		// Bytes crudos pedidos con esperarBinario(); el buffer es propio del receptor
+		void bloque(ByteBuffer datos);
+
+		// Una trama completa sin su largo (modo tramas); el buffer es propio
+		// del receptor. Devuelve false para dejar de entregar tramas.
+		boolean trama(ByteBuffer datos);
+
+		// Cabecera de una línea en flujo (ver detectarFlujo), con su último '|'
+		default void inicioFlujo(String cabecera) {
+		}
+
+		// Otra parte del resto de la línea; el buffer sólo vale durante la llamada
+		default void datosFlujo(ByteBuffer datos) {
+		}
+
+		// Llegó el '\n' que cierra la línea en flujo
+		default void finFlujo() {
+		}
+	}
+
+	private final int maxLinea;
+	// Modo escritura: los datos válidos son [0, position)
+	private ByteBuffer buf;
+	// Bytes iniciales ya revisados sin encontrar '\n'
+	private int escaneado;
+	// Descartando el resto de una línea demasiado larga
+	private boolean descartando;
+	// Bytes binarios que faltan por entregar antes de volver a leer líneas
+	private int binario;
+	// Modo tramas (protocolo binario) y bytes que faltan de una trama descartada
+	private boolean tramas;
+	private int saltar;
+	// Prefijo de las líneas que se entregan en flujo, cuántos campos lleva su
+	// cabecera y si se está entregando una
+	private byte[] prefijoFlujo;
+	private int camposFlujo;
+	private boolean enFlujo;
+
+	public Lector_Lineas() {
+		this(MAX_LINEA_DEFAULT);
+	}
+
+	public Lector_Lineas(int maxLinea) {
+		this.maxLinea = maxLinea;
+	}
+
+	// Lee del canal lo disponible; devuelve lo mismo que read()
+	public int leer(ReadableByteChannel ch) throws IOException {
+		if (buf == null) buf = Pool_Buffers.obtener(INICIAL);
+		if (!buf.hasRemaining()) crecer();
+		return ch.read(buf);
+	}
+
+	// Sólo desde Receptor.linea(): los próximos n bytes son un bloque binario
+	public void esperarBinario(int n) {
+		if (n < 0) throw new IllegalArgumentException("tamaño negativo: " + n);
+		this.binario = n;
+	}
+
+	// Sólo desde Receptor.linea(): lo que sigue a esta línea son tramas
+	public void usarTramas() {
+		this.tramas = true;
+	}
+
+	public boolean isTramas() {
+		return tramas;
+	}
+
+	// Las líneas "<prefijo><campo 1>|...|<campo n>|<resto>" se entregan en flujo
+	public void detectarFlujo(String prefijo, int campos) {
+		this.prefijoFlujo = prefijo.getBytes(StandardCharsets.UTF_8);
+		this.camposFlujo = campos;
+	}
+
+	// Entrega las líneas completas. Devuelve false si el receptor pidió parar.
+	public boolean extraer(Receptor receptor) {
+		if (buf == null) return true;
+		int fin = buf.position();
+		int inicio = 0;
+		boolean seguir = true;
+		int i = escaneado;
+		while (true) {
+			if (binario > 0) {
+				// esperar a tener el bloque completo en el buffer
+				if (fin - inicio < binario) break;
+				ByteBuffer datos = copiar(inicio, binario);
+				inicio += binario;
+				binario = 0;
+				i = inicio;
+				receptor.bloque(datos);
+				continue;
+			}
+			if (tramas) {
+				if (saltar > 0) {
+					int n = Math.min(saltar, fin - inicio);
+					inicio += n;
+					saltar -= n;
+					if (saltar > 0) break;
+				}
+				if (fin - inicio < 4) break;
+				int largo = buf.getInt(inicio);
+				if (largo < 1) {
+					// no hay forma de seguir el flujo: se deja de leer
+					receptor.lineaDemasiadoLarga(maxLinea);
+					seguir = false;
+					break;
+				}
+				if (largo > maxLinea) {
+					receptor.lineaDemasiadoLarga(maxLinea);
+					inicio += 4;
+					saltar = largo;
+					continue;
+				}
+				if (fin - inicio < 4 + largo) break;
+				ByteBuffer datos = copiar(inicio + 4, largo);
+				inicio += 4 + largo;
+				if (!receptor.trama(datos)) {
+					seguir = false;
+					break;
+				}
+				continue;
+			}
+			if (enFlujo) {
+				// lo leído de la línea en flujo se entrega sin esperar el '\n'
+				int j = inicio;
+				while (j < fin && buf.get(j) != '\n') j++;
+				if (j > inicio) receptor.datosFlujo(vista(inicio, j));
+				if (j == fin) {
+					inicio = fin;
+					break;
+				}
+				enFlujo = false;
+				receptor.finFlujo();
+				inicio = j + 1;
+				i = inicio;
+				continue;
+			}
+			if (i >= fin) {
+				int cabecera = finCabecera(inicio, fin);
+				if (cabecera < 0) break;
+				// cabecera completa sin '\n' todavía: empieza el flujo
+				receptor.inicioFlujo(decodificar(inicio, cabecera));
+				enFlujo = true;
+				inicio = cabecera;
+				continue;
+			}
+			if (buf.get(i) == '\n') {
+				int cabecera = finCabecera(inicio, i);
+				if (descartando) {
+					descartando = false;
+				} else if (cabecera >= 0) {
+					// línea en flujo que llegó entera
+					receptor.inicioFlujo(decodificar(inicio, cabecera));
+					receptor.datosFlujo(vista(cabecera, i));
+					receptor.finFlujo();
+				} else if (i - inicio > maxLinea) {
+					receptor.lineaDemasiadoLarga(maxLinea);
+				} else if (!receptor.linea(decodificar(inicio, i).trim())) {
+					seguir = false;
+					inicio = i + 1;
+					break;
+				}
+				inicio = i + 1;
+			}
+			i++;
+		}
+		if (!seguir) {
+			// el cliente pidió salir: lo que quede ya no se procesa
+			buf.clear();
+			escaneado = 0;
+			return false;
+		}
+		int pendiente = fin - inicio;
+		if (tramas) {
+			// el tamaño ya se controló con el largo de cada trama
+			compactar(inicio, fin);
+			escaneado = 0;
+			encoger();
+			return true;
+		}
+		if (descartando || pendiente > maxLinea) {
+			if (!descartando) {
+				descartando = true;
+				receptor.lineaDemasiadoLarga(maxLinea);
+			}
+			buf.clear();
+			escaneado = 0;
+			encoger();
+			return true;
+		}
+		compactar(inicio, fin);
+		escaneado = binario > 0 ? 0 : pendiente;
+		encoger();
+		return true;
+	}
+
+	// Devuelve el buffer al pool (al cerrar la conexión)
+	public void liberar() {
+		Pool_Buffers.devolver(buf);
+		buf = null;
+	}
+
+	private String decodificar(int inicio, int fin) {
+		int len = fin - inicio;
+		byte[] tmp = len <= SCRATCH ? scratch.get() : new byte[len];
+		ByteBuffer vista = buf.duplicate();
+		vista.limit(fin).position(inicio);
+		vista.get(tmp, 0, len);
+		return new String(tmp, 0, len, StandardCharsets.UTF_8);
+	}
+
+	// Posición siguiente a la cabecera de una línea en flujo que empieza en
+	// inicio, o -1 si no lo es (o aún no llegó la cabecera entera)
+	private int finCabecera(int inicio, int fin) {
+		if (prefijoFlujo == null || descartando || fin - inicio < prefijoFlujo.length) return -1;
+		for (int k = 0; k < prefijoFlujo.length; k++) {
+			if (buf.get(inicio + k) != prefijoFlujo[k]) return -1;
+		}
+		int campos = 0;
+		for (int k = inicio + prefijoFlujo.length; k < fin; k++) {
+			if (buf.get(k) == '|' && ++campos == camposFlujo) return k + 1;
+		}
+		return -1;
+	}
+
+	// Bytes [inicio, fin) del buffer, sin copiarlos
+	private ByteBuffer vista(int inicio, int fin) {
+		ByteBuffer vista = buf.asReadOnlyBuffer();
+		vista.limit(fin).position(inicio);
+		return vista;
+	}
+
+	private ByteBuffer copiar(int inicio, int len) {
+		ByteBuffer vista = buf.duplicate();
+		vista.limit(inicio + len).position(inicio);
+		ByteBuffer datos = ByteBuffer.allocate(len);
+		datos.put(vista);
+		datos.flip();
+		return datos;
+	}
+
+	private void compactar(int inicio, int fin) {
+		if (inicio == 0) return;
+		buf.limit(fin).position(inicio);
+		buf.compact();
+	}
+
+	private void crecer() {
+		ByteBuffer nuevo = Pool_Buffers.obtener(buf.capacity() * 2);
+		buf.flip();
+		nuevo.put(buf);
+		Pool_Buffers.devolver(buf);
+		buf = nuevo;
+	}
+
+	// Tras una línea grande, volver al buffer pequeño si lo pendiente cabe
+	private void encoger() {
+		if (buf.capacity() <= INICIAL || buf.position() > INICIAL / 2) return;
+		ByteBuffer nuevo = Pool_Buffers.obtener(INICIAL);
+		buf.flip();
+		nuevo.put(buf);
+		Pool_Buffers.devolver(buf);
+		buf = nuevo;
+	}
+}
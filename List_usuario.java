@@ -3,63 +3,208 @@
  * Contiene los usuarios registrados en el sistema del servidor.
  * Cada usuario tiene un nombre único y puede estar asociado a múltiples chats.
  * Cada chat puede ser grupal o privado.
+ *
+ * Los usuarios se indexan por id en una tabla de direccionamiento abierto
+ * (sin cajas Integer) y por nombre, sin distinguir mayúsculas. Las búsquedas
+ * no toman ningún candado; las altas usan CAS sobre la ranura de la tabla.
+ * Las bajas dejan una marca (BORRADO) que las búsquedas saltan y que se
+ * limpia la próxima vez que se rehace la tabla.
+ * Aparte se lleva el conjunto de usuarios conectados.
 */
 
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class List_usuario {
 
-    private final List<Usuario> usuarios;
+    private static final int CAPACIDAD_INICIAL = 64;
+    private static final Comparator<Usuario> POR_ID = Comparator.comparingInt(Usuario::getId);
+    // Ranura de un usuario eliminado: no corta el sondeo ni coincide con ningún id
+    private static final Usuario BORRADO = new Usuario("", Integer.MIN_VALUE);
+
+    // Tabla id -> usuario. Cada ranura guarda el usuario (que ya contiene su id).
+    private volatile AtomicReferenceArray<Usuario> tabla = new AtomicReferenceArray<>(CAPACIDAD_INICIAL);
+    private final AtomicInteger tamano = new AtomicInteger();
+    // Ranuras con BORRADO (ocupan lugar hasta rehacer la tabla)
+    private final AtomicInteger borrados = new AtomicInteger();
+    // Las altas comparten el candado de lectura (CAS concurrentes);
+    // el crecimiento de la tabla toma el de escritura.
+    private final ReentrantReadWriteLock redimension = new ReentrantReadWriteLock();
+
+    // Índice por nombre en minúsculas
+    private final ConcurrentHashMap<String, Usuario> porNombre = new ConcurrentHashMap<>();
+    // Usuarios con una conexión viva
+    private final Set<Usuario> conectados = ConcurrentHashMap.newKeySet();
 
     public List_usuario() {
-        this.usuarios = new ArrayList<>();
     }
 
-    // Evita duplicados por id o nombre
-    public synchronized void agregarUsuario(Usuario usuario) {
-        if (usuario == null) return;
-        for (Usuario u : usuarios) {
-            if (u.getId() == usuario.getId() || u.getNombre().equalsIgnoreCase(usuario.getNombre())) {
-                return; // ya existe
+    // Evita duplicados por id o nombre. Devuelve true si se agregó.
+    public boolean agregarUsuario(Usuario usuario) {
+        if (usuario == null) return false;
+        String clave = clave(usuario.getNombre());
+        if (porNombre.putIfAbsent(clave, usuario) != null) {
+            return false; // nombre ya existe
+        }
+        boolean agregado;
+        redimension.readLock().lock();
+        try {
+            agregado = insertar(tabla, usuario);
+        } finally {
+            redimension.readLock().unlock();
+        }
+        if (!agregado) {
+            porNombre.remove(clave, usuario); // id ya existe
+            return false;
+        }
+        if ((tamano.incrementAndGet() + borrados.get()) * 4 > tabla.length() * 3) {
+            crecer();
+        }
+        return true;
+    }
+
+    // Quita al usuario de los índices (y de los conectados). Devuelve true si estaba.
+    public boolean eliminarUsuario(Usuario usuario) {
+        if (usuario == null || !porNombre.remove(clave(usuario.getNombre()), usuario)) return false;
+        conectados.remove(usuario);
+        redimension.readLock().lock();
+        try {
+            AtomicReferenceArray<Usuario> t = tabla;
+            int mask = t.length() - 1;
+            for (int i = indice(usuario.getId(), mask); ; i = (i + 1) & mask) {
+                Usuario u = t.get(i);
+                if (u == null) return true;
+                if (u == usuario && t.compareAndSet(i, u, BORRADO)) break;
             }
+        } finally {
+            redimension.readLock().unlock();
+        }
+        tamano.decrementAndGet();
+        borrados.incrementAndGet();
+        return true;
+    }
+
+    // Búsqueda sin candados por id
+    public Usuario getUsuarioPorId(int id) {
+        AtomicReferenceArray<Usuario> t = tabla;
+        int mask = t.length() - 1;
+        for (int i = indice(id, mask); ; i = (i + 1) & mask) {
+            Usuario u = t.get(i);
+            if (u == null) return null;
+            if (u != BORRADO && u.getId() == id) return u;
         }
-        this.usuarios.add(usuario);
     }
 
-    public synchronized List<Usuario> getUsuarios() {
-        return new ArrayList<>(usuarios);
+    public Usuario getUsuarioPorNombre(String nombre) {
+        if (nombre == null) return null;
+        return porNombre.get(clave(nombre));
+    }
+
+    public List<Usuario> getUsuarios() {
+        List<Usuario> lista = new ArrayList<>(porNombre.values());
+        lista.sort(POR_ID);
+        return lista;
     }
 
     //Borrar la lista de usuarios una vez que el servidor se apague
-    public synchronized void clearUsuarios() {
-        this.usuarios.clear();
+    public void clearUsuarios() {
+        redimension.writeLock().lock();
+        try {
+            tabla = new AtomicReferenceArray<>(CAPACIDAD_INICIAL);
+            tamano.set(0);
+            borrados.set(0);
+            porNombre.clear();
+            conectados.clear();
+        } finally {
+            redimension.writeLock().unlock();
+        }
     }
 
-    //Listar usuarios activos (devuelve copia)
-    public synchronized List<Usuario> listarUsuariosActivos() {
-        return new ArrayList<>(this.usuarios);
+    public void marcarConectado(Usuario u) {
+        if (u == null) return;
+        u.setActive(true);
+        conectados.add(u);
     }
 
-    public synchronized int contarUsuarios() {
-        return this.usuarios.size();
+    public void marcarDesconectado(Usuario u) {
+        if (u == null) return;
+        u.setActive(false);
+        conectados.remove(u);
+    }
+
+    //Listar usuarios conectados (devuelve copia ordenada por id)
+    public List<Usuario> listarUsuariosActivos() {
+        List<Usuario> lista = new ArrayList<>(conectados);
+        lista.sort(POR_ID);
+        return lista;
+    }
+
+    public int contarUsuarios() {
+        return tamano.get();
+    }
+
+    public int contarConectados() {
+        return conectados.size();
     }
 
     // Obtener nombres para enviar al cliente
-    public synchronized List<String> listarNombres() {
+    public List<String> listarNombres() {
         List<String> names = new ArrayList<>();
-        for (Usuario u : usuarios) {
+        for (Usuario u : getUsuarios()) {
             names.add(u.getNombre());
         }
         return names;
     }
 
-    // Nuevo: buscar usuario por id
-    public synchronized Usuario getUsuarioPorId(int id) {
-        for (Usuario u : usuarios) {
-            if (u.getId() == id) return u;
+    // Inserta con CAS en la primera ranura libre; false si el id ya existe
+    private static boolean insertar(AtomicReferenceArray<Usuario> t, Usuario usuario) {
+        int id = usuario.getId();
+        int mask = t.length() - 1;
+        int i = indice(id, mask);
+        while (true) {
+            Usuario u = t.get(i);
+            if (u == null) {
+                if (t.compareAndSet(i, null, usuario)) return true;
+                continue; // otro hilo ocupó la ranura: revisarla de nuevo
+            }
+            if (u != BORRADO && u.getId() == id) return false;
+            i = (i + 1) & mask;
         }
-        return null;
     }
-}
 
+    // Rehace la tabla sin las marcas de borrado; sólo la duplica si los
+    // usuarios vivos ya ocupan más de la mitad de lo que se permite
+    private void crecer() {
+        redimension.writeLock().lock();
+        try {
+            AtomicReferenceArray<Usuario> vieja = tabla;
+            if ((tamano.get() + borrados.get()) * 4 <= vieja.length() * 3) return; // otro hilo ya creció
+            int largo = tamano.get() * 8 > vieja.length() * 3 ? vieja.length() * 2 : vieja.length();
+            AtomicReferenceArray<Usuario> nueva = new AtomicReferenceArray<>(largo);
+            for (int i = 0; i < vieja.length(); i++) {
+                Usuario u = vieja.get(i);
+                if (u != null && u != BORRADO) insertar(nueva, u);
+            }
+            borrados.set(0);
+            tabla = nueva;
+        } finally {
+            redimension.writeLock().unlock();
+        }
+    }
+
+    private static int indice(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static String clave(String nombre) {
+        return nombre.toLowerCase(Locale.ROOT);
+    }
+}
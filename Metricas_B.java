@@ -0,0 +1,307 @@
+/*
+ * Metricas_B.java
+ * Métricas del servidor: histogramas de latencia y tamaños, contadores de
+ * tráfico y su ritmo por segundo. Registrar no reserva memoria (contadores
+ * LongAdder y Histograma); el cálculo se hace sólo al consultar.
+ *
+ * Se consultan con el comando /metricas (sólo usuarios de -Dchat.admins en
+ * una conexión autenticada, ver Claves_Usuarios) o
+ * por JMX como chat:type=Metricas (Metricas_BMBean).
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class Metricas_B implements Metricas_BMBean {
+
+	// Tiempo de trabajo de cada vuelta del selector (sin contar la espera en select)
+	public static final Histograma bucleSelector = new Histograma("bucle selector", "us");
+	// Tiempo de procesar una línea recibida
+	public static final Histograma comando = new Histograma("comando", "us");
+	// Bytes en la cola de escritura de una conexión cada vez que se vacía
+	public static final Histograma colaEscritura = new Histograma("cola escritura", "bytes");
+	// Destinatarios por difusión
+	public static final Histograma difusion = new Histograma("difusion", "destinatarios");
+	// Tiempo de CPU de comprimir cada envío (ver Compresion)
+	public static final Histograma compresion = new Histograma("compresion", "us");
+
+	public static final LongAdder bytesEntrada = new LongAdder();
+	public static final LongAdder bytesSalida = new LongAdder();
+	public static final LongAdder mensajesEntrada = new LongAdder();
+	public static final LongAdder mensajesSalida = new LongAdder();
+	// Bytes antes y después de comprimir, y envíos que no se achicaron
+	public static final LongAdder compresionOriginal = new LongAdder();
+	public static final LongAdder compresionComprimido = new LongAdder();
+	public static final LongAdder compresionSinGanancia = new LongAdder();
+	// Cambios de presencia recibidos y avisos agrupados enviados (ver Presencia)
+	public static final LongAdder presenciaCambios = new LongAdder();
+	public static final LongAdder presenciaAvisos = new LongAdder();
+	// Tramas entre nodos del cluster y escrituras (lotes) que las llevaron
+	public static final LongAdder clusterEnviadas = new LongAdder();
+	public static final LongAdder clusterLotes = new LongAdder();
+	public static final LongAdder clusterRecibidas = new LongAdder();
+	// Sesiones reanudadas y mensajes perdidos reenviados al reanudar
+	public static final LongAdder sesionesReanudadas = new LongAdder();
+	public static final LongAdder sesionesPerdidos = new LongAdder();
+
+	// Usuarios que pueden usar /metricas
+	private static final Set<String> ADMINS;
+
+	static {
+		String prop = System.getProperty("chat.admins", "");
+		Set<String> admins = new HashSet<>();
+		for (String a : prop.split(",")) {
+			if (!a.trim().isEmpty()) admins.add(a.trim());
+		}
+		ADMINS = Collections.unmodifiableSet(admins);
+	}
+
+	private static final Metricas_B INSTANCIA = new Metricas_B();
+
+	// Ritmos del último segundo (los calcula el hilo de muestreo)
+	private volatile double bytesEntradaSeg, bytesSalidaSeg, mensajesEntradaSeg, mensajesSalidaSeg;
+	private long[] anterior = new long[4];
+	private long instanteAnterior = System.nanoTime();
+
+	private Metricas_B() {
+	}
+
+	// Registra el MBean y arranca el muestreo por segundo
+	public static void iniciar() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCIA, new ObjectName("chat:type=Metricas"));
+		} catch (JMException e) {
+			System.err.println("No se pudo registrar el MBean de métricas: " + e.getMessage());
+		}
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				INSTANCIA.muestrear();
+			}
+		}, "metricas");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// Además del nombre, la conexión tiene que estar autenticada para él
+	public static boolean esAdmin(Conexion c) {
+		Usuario u = c.getUsuario();
+		return u != null && c.isAutenticada() && ADMINS.contains(u.getNombre());
+	}
+
+	public static String reporte() {
+		return INSTANCIA.getReporte();
+	}
+
+	private void muestrear() {
+		long ahora = System.nanoTime();
+		long[] actual = { bytesEntrada.sum(), bytesSalida.sum(), mensajesEntrada.sum(), mensajesSalida.sum() };
+		double seg = (ahora - instanteAnterior) / 1e9;
+		bytesEntradaSeg = (actual[0] - anterior[0]) / seg;
+		bytesSalidaSeg = (actual[1] - anterior[1]) / seg;
+		mensajesEntradaSeg = (actual[2] - anterior[2]) / seg;
+		mensajesSalidaSeg = (actual[3] - anterior[3]) / seg;
+		anterior = actual;
+		instanteAnterior = ahora;
+	}
+
+	@Override
+	public int getUsuariosConectados() {
+		return Servidor_B.contarConectados();
+	}
+
+	@Override
+	public int getChats() {
+		return Servidor_B.contarChats();
+	}
+
+	@Override
+	public double getBytesEntradaPorSegundo() {
+		return bytesEntradaSeg;
+	}
+
+	@Override
+	public double getBytesSalidaPorSegundo() {
+		return bytesSalidaSeg;
+	}
+
+	@Override
+	public double getMensajesEntradaPorSegundo() {
+		return mensajesEntradaSeg;
+	}
+
+	@Override
+	public double getMensajesSalidaPorSegundo() {
+		return mensajesSalidaSeg;
+	}
+
+	@Override
+	public long getBytesEntradaTotales() {
+		return bytesEntrada.sum();
+	}
+
+	@Override
+	public long getBytesSalidaTotales() {
+		return bytesSalida.sum();
+	}
+
+	@Override
+	public long getBucleSelectorP99Micros() {
+		return bucleSelector.percentil(99);
+	}
+
+	@Override
+	public long getBucleSelectorMaxMicros() {
+		return bucleSelector.getMaximo();
+	}
+
+	@Override
+	public long getComandoP50Micros() {
+		return comando.percentil(50);
+	}
+
+	@Override
+	public long getComandoP99Micros() {
+		return comando.percentil(99);
+	}
+
+	@Override
+	public long getColaEscrituraP99Bytes() {
+		return colaEscritura.percentil(99);
+	}
+
+	@Override
+	public long getDifusionP99Destinatarios() {
+		return difusion.percentil(99);
+	}
+
+	@Override
+	public long getBytesEnColas() {
+		return Cola_Escritura.getBytesTotales();
+	}
+
+	@Override
+	public int getColasSaturadas() {
+		return Cola_Escritura.getColasSaturadas();
+	}
+
+	@Override
+	public long getLineasDescartadas() {
+		return Cola_Escritura.getLineasDescartadas();
+	}
+
+	@Override
+	public int getCompresionNivel() {
+		return Compresion.NIVEL;
+	}
+
+	@Override
+	public double getCompresionProporcion() {
+		long original = compresionOriginal.sum();
+		return original == 0 ? 1 : (double) compresionComprimido.sum() / original;
+	}
+
+	@Override
+	public long getCompresionBytesAhorrados() {
+		return compresionOriginal.sum() - compresionComprimido.sum();
+	}
+
+	@Override
+	public long getCompresionCpuMillis() {
+		return (long) (compresion.getMedia() * compresion.getCuenta() / 1000);
+	}
+
+	@Override
+	public long getBitacoraEscritos() {
+		return Bitacora_B.getEscritos();
+	}
+
+	@Override
+	public long getBitacoraOmitidos() {
+		return Bitacora_B.getMuestreados() + Bitacora_B.getDescartados();
+	}
+
+	@Override
+	public long getPresenciaCambios() {
+		return presenciaCambios.sum();
+	}
+
+	@Override
+	public long getPresenciaAvisos() {
+		return presenciaAvisos.sum();
+	}
+
+	@Override
+	public long getClusterTramasEnviadas() {
+		return clusterEnviadas.sum();
+	}
+
+	@Override
+	public long getClusterLotes() {
+		return clusterLotes.sum();
+	}
+
+	@Override
+	public long getClusterTramasRecibidas() {
+		return clusterRecibidas.sum();
+	}
+
+	@Override
+	public int getSesiones() {
+		return Registro_Sesiones.contar();
+	}
+
+	@Override
+	public long getSesionesReanudadas() {
+		return sesionesReanudadas.sum();
+	}
+
+	@Override
+	public long getSesionesMensajesPerdidos() {
+		return sesionesPerdidos.sum();
+	}
+
+	@Override
+	public String getReporte() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--- Métricas ---\n");
+		sb.append("usuarios conectados: ").append(getUsuariosConectados()).append(", chats: ").append(getChats()).append('\n');
+		sb.append(String.format(Locale.ROOT, "entrada: %.0f bytes/s, %.1f mensajes/s (total %d bytes, %d mensajes)\n", bytesEntradaSeg,
+				mensajesEntradaSeg, bytesEntrada.sum(), mensajesEntrada.sum()));
+		sb.append(String.format(Locale.ROOT, "salida: %.0f bytes/s, %.1f mensajes/s (total %d bytes, %d mensajes)\n", bytesSalidaSeg,
+				mensajesSalidaSeg, bytesSalida.sum(), mensajesSalida.sum()));
+		for (Histograma h : Arrays.asList(bucleSelector, comando, colaEscritura, difusion, compresion)) {
+			sb.append(h.resumen()).append('\n');
+		}
+		sb.append("colas de escritura: ").append(getBytesEnColas()).append(" bytes, ").append(getColasSaturadas())
+				.append(" saturadas, ").append(getLineasDescartadas()).append(" líneas descartadas\n");
+		sb.append(String.format(Locale.ROOT, "compresion: nivel %d, umbral %d bytes; %d -> %d bytes (%.1f %%), %d sin ganancia, %d ms de CPU\n",
+				Compresion.NIVEL, Compresion.UMBRAL, compresionOriginal.sum(), compresionComprimido.sum(), 100 * getCompresionProporcion(),
+				compresionSinGanancia.sum(), getCompresionCpuMillis()));
+		sb.append("presencia: ").append(presenciaCambios.sum()).append(" cambios, ").append(presenciaAvisos.sum())
+				.append(" avisos agrupados\n");
+		sb.append("bitacora: ").append(getBitacoraEscritos()).append(" eventos escritos, ").append(Bitacora_B.getPendientes())
+				.append(" pendientes, ").append(Bitacora_B.getMuestreados()).append(" muestreados, ").append(Bitacora_B.getDescartados())
+				.append(" descartados\n");
+		sb.append("sesiones: ").append(getSesiones()).append(" abiertas o suspendidas, ").append(sesionesReanudadas.sum())
+				.append(" reanudadas, ").append(sesionesPerdidos.sum()).append(" mensajes perdidos reenviados\n");
+		sb.append("cluster: ").append(Cluster_B.resumen());
+		if (Cluster_B.isActivo()) {
+			sb.append("; ").append(clusterEnviadas.sum()).append(" tramas enviadas en ").append(clusterLotes.sum())
+					.append(" lotes, ").append(clusterRecibidas.sum()).append(" recibidas");
+		}
+		sb.append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Metricas_BMBean.java
+ * Interfaz JMX de las métricas del servidor (ver Metricas_B).
+ * Se registra como chat:type=Metricas en el MBeanServer de la plataforma;
+ * se puede consultar con jconsole o jcmd en la misma máquina.
+ */
+
+public interface Metricas_BMBean {
+
+	int getUsuariosConectados();
+
+	int getChats();
+
+	double getBytesEntradaPorSegundo();
+
+	double getBytesSalidaPorSegundo();
+
+	double getMensajesEntradaPorSegundo();
+
+	double getMensajesSalidaPorSegundo();
+
+	long getBytesEntradaTotales();
+
+	long getBytesSalidaTotales();
+
+	long getBucleSelectorP99Micros();
+
+	long getBucleSelectorMaxMicros();
+
+	long getComandoP50Micros();
+
+	long getComandoP99Micros();
+
+	long getColaEscrituraP99Bytes();
+
+	long getDifusionP99Destinatarios();
+
+	long getBytesEnColas();
+
+	int getColasSaturadas();
+
+	long getLineasDescartadas();
+
+	int getCompresionNivel();
+
+	// Bytes comprimidos / bytes originales (1 si aún no se comprimió nada)
+	double getCompresionProporcion();
+
+	long getCompresionBytesAhorrados();
+
+	long getCompresionCpuMillis();
+
+	long getPresenciaCambios();
+
+	long getPresenciaAvisos();
+
+	long getBitacoraEscritos();
+
+	// Eventos de la bitácora perdidos por muestreo o con el anillo lleno
+	long getBitacoraOmitidos();
+
+	long getClusterTramasEnviadas();
+
+	// Escrituras entre nodos: cada una lleva un lote de tramas
+	long getClusterLotes();
+
+	long getClusterTramasRecibidas();
+
+	// Sesiones reanudables guardadas (con conexión o esperando al cliente)
+	int getSesiones();
+
+	long getSesionesReanudadas();
+
+	// Mensajes reenviados a clientes que reanudaron su sesión
+	long getSesionesMensajesPerdidos();
+
+	// Todo lo anterior como texto (lo mismo que responde /metricas)
+	String getReporte();
+}
@@ -0,0 +1,76 @@
+/*
+ * Pool_Buffers.java
+ * Pool de ByteBuffers directos por tamaño (potencias de dos).
+ * Los lectores de cada conexión piden aquí su buffer y lo devuelven al
+ * crecer, encogerse o cerrarse, así no se reserva memoria directa por lectura.
+ * Cada tamaño guarda como mucho -Dchat.buffersPorClase buffers y
+ * -Dchat.bytesPorClase bytes (por defecto 16 MB): de los grandes quedan
+ * pocos, y los mayores que ese presupuesto no se guardan.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Pool_Buffers {
+
+	// Tamaño mínimo: 4 KB (2^12)
+	static final int MIN_SHIFT = 12;
+	// Buffers y bytes guardados como máximo por cada tamaño
+	private static final int MAX_POR_CLASE = Integer.getInteger("chat.buffersPorClase", 256);
+	private static final long BYTES_POR_CLASE = Long.getLong("chat.bytesPorClase", 16L * 1024 * 1024);
+	private static final int CLASES = 31 - MIN_SHIFT;
+
+	private static final Queue<ByteBuffer>[] libres = crearClases();
+	private static final AtomicInteger[] cuenta = new AtomicInteger[CLASES];
+	// Máximo de buffers guardados de cada tamaño (0: no se guardan)
+	private static final int[] maximo = new int[CLASES];
+
+	static {
+		for (int i = 0; i < CLASES; i++) {
+			cuenta[i] = new AtomicInteger();
+			maximo[i] = (int) Math.min(MAX_POR_CLASE, BYTES_POR_CLASE >> (i + MIN_SHIFT));
+		}
+	}
+
+	private Pool_Buffers() {
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Queue<ByteBuffer>[] crearClases() {
+		Queue<ByteBuffer>[] q = new Queue[CLASES];
+		for (int i = 0; i < CLASES; i++) q[i] = new ConcurrentLinkedQueue<>();
+		return q;
+	}
+
+	// Devuelve un buffer directo limpio con capacidad >= minimo
+	public static ByteBuffer obtener(int minimo) {
+		int clase = clase(minimo);
+		ByteBuffer buf = libres[clase].poll();
+		if (buf != null) {
+			cuenta[clase].decrementAndGet();
+			buf.clear();
+			return buf;
+		}
+		return ByteBuffer.allocateDirect(1 << (clase + MIN_SHIFT));
+	}
+
+	public static void devolver(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect()) return;
+		int cap = buf.capacity();
+		if (Integer.bitCount(cap) != 1 || cap < (1 << MIN_SHIFT)) return;
+		int clase = Integer.numberOfTrailingZeros(cap) - MIN_SHIFT;
+		if (clase >= CLASES) return;
+		if (cuenta[clase].incrementAndGet() > maximo[clase]) {
+			cuenta[clase].decrementAndGet();
+			return; // el GC liberará el buffer
+		}
+		libres[clase].add(buf);
+	}
+
+	private static int clase(int minimo) {
+		if (minimo <= (1 << MIN_SHIFT)) return 0;
+		return 32 - Integer.numberOfLeadingZeros(minimo - 1) - MIN_SHIFT;
+	}
+}
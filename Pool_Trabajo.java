@@ -0,0 +1,35 @@
+/*
+ * Pool_Trabajo.java
+ * Pool de hilos compartido para el trabajo que no debe correr en los reactores
+ * (difusión de chats, etc.). El tamaño se configura con -Dchat.hilosTrabajo=N
+ * y por defecto es el número de núcleos.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Pool_Trabajo {
+
+	private static final int HILOS = Math.max(1,
+			Integer.getInteger("chat.hilosTrabajo", Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(HILOS, new ThreadFactory() {
+		private final AtomicInteger n = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "trabajo-" + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private Pool_Trabajo() {
+	}
+
+	public static void ejecutar(Runnable tarea) {
+		POOL.execute(tarea);
+	}
+}
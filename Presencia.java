@@ -0,0 +1,125 @@
+/*
+ * Presencia.java
+ * Estado en línea / desconectado de los usuarios, fuera del historial.
+ *
+ * Cada conexión o desconexión sólo marca al usuario como cambiado. Un hilo
+ * junta los cambios de una ventana corta (-Dchat.presenciaVentana, por
+ * defecto 250 ms) y manda a cada miembro conectado de los chats afectados
+ * un único aviso con todos los cambios que le tocan:
+ *   texto:   "[Presencia] en línea: A, B | desconectados: C"
+ *   binario: trama PRESENCIA
+ * Sólo se avisa si el estado al final de la ventana es distinto del último
+ * avisado: quien se desconecta y vuelve dentro de la ventana no genera nada.
+ * Al entrar a un chat se manda una foto de la presencia de sus miembros.
+ * En cluster también cuentan los usuarios conectados en otros nodos.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Presencia {
+
+	private static final long VENTANA = Math.max(10, Long.getLong("chat.presenciaVentana", 250));
+
+	// Usuarios cuyo estado cambió desde la última ventana
+	private static final Set<Usuario> cambiados = ConcurrentHashMap.newKeySet();
+	// Usuarios avisados como en línea (sólo el hilo de presencia)
+	private static final Set<Usuario> publicadosEnLinea = new HashSet<>();
+
+	private Presencia() {
+	}
+
+	public static void iniciar() {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(VENTANA);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					publicar();
+				} catch (RuntimeException e) {
+					Bitacora_B.evento("Error publicando presencia: " + e);
+				}
+			}
+		}, "presencia");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// El usuario se conectó, se desconectó o cambió de conexión
+	public static void cambio(Usuario u) {
+		cambiados.add(u);
+		Metricas_B.presenciaCambios.increment();
+	}
+
+	// Conectado aquí o, en cluster, en otro nodo
+	public static boolean enLinea(Usuario u) {
+		return u.getConexion() != null || Cluster_B.enOtroNodo(u.getId());
+	}
+
+	// Foto de la presencia de los miembros del chat, para quien entra
+	public static void enviarFoto(Conexion ch, Chat_Grupal chat) {
+		Map<Usuario, Boolean> estados = new LinkedHashMap<>();
+		for (Usuario m : chat.getMiembros()) estados.put(m, enLinea(m));
+		ch.enviar(codificar(ch, estados));
+	}
+
+	// Una ventana: los cambios netos agrupados por destinatario
+	private static void publicar() {
+		if (cambiados.isEmpty()) return;
+		Map<Conexion, Map<Usuario, Boolean>> porDestino = new HashMap<>();
+		Iterator<Usuario> it = cambiados.iterator();
+		while (it.hasNext()) {
+			Usuario u = it.next();
+			it.remove();
+			boolean ahora = enLinea(u);
+			boolean antes = publicadosEnLinea.contains(u);
+			if (ahora == antes) continue;
+			if (ahora) {
+				publicadosEnLinea.add(u);
+			} else {
+				publicadosEnLinea.remove(u);
+			}
+			for (Chat_Grupal chat : u.getChatsAsociados()) {
+				for (Conexion dest : chat.getConectados()) {
+					if (dest.getUsuario() == u) continue;
+					porDestino.computeIfAbsent(dest, k -> new LinkedHashMap<>()).put(u, ahora);
+				}
+			}
+		}
+		for (Map.Entry<Conexion, Map<Usuario, Boolean>> e : porDestino.entrySet()) {
+			e.getKey().enviar(codificar(e.getKey(), e.getValue()));
+			Metricas_B.presenciaAvisos.increment();
+		}
+	}
+
+	private static ByteBuffer codificar(Conexion ch, Map<Usuario, Boolean> estados) {
+		if (ch.isBinario()) {
+			Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.PRESENCIA, 4 + estados.size() * 16).entero(estados.size());
+			for (Map.Entry<Usuario, Boolean> e : estados.entrySet()) {
+				t.entero(e.getKey().getId()).octeto(e.getValue() ? 1 : 0).nombre(e.getKey().getNombre());
+			}
+			return t.fin();
+		}
+		List<String> enLinea = new ArrayList<>();
+		List<String> desconectados = new ArrayList<>();
+		for (Map.Entry<Usuario, Boolean> e : estados.entrySet()) {
+			(e.getValue() ? enLinea : desconectados).add(e.getKey().getNombre());
+		}
+		StringBuilder sb = new StringBuilder("[Presencia]");
+		if (!enLinea.isEmpty()) sb.append(" en línea: ").append(String.join(", ", enLinea));
+		if (!enLinea.isEmpty() && !desconectados.isEmpty()) sb.append(" |");
+		if (!desconectados.isEmpty()) sb.append(" desconectados: ").append(String.join(", ", desconectados));
+		return ch.codificarTexto(sb.append('\n').toString());
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Protocolo_Binario.java
+ * Protocolo binario opcional, alternativo al de texto (que sigue siendo el
+ * de por defecto). Pensado para bots y clientes móviles: sin menús, sin
+ * prefijos de texto y con ids numéricos de usuario y de chat.
+ *
+ * Negociación: el cliente manda la línea "PROTO BIN". El servidor contesta
+ * con la línea "PROTO BIN OK" y, desde ahí, los dos lados sólo usan tramas:
+ *
+ *   [int largo][byte código][contenido]      largo = 1 + bytes del contenido
+ *
+ * Enteros en big-endian. "nombre" = short sin signo con el largo + UTF-8;
+ * "texto largo" = int con el largo + UTF-8; "resto" = UTF-8 hasta el final
+ * de la trama. Los mensajes del historial van tal como se guardaron (texto).
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public final class Protocolo_Binario {
+
+	// Línea de negociación y su respuesta (en texto)
+	public static final String PEDIDO = "PROTO BIN";
+	public static final String ACEPTADO = "PROTO BIN OK";
+
+	// ---- Cliente -> servidor ----
+	public static final byte LISTAR_USUARIOS = 0x01; // -
+	public static final byte LISTAR_CHATS = 0x02; // -
+	public static final byte CREAR_CHAT = 0x03; // nombre, short n, int id * n
+	public static final byte ENTRAR_CHAT = 0x04; // int chat
+	public static final byte ADIOS = 0x05; // -
+	public static final byte SALIR_CHAT = 0x06; // int chat
+	public static final byte LOGIN = 0x07; // nombre [, nombre clave] (ver Claves_Usuarios)
+	public static final byte MIS_CHATS = 0x08; // -
+	public static final byte MENSAJE = 0x10; // resto (al chat actual)
+	public static final byte PRIVADO = 0x11; // int destino, resto
+	public static final byte PEDIR_HISTORIAL = 0x12; // short n (0: por defecto)
+	public static final byte MENU = 0x13; // - (deja el chat actual)
+	public static final byte SUBIR_INICIO = 0x14; // nombre id, long tamaño, nombre archivo
+	public static final byte SUBIR_BLOQUE = 0x15; // nombre id, bytes
+	public static final byte SUBIR_FIN = 0x16; // nombre id, int crc32
+	public static final byte DESCARGAR = 0x17; // nombre hash
+	public static final byte METRICAS = 0x18; // -
+
+	// ---- Servidor -> cliente ----
+	public static final byte BIENVENIDA = (byte) 0x81; // int usuario, nombre
+	public static final byte USUARIOS = (byte) 0x82; // int n, (int id, nombre) * n
+	public static final byte CHATS = (byte) 0x83; // int n, (int id, int miembros, nombre) * n
+	public static final byte EN_CHAT = (byte) 0x84; // int chat, nombre, int n, (int id, nombre) * n
+	public static final byte MENSAJE_CHAT = (byte) 0x85; // int chat, int usuario, resto
+	public static final byte PRIVADO_DE = (byte) 0x86; // int usuario, resto
+	public static final byte AVISO = (byte) 0x87; // int chat, resto
+	public static final byte TEXTO = (byte) 0x88; // resto (respuestas y errores)
+	public static final byte HISTORIAL = (byte) 0x89; // int chat, long primero, int n, texto largo * n
+	public static final byte MIEMBRO = (byte) 0x8A; // int chat, int usuario, byte 1 entra / 0 sale, nombre
+	public static final byte ARCHIVO_INICIO = (byte) 0x8B; // long id, int emisor, long tamaño, nombre
+	public static final byte ARCHIVO_BLOQUE = (byte) 0x8C; // long id, bytes
+	public static final byte ARCHIVO_FIN = (byte) 0x8D; // long id, int crc32
+	public static final byte PRESENCIA = (byte) 0x8F; // int n, (int usuario, byte 1 en línea / 0 no, nombre) * n
+	public static final byte COMPRIMIDO = (byte) 0x8E; // int originales, bytes zlib con tramas completas (ver Compresion)
+	public static final byte SECUENCIA = (byte) 0x90; // int chat, long seq del mensaje que sigue (ver Registro_Sesiones)
+
+	private static final int MAX_NOMBRE = 0xFFFF;
+
+	private Protocolo_Binario() {
+	}
+
+	// Arma una trama; el largo se completa en fin()
+	public static final class Trama {
+		private ByteBuffer buf;
+
+		public Trama(byte codigo) {
+			this(codigo, 64);
+		}
+
+		public Trama(byte codigo, int capacidad) {
+			buf = ByteBuffer.allocate(5 + capacidad);
+			buf.putInt(0).put(codigo);
+		}
+
+		public Trama entero(int v) {
+			asegurar(4);
+			buf.putInt(v);
+			return this;
+		}
+
+		public Trama largo(long v) {
+			asegurar(8);
+			buf.putLong(v);
+			return this;
+		}
+
+		public Trama octeto(int v) {
+			asegurar(1);
+			buf.put((byte) v);
+			return this;
+		}
+
+		public Trama corto(int v) {
+			asegurar(2);
+			buf.putShort((short) v);
+			return this;
+		}
+
+		public Trama nombre(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			int n = Math.min(b.length, MAX_NOMBRE);
+			asegurar(2 + n);
+			buf.putShort((short) n).put(b, 0, n);
+			return this;
+		}
+
+		public Trama textoLargo(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			asegurar(4 + b.length);
+			buf.putInt(b.length).put(b);
+			return this;
+		}
+
+		// Sólo como último campo
+		public Trama resto(String s) {
+			return bytes(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public Trama bytes(byte[] b) {
+			asegurar(b.length);
+			buf.put(b);
+			return this;
+		}
+
+		public Trama bytes(ByteBuffer b) {
+			asegurar(b.remaining());
+			buf.put(b);
+			return this;
+		}
+
+		public ByteBuffer fin() {
+			buf.putInt(0, buf.position() - 4);
+			buf.flip();
+			return buf;
+		}
+
+		private void asegurar(int n) {
+			if (buf.remaining() >= n) return;
+			ByteBuffer nuevo = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+			buf.flip();
+			nuevo.put(buf);
+			buf = nuevo;
+		}
+	}
+
+	// ---- Lectura (el buffer empieza después del código) ----
+
+	public static String leerNombre(ByteBuffer b) {
+		int n = b.getShort() & 0xFFFF;
+		return leerUtf8(b, n);
+	}
+
+	public static String leerTextoLargo(ByteBuffer b) {
+		return leerUtf8(b, b.getInt());
+	}
+
+	public static String leerResto(ByteBuffer b) {
+		return leerUtf8(b, b.remaining());
+	}
+
+	private static String leerUtf8(ByteBuffer b, int n) {
+		if (n < 0 || n > b.remaining()) throw new IllegalArgumentException("campo de texto inválido");
+		String s;
+		if (b.hasArray()) {
+			s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+		} else {
+			byte[] tmp = new byte[n];
+			b.duplicate().get(tmp);
+			s = new String(tmp, StandardCharsets.UTF_8);
+		}
+		b.position(b.position() + n);
+		return s;
+	}
+
+	// ---- Tramas del servidor ----
+
+	// Texto libre (respuestas, confirmaciones, errores); sin el \n final
+	public static ByteBuffer texto(String s) {
+		int fin = s.length();
+		while (fin > 0 && s.charAt(fin - 1) == '\n') fin--;
+		return new Trama(TEXTO, fin).resto(s.substring(0, fin)).fin();
+	}
+
+	public static ByteBuffer mensajeChat(int chat, int usuario, String texto) {
+		return new Trama(MENSAJE_CHAT, 8 + texto.length()).entero(chat).entero(usuario).resto(texto).fin();
+	}
+
+	public static ByteBuffer aviso(int chat, String texto) {
+		return new Trama(AVISO, 4 + texto.length()).entero(chat).resto(texto).fin();
+	}
+
+	public static ByteBuffer miembro(int chat, Usuario u, boolean entra) {
+		return new Trama(MIEMBRO).entero(chat).entero(u.getId()).octeto(entra ? 1 : 0).nombre(u.getNombre()).fin();
+	}
+
+	public static ByteBuffer historial(int chat, long primero, List<String> mensajes) {
+		Trama t = new Trama(HISTORIAL, 16 + mensajes.size() * 48).entero(chat).largo(primero).entero(mensajes.size());
+		for (String m : mensajes) t.textoLargo(m);
+		return t.fin();
+	}
+
+	public static ByteBuffer secuencia(int chat, long seq) {
+		return new Trama(SECUENCIA, 12).entero(chat).largo(seq).fin();
+	}
+
+	// Cabecera de un bloque de archivo cuyos n bytes van a continuación
+	public static ByteBuffer cabeceraBloque(long id, int n) {
+		ByteBuffer b = ByteBuffer.allocate(4 + 1 + 8);
+		b.putInt(1 + 8 + n).put(ARCHIVO_BLOQUE).putLong(id);
+		b.flip();
+		return b;
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ * Reactor_B.java
+ * Bucle de eventos (Selector) que atiende un subconjunto de las conexiones.
+ * El hilo aceptador de Servidor_B reparte los canales aceptados entre varios
+ * reactores; cada reactor lee, separa líneas y escribe sólo sus propios canales.
+ *
+ * Escritura: las conexiones con datos encolados durante una vuelta del
+ * selector se vacían al final de esa vuelta con una escritura agrupada
+ * (write(ByteBuffer[])); sólo si el socket no acepta todo se registra OP_WRITE.
+ * Tras cada escritura se revisa la cola: si un cliente lento la dejó por
+ * encima de la marca alta se aplica la política de Cola_Escritura.
+ *
+ * Tareas: el estado de una conexión (menú, chat actual) sólo lo toca su
+ * reactor. Otro hilo que deba cambiarlo (la respuesta de otro nodo, por
+ * ejemplo) le pasa la continuación con ejecutar() y el reactor la corre
+ * al principio de la próxima vuelta.
+ *
+ * Errores: una excepción no prevista al atender una conexión (un comando
+ * con un error de programación, por ejemplo) se anota en la bitácora y
+ * cierra sólo esa conexión; el reactor sigue con las demás.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Reactor_B implements Runnable {
+
+	private final int indice;
+	private final Selector selector;
+	// Máximo de buffers por llamada write(ByteBuffer[])
+	private static final int MAX_GATHER = 64;
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	// Conexiones con escrituras pendientes de vaciar al final de la vuelta
+	private final List<Conexion> lote = new ArrayList<>();
+
+	// Canales recién aceptados pendientes de registrar en este selector
+	private final Queue<SocketChannel> nuevos = new ConcurrentLinkedQueue<>();
+	// Conexiones con escrituras encoladas desde otros hilos
+	private final Queue<Conexion> pendientesEscritura = new ConcurrentLinkedQueue<>();
+	// Tareas de otros hilos para correr en este reactor
+	private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+
+	private volatile Thread hilo;
+
+	public Reactor_B(int indice) throws IOException {
+		this.indice = indice;
+		this.selector = Selector.open();
+	}
+
+	public void iniciar() {
+		Thread t = new Thread(this, "reactor-" + indice);
+		hilo = t;
+		t.start();
+	}
+
+	// Llamado por el hilo aceptador
+	public void registrar(SocketChannel client) {
+		nuevos.add(client);
+		selector.wakeup();
+	}
+
+	// Pide que se vacíe la cola de escritura de la conexión
+	public void solicitarEscritura(Conexion c) {
+		if (Thread.currentThread() == hilo) {
+			agregarALote(c);
+		} else if (c.escrituraSolicitada.compareAndSet(false, true)) {
+			pendientesEscritura.add(c);
+			selector.wakeup();
+		}
+	}
+
+	// Corre la tarea en el hilo del reactor (ya mismo si se llama desde él)
+	public void ejecutar(Runnable tarea) {
+		if (Thread.currentThread() == hilo) {
+			tarea.run();
+		} else {
+			tareas.add(tarea);
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Bitacora_B.evento("Error en selector del reactor " + indice + ": " + e.getMessage());
+				continue;
+			}
+			long inicio = System.nanoTime();
+			try {
+				registrarNuevos();
+				atenderPendientes();
+				atenderTareas();
+			} catch (RuntimeException e) {
+				Bitacora_B.evento("Error en el reactor " + indice + ": " + describir(e));
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Conexion c = (Conexion) key.attachment();
+				if (!key.isValid()) continue;
+				try {
+					if (key.isReadable()) {
+						if (!leer(c, key)) continue;
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						escribir(c, key);
+					}
+				} catch (RuntimeException e) {
+					fallo(c, key, e);
+				}
+			}
+
+			vaciarLote();
+			Metricas_B.bucleSelector.registrar((System.nanoTime() - inicio) / 1000);
+		}
+	}
+
+	private void registrarNuevos() {
+		SocketChannel client;
+		while ((client = nuevos.poll()) != null) {
+			Conexion c = null;
+			try {
+				client.configureBlocking(false);
+				c = new Conexion(client, this);
+				client.register(selector, SelectionKey.OP_READ, c);
+				Servidor_B.conexionAceptada(c);
+			} catch (IOException e) {
+				try { client.close(); } catch (IOException ignore) {}
+			} catch (RuntimeException e) {
+				if (c != null) {
+					fallo(c, client.keyFor(selector), e);
+				} else {
+					try { client.close(); } catch (IOException ignore) {}
+				}
+			}
+		}
+	}
+
+	private void atenderPendientes() {
+		Conexion c;
+		while ((c = pendientesEscritura.poll()) != null) {
+			c.escrituraSolicitada.set(false);
+			agregarALote(c);
+		}
+	}
+
+	private void atenderTareas() {
+		Runnable tarea;
+		while ((tarea = tareas.poll()) != null) {
+			try {
+				tarea.run();
+			} catch (RuntimeException e) {
+				Bitacora_B.evento("Error en una tarea del reactor " + indice + ": " + describir(e));
+			}
+		}
+	}
+
+	private void agregarALote(Conexion c) {
+		if (!c.enLote) {
+			c.enLote = true;
+			lote.add(c);
+		}
+	}
+
+	// Intento de escritura directa para todo lo encolado en esta vuelta
+	private void vaciarLote() {
+		for (int i = 0; i < lote.size(); i++) {
+			Conexion c = lote.get(i);
+			c.enLote = false;
+			SelectionKey k = c.getCanal().keyFor(selector);
+			if (k == null || !k.isValid()) continue;
+			try {
+				if (c.isReemplazada()) {
+					Bitacora_B.evento(c.getDireccion(), "Cerrando conexión de " + nombre(c) + ": su sesión se reanudó en otra");
+					cerrar(c, k);
+					continue;
+				}
+				// si ya espera OP_WRITE el socket está lleno: lo atiende el selector,
+				// pero la cola puede haber crecido y hay que revisar la política
+				if ((k.interestOps() & SelectionKey.OP_WRITE) != 0) {
+					controlarCola(c, k);
+					continue;
+				}
+				escribir(c, k);
+			} catch (RuntimeException e) {
+				fallo(c, k, e);
+			}
+		}
+		lote.clear();
+	}
+
+	// Devuelve false si la conexión se cerró
+	private boolean leer(Conexion c, SelectionKey key) {
+		Lector_Lineas lector = c.getLector();
+		int read;
+		try {
+			read = lector.leer(c.getCanal());
+		} catch (IOException e) {
+			read = -1;
+		}
+		if (read == -1) {
+			cerrar(c, key);
+			return false;
+		} else if (read > 0) {
+			Metricas_B.bytesEntrada.add(read);
+			if (!lector.extraer(c)) {
+				// el lector dejó de entregar (salida o trama inválida): no se
+				// lee más y se cierra en cuanto salga la respuesta pendiente
+				cambiarInteres(key, 0, SelectionKey.OP_READ);
+				c.cerrarTrasEscribir();
+			} else if (!c.subidaPausada && c.subidaEnCola.get() > Transferencia.MAX_EN_COLA) {
+				// el actor del chat no da abasto con los bloques de esta
+				// subida: no se lee más hasta que los escriba (reanudarSubida)
+				c.subidaPausada = true;
+				cambiarInteres(key, 0, SelectionKey.OP_READ);
+			}
+		}
+		return true;
+	}
+
+	// Desde el actor del chat (por ejecutar), cuando los bloques pendientes
+	// de la conexión bajan de Transferencia.MAX_EN_COLA
+	void reanudarSubida(Conexion c) {
+		if (!c.subidaPausada || c.subidaEnCola.get() > Transferencia.MAX_EN_COLA) return;
+		c.subidaPausada = false;
+		SelectionKey key = c.getCanal().keyFor(selector);
+		if (key != null && key.isValid() && !c.lecturaPausada && !c.isCerrarTrasEscribir()) {
+			cambiarInteres(key, SelectionKey.OP_READ, 0);
+		}
+	}
+
+	// Vacía la cola con escrituras agrupadas. Si el socket no acepta todo,
+	// deja OP_WRITE activo; si la cola queda vacía, lo quita.
+	// Las regiones de archivo se envían con transferTo, una a la vez.
+	private void escribir(Conexion c, SelectionKey key) {
+		SocketChannel ch = c.getCanal();
+		Cola_Escritura q = c.getEscritura();
+		Metricas_B.colaEscritura.registrar(q.getBytes());
+		boolean lleno = false;
+		try {
+			while (!lleno) {
+				Object cabeza = q.cabeza();
+				if (cabeza instanceof Region_Archivo) {
+					Region_Archivo r = (Region_Archivo) cabeza;
+					long antes = r.getRestante();
+					boolean completa = r.transferir(ch);
+					Metricas_B.bytesSalida.add(antes - r.getRestante());
+					if (completa) {
+						q.retirar();
+					} else {
+						lleno = true;
+					}
+					continue;
+				}
+				int n = q.recolectar(gather);
+				if (n == 0) break;
+				long escritos = ch.write(gather, 0, n);
+				q.escritos(escritos);
+				Metricas_B.bytesSalida.add(escritos);
+				// retirar los buffers escritos por completo
+				for (int i = 0; i < n; i++) {
+					if (gather[i].hasRemaining()) {
+						// socket no puede aceptar más ahora
+						lleno = true;
+						break;
+					}
+					q.retirar();
+				}
+				Arrays.fill(gather, 0, n, null);
+			}
+		} catch (IOException e) {
+			Arrays.fill(gather, null);
+			cerrar(c, key);
+			return;
+		}
+		if (!controlarCola(c, key)) return;
+		try {
+			int ops = key.interestOps();
+			if (lleno) {
+				if ((ops & SelectionKey.OP_WRITE) == 0) key.interestOps(ops | SelectionKey.OP_WRITE);
+			} else if (q.isEmpty()) {
+				// quitar flag de escritura
+				if ((ops & SelectionKey.OP_WRITE) != 0) key.interestOps(ops & ~SelectionKey.OP_WRITE);
+				if (c.isCerrarTrasEscribir()) {
+					cerrar(c, key);
+				}
+			}
+		} catch (CancelledKeyException ignored) {}
+	}
+
+	// Aplica la política de cliente lento. Devuelve false si cerró la conexión.
+	private boolean controlarCola(Conexion c, SelectionKey key) {
+		Cola_Escritura q = c.getEscritura();
+		if (q.isDesbordada()) {
+			desconectarLento(c, key, "la cola superó " + Cola_Escritura.MAXIMA + " bytes");
+			return false;
+		}
+		if (q.isSaturada() && q.getBytes() > Cola_Escritura.BAJA) {
+			switch (Cola_Escritura.POLITICA) {
+			case DESCONECTAR:
+				desconectarLento(c, key, "la cola superó " + Cola_Escritura.ALTA + " bytes");
+				return false;
+			case DESCARTAR:
+				c.descartadas += q.descartarAntiguas();
+				break;
+			case PAUSAR:
+				// deja de leer lo que manda este cliente (sus pedidos generan
+				// más salida); lo que otros difunden sigue llegando a la cola
+				if (!c.lecturaPausada) {
+					c.lecturaPausada = true;
+					cambiarInteres(key, 0, SelectionKey.OP_READ);
+					Bitacora_B.evento(c.getDireccion(), "Cliente lento " + nombre(c) + ": lectura en pausa (" + q.getBytes() + " bytes en cola)");
+				}
+				break;
+			}
+		}
+		if (q.actualizarSaturacion()) {
+			Bitacora_B.evento(c.getDireccion(), "Cliente lento " + nombre(c) + ": cola por debajo de la marca baja");
+			if (c.lecturaPausada) {
+				c.lecturaPausada = false;
+				if (!c.isCerrarTrasEscribir() && !c.subidaPausada) cambiarInteres(key, SelectionKey.OP_READ, 0);
+			}
+		}
+		if (c.descartadas > 0 && !q.isSaturada()) {
+			// aviso al alcanzar la marca baja, para no llenar la cola de avisos
+			String aviso = "[Aviso] Se omitieron " + c.descartadas + " mensajes por conexión lenta.\n";
+			c.descartadas = 0;
+			c.enviarTexto(aviso);
+		}
+		return true;
+	}
+
+	// Cierra sin esperar a vaciar la cola: intenta un aviso y suelta todo
+	private void desconectarLento(Conexion c, SelectionKey key, String motivo) {
+		Bitacora_B.evento(c.getDireccion(), "Desconectando cliente lento " + nombre(c) + ": " + motivo);
+		c.getEscritura().vaciar();
+		try {
+			c.getCanal().write(c.codificarTexto("\n[Aviso] Desconectado por conexión lenta: " + motivo + "\n"));
+		} catch (IOException ignore) {
+		}
+		cerrar(c, key);
+	}
+
+	private static void cambiarInteres(SelectionKey key, int agregar, int quitar) {
+		try {
+			key.interestOps((key.interestOps() | agregar) & ~quitar);
+		} catch (CancelledKeyException ignored) {}
+	}
+
+	private static String nombre(Conexion c) {
+		Usuario u = c.getUsuario();
+		return u != null ? u.getNombre() : c.getDireccion();
+	}
+
+	private void cerrar(Conexion c, SelectionKey key) {
+		if (key != null) key.cancel();
+		Servidor_B.cleanupChannel(c);
+	}
+
+	// Excepción no prevista atendiendo una conexión: se anota y se cierra
+	// sólo esa conexión (si también falla el cierre, al menos el canal)
+	private void fallo(Conexion c, SelectionKey key, RuntimeException e) {
+		Bitacora_B.evento(c.getDireccion(), "Error atendiendo a " + nombre(c) + ", se cierra la conexión: " + describir(e));
+		try {
+			cerrar(c, key);
+		} catch (RuntimeException e2) {
+			Bitacora_B.evento(c.getDireccion(), "Error cerrando la conexión: " + describir(e2));
+			try { c.getCanal().close(); } catch (IOException ignore) {}
+		}
+	}
+
+	// La excepción y dónde ocurrió (la bitácora no guarda la traza entera)
+	private static String describir(RuntimeException e) {
+		StackTraceElement[] traza = e.getStackTrace();
+		return traza.length > 0 ? e + " en " + traza[0] : e.toString();
+	}
+}
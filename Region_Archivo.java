@@ -0,0 +1,54 @@
+/*
+ * Region_Archivo.java
+ * Tramo de un archivo en disco encolado para escribirse en un socket.
+ * El reactor lo envía con FileChannel.transferTo, sin copiarlo a memoria.
+ * El archivo se abre al llegar al frente de la cola y se cierra al terminar.
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class Region_Archivo {
+
+	private final Path ruta;
+	private long posicion;
+	private long restante;
+	private FileChannel fc;
+
+	public Region_Archivo(Path ruta, long posicion, long cantidad) {
+		this.ruta = ruta;
+		this.posicion = posicion;
+		this.restante = cantidad;
+	}
+
+	public long getRestante() {
+		return restante;
+	}
+
+	// Escribe lo que acepte el canal; devuelve true si la región terminó
+	public boolean transferir(WritableByteChannel destino) throws IOException {
+		if (restante > 0) {
+			if (fc == null) fc = FileChannel.open(ruta, StandardOpenOption.READ);
+			long n = fc.transferTo(posicion, restante, destino);
+			posicion += n;
+			restante -= n;
+		}
+		if (restante == 0) {
+			cerrar();
+			return true;
+		}
+		return false;
+	}
+
+	public void cerrar() {
+		if (fc == null) return;
+		try {
+			fc.close();
+		} catch (IOException ignore) {
+		}
+		fc = null;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Registro_Chats.java
+ * Índice de los chats grupales del servidor.
+ * Búsqueda por nombre (sin distinguir mayúsculas) y por id numérico en
+ * tablas hash concurrentes; la creación es atómica, así que dos clientes no
+ * pueden crear a la vez dos chats con el mismo nombre.
+ * Los ids nuevos son primero, primero + paso, ...: en cluster cada nodo usa
+ * los suyos (ver Cluster_B) y registra con su id los creados en otros nodos.
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Registro_Chats {
+
+	private final ConcurrentHashMap<String, Chat_Grupal> porNombre = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Chat_Grupal> porId = new ConcurrentHashMap<>();
+	private final AtomicInteger creados = new AtomicInteger();
+	private final int primero;
+	private final int paso;
+
+	public Registro_Chats(int primero, int paso) {
+		this.primero = primero;
+		this.paso = paso;
+	}
+
+	// Crea el chat si no existe otro con el mismo nombre.
+	// Devuelve el chat nuevo, o null si el nombre ya estaba ocupado.
+	public Chat_Grupal crear(String nombre) {
+		if (nombre == null || nombre.trim().isEmpty()) return null;
+		String clave = clave(nombre);
+		Chat_Grupal existente = porNombre.get(clave);
+		if (existente != null) return null;
+		Chat_Grupal nuevo = new Chat_Grupal(nombre, primero + creados.getAndIncrement() * paso);
+		existente = porNombre.putIfAbsent(clave, nuevo);
+		if (existente != null) return null; // otro hilo ganó la carrera
+		porId.put(nuevo.getId(), nuevo);
+		return nuevo;
+	}
+
+	// Registra un chat con un id ya asignado (el de prueba, o uno que creó
+	// otro nodo). Si el nombre ya existe devuelve el chat existente.
+	public Chat_Grupal registrar(String nombre, int id) {
+		String clave = clave(nombre);
+		Chat_Grupal existente = porNombre.get(clave);
+		if (existente != null) return existente;
+		Chat_Grupal nuevo = new Chat_Grupal(nombre, id);
+		existente = porNombre.putIfAbsent(clave, nuevo);
+		if (existente != null) return existente;
+		porId.putIfAbsent(id, nuevo);
+		return nuevo;
+	}
+
+	// Quita un chat que no llegó a usarse (no se pudo abrir su historial); el
+	// nombre queda libre
+	public void quitar(Chat_Grupal chat) {
+		porNombre.remove(clave(chat.getNombre()), chat);
+		porId.remove(chat.getId(), chat);
+	}
+
+	public Chat_Grupal buscar(String nombre) {
+		if (nombre == null) return null;
+		return porNombre.get(clave(nombre));
+	}
+
+	public Chat_Grupal buscarPorId(int id) {
+		return porId.get(id);
+	}
+
+	// Vista de sólo lectura (sin copia) para listar los chats
+	public Collection<Chat_Grupal> todos() {
+		return Collections.unmodifiableCollection(porNombre.values());
+	}
+
+	public int contar() {
+		return porNombre.size();
+	}
+
+	public boolean isEmpty() {
+		return porNombre.isEmpty();
+	}
+
+	private static String clave(String nombre) {
+		return nombre.trim().toLowerCase(Locale.ROOT);
+	}
+}
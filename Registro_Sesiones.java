@@ -0,0 +1,242 @@
+/*
+ * Registro_Sesiones.java
+ * Sesiones reanudables: un cliente que pierde la conexión vuelve a su
+ * usuario y a su chat y recibe sólo los mensajes que se perdió.
+ *
+ * Desde el menú principal (y antes de "PROTO BIN" si se quiere el protocolo
+ * binario) el cliente manda "SESION" y el servidor contesta "SESION <token>".
+ * Si la conexión se corta sin despedirse, la sesión guarda el usuario, el
+ * chat actual y los modos negociados durante -Dchat.sesionDuracion segundos
+ * (por defecto 300). Al reconectar, el cliente manda, en vez de negociar:
+ *
+ *   REANUDAR <token> <chat>:<seq>,<chat>:<seq>,...
+ *
+ * con el número del último mensaje que vio de cada chat. El servidor contesta
+ * "REANUDADA <id> <nombre>", restaura compresión y protocolo binario, y por
+ * cada chat manda en un solo envío, desde el actor del chat, los mensajes
+ * posteriores a ese número (como mucho -Dchat.sesionMaxPerdidos, por defecto
+ * 1000; lo anterior queda para /historial). Reconectar cuesta lo que se
+ * perdió, no el historial entero.
+ *
+ * Para que el cliente sepa qué vio, las conexiones con sesión reciben el
+ * número de cada mensaje de chat justo antes del mensaje:
+ *   texto:   "SEQ|<chat>|<seq>"
+ *   binario: trama SECUENCIA
+ * En cluster los números son los del historial de cada nodo: la sesión sólo
+ * se reanuda en el nodo que la creó.
+ *
+ * Las sesiones vencidas se olvidan en un hilo aparte, cada cuarto de la
+ * duración (entre 1 y 60 segundos); con ellas se va el usuario provisional
+ * que guardaban (ver Servidor_B.olvidarProvisional).
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Registro_Sesiones {
+
+	// Pedido de sesión (y prefijo de la respuesta), reanudación y su respuesta
+	public static final String PEDIDO = "SESION";
+	public static final String REANUDAR = "REANUDAR";
+	public static final String REANUDADA = "REANUDADA";
+	// Prefijo de la línea con el número del mensaje siguiente (protocolo de texto)
+	public static final String MARCA = "SEQ|";
+
+	private static final long DURACION = Math.max(1, Long.getLong("chat.sesionDuracion", 300)) * 1000;
+	public static final int MAX_PERDIDOS = Math.max(1, Integer.getInteger("chat.sesionMaxPerdidos", 1000));
+
+	private static final long INTERVALO_PURGA = Math.max(1000, Math.min(60_000, DURACION / 4));
+
+	private static final SecureRandom azar = new SecureRandom();
+	private static final ConcurrentHashMap<String, Sesion> sesiones = new ConcurrentHashMap<>();
+
+	static {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(INTERVALO_PURGA);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					purgar();
+				} catch (RuntimeException e) {
+					Bitacora_B.evento("Error purgando sesiones: " + e);
+				}
+			}
+		}, "sesiones-purga");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private Registro_Sesiones() {
+	}
+
+	public static final class Sesion {
+		private final String token;
+		// Conexión que la usa; null mientras está suspendida
+		private Conexion conexion;
+		// Lo que se restaura al reanudar (guardado al suspender)
+		private Usuario usuario;
+		private Chat_Grupal chatActual;
+		private boolean binario;
+		private boolean comprimida;
+		// La conexión estaba autenticada (ver Claves_Usuarios): la que reanuda también
+		private boolean autenticada;
+		private long vence;
+
+		private Sesion(String token, Conexion conexion) {
+			this.token = token;
+			this.conexion = conexion;
+		}
+
+		public String getToken() {
+			return token;
+		}
+
+		public synchronized Usuario getUsuario() {
+			return usuario;
+		}
+
+		public synchronized Chat_Grupal getChatActual() {
+			return chatActual;
+		}
+
+		public synchronized boolean isBinario() {
+			return binario;
+		}
+
+		public synchronized boolean isComprimida() {
+			return comprimida;
+		}
+
+		public synchronized boolean isAutenticada() {
+			return autenticada;
+		}
+
+		private synchronized boolean vencida(long ahora) {
+			return conexion == null && ahora > vence;
+		}
+	}
+
+	// Nueva sesión para la conexión
+	public static Sesion crear(Conexion c) {
+		byte[] b = new byte[16];
+		azar.nextBytes(b);
+		Sesion s = new Sesion(Base64.getUrlEncoder().withoutPadding().encodeToString(b), c);
+		sesiones.put(s.token, s);
+		return s;
+	}
+
+	// Toma una sesión suspendida y vigente para la conexión c. Si otra
+	// conexión aún la tiene (el servidor todavía no notó el corte), la
+	// cierra y devuelve null: el cliente reintenta en un momento.
+	public static Sesion tomar(String token, Conexion c) {
+		Sesion s = sesiones.get(token);
+		if (s == null) return null;
+		synchronized (s) {
+			if (s.conexion != null) {
+				if (s.conexion != c) s.conexion.reemplazar();
+				return null;
+			}
+			if (System.currentTimeMillis() > s.vence) {
+				if (sesiones.remove(token, s)) olvidar(s);
+				return null;
+			}
+			s.conexion = c;
+			return s;
+		}
+	}
+
+	// La sesión sigue abierta en otra conexión (ver tomar)
+	public static boolean enUso(String token) {
+		Sesion s = sesiones.get(token);
+		if (s == null) return false;
+		synchronized (s) {
+			return s.conexion != null;
+		}
+	}
+
+	// No se pudo reanudar con c: la sesión vuelve a quedar suspendida
+	public static void soltar(Sesion s, Conexion c) {
+		synchronized (s) {
+			if (s.conexion == c) s.conexion = null;
+		}
+	}
+
+	// Al cerrarse la conexión sin despedirse: guarda su estado y empieza a correr el plazo
+	public static void suspender(Conexion c) {
+		Sesion s = c.getSesion();
+		if (s == null) return;
+		synchronized (s) {
+			if (s.conexion != c) return;
+			s.conexion = null;
+			s.usuario = c.getUsuario();
+			s.chatActual = c.getEstado() == Estado_Conexion.IN_CHAT ? c.getChatActual() : null;
+			s.binario = c.isBinario();
+			s.comprimida = c.isComprimida();
+			s.autenticada = c.isAutenticada();
+			s.vence = System.currentTimeMillis() + DURACION;
+		}
+	}
+
+	// El cliente se despidió: la sesión ya no se puede reanudar
+	public static void terminar(Conexion c) {
+		Sesion s = c.getSesion();
+		if (s == null) return;
+		c.setSesion(null);
+		sesiones.remove(s.token, s);
+	}
+
+	public static int contar() {
+		return sesiones.size();
+	}
+
+	private static void purgar() {
+		long ahora = System.currentTimeMillis();
+		for (Iterator<Sesion> it = sesiones.values().iterator(); it.hasNext();) {
+			Sesion s = it.next();
+			if (s.vencida(ahora) && sesiones.remove(s.token, s)) olvidar(s);
+		}
+	}
+
+	// Sesión vencida: nadie más vuelve a su usuario si era el provisional
+	private static void olvidar(Sesion s) {
+		Usuario u = s.getUsuario();
+		if (u != null) Servidor_B.olvidarProvisional(u);
+	}
+
+	// "<chat>:<seq>,..." -> último número visto por chat (se ignora lo mal formado)
+	public static Map<Integer, Long> leerVistos(String texto) {
+		Map<Integer, Long> vistos = new HashMap<>();
+		for (String par : texto.split(",")) {
+			int i = par.indexOf(':');
+			if (i <= 0) continue;
+			try {
+				vistos.put(Integer.parseInt(par.substring(0, i).trim()), Long.parseLong(par.substring(i + 1).trim()));
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		return vistos;
+	}
+
+	// El mensaje precedido por su número, en un solo buffer (una línea o
+	// trama descartada se lleva también su marca)
+	public static ByteBuffer marcar(int chat, long seq, boolean binario, ByteBuffer mensaje) {
+		ByteBuffer marca = binario ? Protocolo_Binario.secuencia(chat, seq)
+				: ByteBuffer.wrap(lineaMarca(chat, seq).getBytes(StandardCharsets.UTF_8));
+		ByteBuffer b = ByteBuffer.allocate(marca.remaining() + mensaje.remaining());
+		b.put(marca).put(mensaje.duplicate()).flip();
+		return b;
+	}
+
+	public static String lineaMarca(int chat, long seq) {
+		return MARCA + chat + "|" + seq + "\n";
+	}
+}
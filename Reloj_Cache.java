@@ -0,0 +1,52 @@
+/*
+ * Reloj_Cache.java
+ * Hora actual (HH:mm:ss) ya formateada y codificada en UTF-8.
+ * Se recalcula como mucho una vez por segundo, así que formatear la hora de
+ * cada mensaje de chat no asigna memoria.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+public final class Reloj_Cache {
+
+	private static final DateTimeFormatter TIME_FMT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+	private static final class Marca {
+		final long segundo;
+		final String texto;
+		final byte[] bytes;
+
+		Marca(long segundo, String texto) {
+			this.segundo = segundo;
+			this.texto = texto;
+			this.bytes = texto.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	private static volatile Marca actual = new Marca(-1, "00:00:00");
+
+	private Reloj_Cache() {
+	}
+
+	private static Marca marca() {
+		long segundo = System.currentTimeMillis() / 1000;
+		Marca m = actual;
+		if (m.segundo != segundo) {
+			// Varias hebras pueden recalcular a la vez; el resultado es el mismo
+			m = new Marca(segundo, LocalTime.now().format(TIME_FMT));
+			actual = m;
+		}
+		return m;
+	}
+
+	public static String texto() {
+		return marca().texto;
+	}
+
+	// No modificar el arreglo devuelto: es compartido
+	public static byte[] bytes() {
+		return marca().bytes;
+	}
+}
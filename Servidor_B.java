@@ -1,47 +1,97 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.CancelledKeyException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 public class Servidor_B {
 
-	// Puerto del servidor
-	private static final int PORT = 5000;
+	// Puerto del servidor (-Dchat.puerto; cada nodo de un cluster en la misma máquina usa otro)
+	private static final int PORT = Integer.getInteger("chat.puerto", 5000);
+
+	// Número de reactores (selectores de trabajo); por defecto uno por núcleo.
+	// Se puede cambiar con -Dchat.reactores=N o pasando N como primer argumento.
+	private static final int REACTORES_DEFAULT = Runtime.getRuntime().availableProcessors();
 
-	// Estado global del servidor
+	// Estado global del servidor (compartido entre reactores)
 	private static final List_usuario listaUsuarios = new List_usuario();
-	private static final List<Chat_Grupal> chats = new LinkedList<>();
-	private static final Map<SocketChannel, Usuario> socketToUsuario = new HashMap<>();
-	private static int nextUserId = 1000; // id incremental para usuarios clientes
+	// Ids de chats y de usuarios clientes: en cluster cada nodo usa los suyos
+	// (posición del nodo + k * cantidad de nodos), así no se repiten
+	private static final Registro_Chats chats = new Registro_Chats(2 + Cluster_B.posicion(), Cluster_B.cantidad());
+	private static final AtomicInteger usuariosCreados = new AtomicInteger();
 
-	// Estados interactivos por cliente
-	private static final Map<SocketChannel, String> pendingState = new HashMap<>();
-	private static final Map<SocketChannel, String> pendingTemp = new HashMap<>();
-	private static final String S_IDLE = "IDLE";
-	private static final String S_AWAIT_CREATE_IDS = "AWAIT_CREATE_IDS";
-	private static final String S_AWAIT_CREATE_NAME = "AWAIT_CREATE_NAME";
-	private static final String S_AWAIT_ENTER_CHAT = "AWAIT_ENTER_CHAT";
-	private static final String S_AWAIT_LEAVE_CHAT = "AWAIT_LEAVE_CHAT";
-	private static final String S_IN_CHAT = "IN_CHAT";
+	// Comandos que se atienden en cualquier estado. Los bloques de archivo van
+	// aquí porque tras "/chunk" llegan bytes crudos que no deben leerse como líneas.
+	private static final Tabla_Comandos GLOBALES = new Tabla_Comandos()
+			.registrar("/metricas", Tabla_Comandos.Forma.SOLO, false, Servidor_B::metricas)
+			.registrar("/chunk", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, Servidor_B::procesarChunk)
+			.registrar("/fileend", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, Servidor_B::finalizarTransferencia);
 
-	// Map de id usuario -> socket (si está conectado)
-	private static final Map<Integer, SocketChannel> userIdToSocket = new HashMap<>();
+	// Comandos de cada estado del menú; el de por defecto atiende el resto
+	private static final EnumMap<Estado_Conexion, Tabla_Comandos> TABLAS = new EnumMap<>(Estado_Conexion.class);
+
+	static {
+		TABLAS.put(Estado_Conexion.IDLE, new Tabla_Comandos()
+				.registrar("1", Tabla_Comandos.Forma.SOLO, false, Servidor_B::listarUsuarios)
+				.registrar("2", Tabla_Comandos.Forma.SOLO, false, Servidor_B::listarChats)
+				.registrar("3", Tabla_Comandos.Forma.SOLO, false, Servidor_B::pedirIdsChat)
+				.registrar("4", Tabla_Comandos.Forma.SOLO, false, Servidor_B::pedirChatEntrar)
+				.registrar("5", Tabla_Comandos.Forma.SOLO, false, Servidor_B::despedir)
+				.registrar("salir", Tabla_Comandos.Forma.SOLO, true, Servidor_B::despedir)
+				.registrar("6", Tabla_Comandos.Forma.SOLO, false, Servidor_B::pedirChatSalir)
+				.registrar("7", Tabla_Comandos.Forma.SOLO, false, Servidor_B::pedirLogin)
+				.registrar("PROTO", Tabla_Comandos.Forma.CON_ARGUMENTOS, true, Servidor_B::negociarProtocolo)
+				.registrar(Compresion.PEDIDO, Tabla_Comandos.Forma.SOLO, true, Servidor_B::negociarCompresion)
+				.registrar(Registro_Sesiones.PEDIDO, Tabla_Comandos.Forma.SOLO, true, Servidor_B::abrirSesion)
+				.registrar(Registro_Sesiones.REANUDAR, Tabla_Comandos.Forma.CON_ARGUMENTOS, true, Servidor_B::reanudarSesion)
+				.porDefecto(Servidor_B::eco));
+		TABLAS.put(Estado_Conexion.AWAIT_CREATE_IDS, new Tabla_Comandos().porDefecto(Servidor_B::recibirIdsChat));
+		TABLAS.put(Estado_Conexion.AWAIT_CREATE_NAME, new Tabla_Comandos().porDefecto(Servidor_B::crearChat));
+		TABLAS.put(Estado_Conexion.AWAIT_ENTER_CHAT, new Tabla_Comandos().porDefecto(Servidor_B::entrarChat));
+		TABLAS.put(Estado_Conexion.AWAIT_LEAVE_CHAT, new Tabla_Comandos().porDefecto(Servidor_B::salirChat));
+		TABLAS.put(Estado_Conexion.AWAIT_LOGIN, new Tabla_Comandos().porDefecto(Servidor_B::login));
+		TABLAS.put(Estado_Conexion.IN_CHAT, new Tabla_Comandos()
+				.registrar("/priv", Tabla_Comandos.Forma.CON_ARGUMENTOS, true, Servidor_B::mensajePrivado)
+				.registrar("/file", Tabla_Comandos.Forma.CON_ARGUMENTOS, true, Servidor_B::archivoAntiguo)
+				.registrar("/fileinit", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, Servidor_B::iniciarTransferencia)
+				.registrar("/descargar", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, Servidor_B::descargarBlob)
+				.registrar("/historial", Tabla_Comandos.Forma.OPCIONALES, false, Servidor_B::paginaHistorial)
+				.registrar("MEN0", Tabla_Comandos.Forma.SOLO, true, Servidor_B::volverAlMenu)
+				.porDefecto(Servidor_B::mensajeChat));
+	}
 
-	private static final DateTimeFormatter TIME_FMT = DateTimeFormatter.ofPattern("HH:mm:ss");
+	// Map de id usuario -> conexión (si está conectado)
+	private static final Map<Integer, Conexion> userIdToSocket = new ConcurrentHashMap<>();
+
+	private static final byte[] SEPARADOR_MSG = "] : ".getBytes(StandardCharsets.UTF_8);
+	private static final Charset charset = StandardCharsets.UTF_8;
+
+	// Archivos compartidos, guardados una vez por contenido
+	private static final Almacen_Blobs almacen = Almacen_Blobs.desdePropiedades();
+
+	// Mensajes por página de /historial (por defecto y máximo)
+	private static final int PAGINA_HISTORIAL = 50;
+	private static final int MAX_PAGINA_HISTORIAL = 500;
 
 	// Inicializadores de prueba (usuarios y chat grupal)
 	static {
@@ -54,13 +104,22 @@ public class Servidor_B {
 		listaUsuarios.agregarUsuario(r);
 
 		// chat grupal de prueba y asociación
-		Chat_Grupal prueba = new Chat_Grupal("Sala-Prueba");
+		Chat_Grupal prueba = chats.registrar("Sala-Prueba", 1);
 		prueba.agregarMiembro(a);
 		prueba.agregarMiembro(b);
-		chats.add(prueba);
 	}
 
 	public static void main(String[] args) throws IOException {
+		int numReactores = Integer.getInteger("chat.reactores", REACTORES_DEFAULT);
+		if (args.length > 0) {
+			try {
+				numReactores = Integer.parseInt(args[0].trim());
+			} catch (NumberFormatException e) {
+				System.err.println("Número de reactores inválido: " + args[0]);
+			}
+		}
+		if (numReactores < 1) numReactores = 1;
+
 		ServerSocketChannel serverChannel = ServerSocketChannel.open();
 
 		// Intentar permitir reutilizar la dirección si está en TIME_WAIT
@@ -80,462 +139,1332 @@ public class Servidor_B {
 			return;
 		}
 
-		serverChannel.configureBlocking(false);
-
-		Selector selector = Selector.open();
-		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		// Reactores de trabajo: cada uno con su propio Selector e hilo
+		Reactor_B[] reactores = new Reactor_B[numReactores];
+		for (int i = 0; i < numReactores; i++) {
+			reactores[i] = new Reactor_B(i);
+			reactores[i].iniciar();
+		}
 
-		System.out.println("Servidor escuchando en puerto " + PORT);
+		Metricas_B.iniciar();
+		Bitacora_B.iniciar();
+		Presencia.iniciar();
+		try {
+			Cluster_B.iniciar();
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("No se puede iniciar el cluster: " + e.getMessage());
+			serverChannel.close();
+			return;
+		}
 
-		// Estado por canal: buffer de lectura (StringBuilder) y cola de escritura (ByteBuffer)
-		Map<SocketChannel, StringBuilder> readMap = new HashMap<>();
-		Map<SocketChannel, Queue<ByteBuffer>> writeMap = new HashMap<>();
-		Charset charset = StandardCharsets.UTF_8;
-		ByteBuffer tmp = ByteBuffer.allocate(2048);
+		System.out.println("Servidor escuchando en puerto " + PORT + " con " + numReactores + " reactores"
+				+ (Cluster_B.isActivo() ? " (cluster: " + Cluster_B.resumen() + ")" : ""));
 
+		// Bucle aceptador dedicado (canal bloqueante): reparte round-robin
+		int siguiente = 0;
 		while (true) {
-			selector.select();
-			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-			while (it.hasNext()) {
-				SelectionKey key = it.next();
-				it.remove();
-
-				if (key.isAcceptable()) {
-					ServerSocketChannel srv = (ServerSocketChannel) key.channel();
-					SocketChannel client = srv.accept();
-					if (client != null) {
-						client.configureBlocking(false);
-						client.register(selector, SelectionKey.OP_READ);
-						readMap.put(client, new StringBuilder());
-						writeMap.put(client, new LinkedList<>());
-
-						// Crear usuario para este cliente y añadir a la lista global
-						int id = nextUserId++;
-						String defaultName = "user-" + id;
-						Usuario nuevo = new Usuario(defaultName, id);
-						listaUsuarios.agregarUsuario(nuevo);
-						socketToUsuario.put(client, nuevo);
-						userIdToSocket.put(id, client);
-						pendingState.put(client, S_IDLE);
-
-						System.out.println("Conexión aceptada desde " + safeRemoteAddress(client) + " -> creado usuario " + nuevo.getNombre());
-
-						// Enviar mensaje de bienvenida y menú
-						StringBuilder welcome = new StringBuilder();
-						welcome.append("Bienvenido al servidor. Tu usuario: ").append(nuevo.getNombre()).append("\n");
-						welcome.append(menuTexto());
-						enqueueWrite(client, writeMap, ByteBuffer.wrap(welcome.toString().getBytes(charset)));
-						SelectionKey ck = client.keyFor(selector);
-						if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-					}
+			SocketChannel client;
+			try {
+				client = serverChannel.accept();
+			} catch (IOException e) {
+				Bitacora_B.evento("Error aceptando conexión: " + e.getMessage());
+				continue;
+			}
+			if (client == null) continue;
+			reactores[siguiente].registrar(client);
+			siguiente = (siguiente + 1) % numReactores;
+		}
+	}
+
+	// Llamado por el reactor dueño una vez registrado el canal
+	static void conexionAceptada(Conexion c) {
+		// Crear usuario para este cliente y añadir a la lista global
+		int id = 1000 + usuariosCreados.getAndIncrement() * Cluster_B.cantidad() + Cluster_B.posicion();
+		String defaultName = "user-" + id;
+		Usuario nuevo = new Usuario(defaultName, id);
+		listaUsuarios.agregarUsuario(nuevo);
+		listaUsuarios.marcarConectado(nuevo);
+		c.setUsuario(nuevo);
+		// el usuario es suyo: lo acaba de crear
+		c.setAutenticada(true);
+		userIdToSocket.put(id, c);
+		nuevo.setConexion(c);
+
+		Bitacora_B.evento(c.getDireccion(), "Conexión aceptada -> creado usuario " + nuevo.getNombre());
+
+		// Enviar mensaje de bienvenida y menú
+		StringBuilder welcome = new StringBuilder();
+		welcome.append("Bienvenido al servidor. Tu usuario: ").append(nuevo.getNombre()).append("\n");
+		welcome.append(menuTexto());
+		enviar(c, welcome.toString());
+	}
+
+	// Pasa la conexión al usuario indicado si no tiene otra conexión abierta
+	// y le entrega los mensajes privados que recibió mientras no estaba. Sólo
+	// para quien probó que el usuario es suyo (su clave o su sesión, ver
+	// Claves_Usuarios): la conexión queda autenticada.
+	// Atómico sobre userIdToSocket: dos conexiones no pueden tomar el mismo usuario.
+	// En cluster tampoco se toma un usuario conectado en otro nodo.
+	static boolean asociarUsuario(Conexion ch, Usuario u) {
+		if (Cluster_B.enOtroNodo(u.getId())) return false;
+		Conexion anterior = userIdToSocket.putIfAbsent(u.getId(), ch);
+		if (anterior != null && anterior != ch) {
+			if (anterior.isAbierta() || !userIdToSocket.replace(u.getId(), anterior, ch)) return false;
+		}
+		Usuario viejo = ch.getUsuario();
+		if (viejo != null && viejo != u) {
+			listaUsuarios.marcarDesconectado(viejo);
+			userIdToSocket.remove(viejo.getId(), ch);
+			viejo.quitarConexion(ch);
+			// el usuario provisional de la conexión ya no lo puede retomar nadie
+			olvidarProvisional(viejo);
+		}
+		ch.setUsuario(u);
+		// antes de setConexion, que avisa al cluster si está autenticada
+		ch.setAutenticada(true);
+		u.setConexion(ch);
+		listaUsuarios.marcarConectado(u);
+		Buzon_Privado.entregar(u.getId(), ch);
+		return true;
+	}
+
+	// Conexión a la que se le pueden dar los privados de su usuario
+	private static boolean recibePrivados(Conexion c) {
+		return c != null && c.isAbierta() && c.isAutenticada();
+	}
+
+	// "user-<id>" creado al aceptar la conexión. No tiene clave, así que sólo
+	// vuelve a él su conexión o su sesión: cuando ya no tiene ninguna (cierre
+	// sin sesión, sesión vencida, o la conexión pasó a otro usuario) se quita
+	// de la lista y de sus chats y se descartan sus privados pendientes.
+	static void olvidarProvisional(Usuario u) {
+		if (!u.getNombre().equals("user-" + u.getId()) || u.getConexion() != null) return;
+		if (!listaUsuarios.eliminarUsuario(u)) return;
+		Buzon_Privado.descartar(u.getId());
+		for (Chat_Grupal chat : u.getChatsAsociados()) {
+			chat.ejecutar(() -> {
+				chat.eliminarMiembro(u);
+				difundirMiembro(chat, u, false);
+			});
+		}
+	}
+
+	static int contarConectados() {
+		return listaUsuarios.contarConectados();
+	}
+
+	static int contarChats() {
+		return chats.contar();
+	}
+
+	// ---- Cluster: llamados desde los hilos de Cluster_B ----
+
+	static Usuario buscarUsuario(int id) {
+		return listaUsuarios.getUsuarioPorId(id);
+	}
+
+	// Usuario nombrado por otro nodo: se registra aquí la primera vez
+	static Usuario usuarioRemoto(int id, String nombre) {
+		Usuario u = listaUsuarios.getUsuarioPorId(id);
+		if (u != null) return u;
+		Usuario nuevo = new Usuario(nombre, id);
+		if (listaUsuarios.agregarUsuario(nuevo)) return nuevo;
+		u = listaUsuarios.getUsuarioPorId(id);
+		return u != null ? u : nuevo;
+	}
+
+	// Un usuario se conectó o desconectó en otro nodo
+	static void presenciaRemota(Usuario u, boolean enLinea) {
+		if (enLinea) {
+			listaUsuarios.marcarConectado(u);
+		} else if (u.getConexion() == null) {
+			listaUsuarios.marcarDesconectado(u);
+		}
+		Presencia.cambio(u);
+	}
+
+	static List<Usuario> usuariosConectados() {
+		List<Usuario> lista = new ArrayList<>();
+		for (Conexion c : userIdToSocket.values()) {
+			Usuario u = c.getUsuario();
+			if (u != null && c.isAbierta()) lista.add(u);
+		}
+		return lista;
+	}
+
+	static Collection<Chat_Grupal> todosLosChats() {
+		return chats.todos();
+	}
+
+	static Chat_Grupal buscarChat(int id) {
+		return chats.buscarPorId(id);
+	}
+
+	// Chat de otro nodo (nuevo, o su foto al reconectar) con sus miembros
+	static void chatRemoto(int id, String nombre, List<Usuario> miembros) {
+		Chat_Grupal chat = chats.registrar(nombre, id);
+		for (Usuario m : miembros) chat.agregarMiembro(m);
+	}
+
+	// Este nodo es el dueño: crea el chat pedido por otro nodo. respuesta
+	// recibe su id (desde el actor del chat, después del evento CHAT), 0 si
+	// el nombre está ocupado o Cluster_B.SIN_HISTORIAL.
+	static void crearChatPedido(String nombre, Usuario creador, List<Integer> ids, IntConsumer respuesta) {
+		boolean reservado = altaChat(nombre, creador, ids, chat -> {
+			if (chat == null) {
+				respuesta.accept(Cluster_B.SIN_HISTORIAL);
+				return;
+			}
+			respuesta.accept(chat.getId());
+			difundirMiembro(chat, creador, true);
+		});
+		if (!reservado) respuesta.accept(0);
+	}
+
+	// Este nodo es el dueño: un mensaje de un usuario de otro nodo
+	static void mensajePedido(Chat_Grupal chat, Usuario u, String texto) {
+		chat.ejecutar(() -> publicarMensaje(chat, u, texto));
+	}
+
+	// Mensaje ya ordenado por el dueño: a la réplica y a las conexiones de aquí
+	static void mensajeRemoto(Chat_Grupal chat, Usuario u, String linea, String texto) {
+		chat.ejecutar(() -> {
+			long seq = chat.addMessage(linea);
+			difundir(chat, seq, codificarLinea(linea), () -> Protocolo_Binario.mensajeChat(chat.getId(), u.getId(), texto));
+		});
+	}
+
+	// Este nodo es el dueño: alta o baja hecha en otro nodo
+	static void miembroPedido(Chat_Grupal chat, Usuario u, boolean entra) {
+		chat.ejecutar(() -> {
+			cambiarMiembro(chat, u, entra);
+			avisarMiembro(chat, u, entra);
+			Cluster_B.eventoMiembro(chat, u, entra);
+		});
+	}
+
+	// Alta o baja ya ordenada por el dueño
+	static void miembroRemoto(Chat_Grupal chat, Usuario u, boolean entra) {
+		chat.ejecutar(() -> {
+			cambiarMiembro(chat, u, entra);
+			avisarMiembro(chat, u, entra);
+		});
+	}
+
+	private static void cambiarMiembro(Chat_Grupal chat, Usuario u, boolean entra) {
+		if (entra) {
+			chat.agregarMiembro(u);
+		} else {
+			chat.eliminarMiembro(u);
+		}
+	}
+
+	// Privado enviado en otro nodo para un usuario de este
+	static void privadoRemoto(int destId, Usuario emisor, String msgForDest, String privMsg) {
+		Conexion destCh = userIdToSocket.get(destId);
+		if (recibePrivados(destCh)) {
+			entregarPrivado(destCh, emisor, msgForDest, privMsg);
+		} else if (Buzon_Privado.guardar(destId, msgForDest)) {
+			Conexion ahora = userIdToSocket.get(destId);
+			if (ahora != null) Buzon_Privado.entregar(destId, ahora);
+		}
+	}
+
+	// Privados que le guardaron en otro nodo mientras estaba desconectado
+	static void buzonRemoto(int destId, List<String> mensajes) {
+		Conexion destCh = userIdToSocket.get(destId);
+		if (recibePrivados(destCh)) {
+			destCh.enviarTexto(Buzon_Privado.bloque(mensajes));
+			return;
+		}
+		for (String m : mensajes) Buzon_Privado.guardar(destId, m);
+		Conexion ahora = userIdToSocket.get(destId);
+		if (ahora != null) Buzon_Privado.entregar(destId, ahora);
+	}
+
+	// Procesa una línea completa recibida. Devuelve false si ya no deben
+	// procesarse más líneas de esta conexión (cliente pidió salir).
+	static boolean procesarLinea(Conexion ch, String line) {
+		Bitacora_B.linea(ch.getDireccion(), line);
+
+		// Comandos de cualquier estado primero; luego la tabla del estado
+		Tabla_Comandos.Comando global = GLOBALES.buscar(line);
+		if (global != null) return global.ejecutar(ch, line);
+		return TABLAS.get(ch.getEstado()).despachar(ch, line);
+	}
+
+	// PROTO BIN: desde aquí la conexión usa tramas (ver Protocolo_Binario)
+	static boolean negociarProtocolo(Conexion ch, String line) {
+		String protocolo = Tabla_Comandos.argumentos(line);
+		if (!protocolo.equalsIgnoreCase("BIN")) {
+			enviar(ch, "Error: protocolo no soportado: " + protocolo + "\n");
+			return true;
+		}
+		enviar(ch, Protocolo_Binario.ACEPTADO + "\n");
+		ch.usarBinario();
+		Usuario u = ch.getUsuario();
+		ch.enviar(new Protocolo_Binario.Trama(Protocolo_Binario.BIENVENIDA).entero(u.getId()).nombre(u.getNombre()).fin());
+		return true;
+	}
+
+	// ZLIB: desde aquí los envíos grandes pueden ir comprimidos (ver Compresion).
+	// La respuesta se encola antes de activarla, así llega sin comprimir.
+	static boolean negociarCompresion(Conexion ch, String line) {
+		enviar(ch, Compresion.ACEPTADO + "\n");
+		ch.usarCompresion();
+		return true;
+	}
+
+	// SESION: la conexión pasa a tener una sesión reanudable (ver Registro_Sesiones)
+	static boolean abrirSesion(Conexion ch, String line) {
+		Registro_Sesiones.Sesion s = ch.getSesion();
+		if (s == null) {
+			s = Registro_Sesiones.crear(ch);
+			ch.setSesion(s);
+		}
+		enviar(ch, Registro_Sesiones.PEDIDO + " " + s.getToken() + "\n");
+		return true;
+	}
+
+	// REANUDAR <token> [<chat>:<seq>,...]: vuelve al usuario, a los modos y al
+	// chat de una sesión cortada, y por cada chat recibe sólo lo que se perdió
+	static boolean reanudarSesion(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+", 2);
+		if (ch.getSesion() != null) {
+			enviar(ch, "Error: esta conexión ya tiene una sesión.\n");
+			return true;
+		}
+		Registro_Sesiones.Sesion s = Registro_Sesiones.tomar(parts[0], ch);
+		if (s == null) {
+			enviar(ch, Registro_Sesiones.enUso(parts[0]) ? "Error: sesión en uso; se cierra la conexión anterior, reintenta.\n"
+					: "Error: sesión no válida o vencida.\n");
+			return true;
+		}
+		Usuario u = s.getUsuario();
+		if (u == null || !s.isAutenticada()) {
+			Registro_Sesiones.soltar(s, ch);
+			enviar(ch, "Error: sesión no válida o vencida.\n");
+			return true;
+		}
+		if (!asociarUsuario(ch, u)) {
+			Registro_Sesiones.soltar(s, ch);
+			enviar(ch, "Error: el usuario de la sesión sigue conectado; reintenta en un momento.\n");
+			return true;
+		}
+		ch.setSesion(s);
+		Metricas_B.sesionesReanudadas.increment();
+		Bitacora_B.evento(ch.getDireccion(), "Sesión reanudada por " + u.getNombre());
+		// la respuesta va antes de activar los modos, así llega como texto plano
+		enviar(ch, Registro_Sesiones.REANUDADA + " " + u.getId() + " " + u.getNombre() + "\n");
+		if (s.isComprimida()) ch.usarCompresion();
+		if (s.isBinario()) ch.usarBinario();
+
+		Map<Integer, Long> vistos = Registro_Sesiones.leerVistos(parts.length > 1 ? parts[1] : "");
+		List<Chat_Grupal> suyos = u.getChatsAsociados();
+		Chat_Grupal actual = s.getChatActual();
+		if (actual != null && suyos.contains(actual)) {
+			Long visto = vistos.get(actual.getId());
+			if (visto != null) ch.setCursorHistorial(Math.max(0, Math.min(visto + 1, actual.getSiguienteSeq())));
+			anunciarEntrada(ch, actual, "Sesión reanudada en " + actual.getNombre());
+			ch.setEstado(Estado_Conexion.IN_CHAT);
+			ch.setChatActual(actual);
+		} else {
+			actual = null;
+			enviarConMenu(ch, "Sesión reanudada.\n");
+		}
+		// lo perdido llega después del aviso, un envío por chat desde su actor
+		for (Chat_Grupal chat : suyos) {
+			Long visto = vistos.get(chat.getId());
+			if (visto != null) {
+				chat.ejecutar(() -> enviarPerdidos(ch, chat, visto));
+			} else if (chat == actual) {
+				// del chat actual no sabe nada: como al entrar
+				chat.ejecutar(() -> enviarVentana(ch, chat));
+			}
+		}
+		return true;
+	}
+
+	// Actor del chat: los mensajes posteriores a "visto" en un solo envío
+	// (los siguientes llegan después, por el mismo actor, sin huecos ni
+	// repetidos). Si son demasiados, sólo los últimos; el resto, con /historial.
+	private static void enviarPerdidos(Conexion ch, Chat_Grupal chat, long visto) {
+		long fin = chat.getSiguienteSeq();
+		long desde = Math.max(0, Math.max(visto + 1, fin - Registro_Sesiones.MAX_PERDIDOS));
+		if (desde >= fin) return;
+		List<String> perdidos = chat.leerHistorial(desde, fin);
+		Metricas_B.sesionesPerdidos.add(perdidos.size());
+		if (ch.isBinario()) {
+			// la trama HISTORIAL lleva el número del primero: el cliente sabe el último
+			ch.enviar(Protocolo_Binario.historial(chat.getId(), desde, perdidos));
+			return;
+		}
+		StringBuilder out = new StringBuilder();
+		out.append("--- ").append(chat.getNombre()).append(": ").append(perdidos.size()).append(" mensajes mientras no estabas ---\n");
+		if (desde > visto + 1) out.append("(").append(desde - visto - 1).append(" anteriores omitidos: /historial para verlos)\n");
+		for (String m : perdidos) out.append(m).append('\n');
+		out.append(Registro_Sesiones.lineaMarca(chat.getId(), fin - 1));
+		enviar(ch, out.toString());
+	}
+
+	// Una trama del protocolo binario: las mismas operaciones que los comandos
+	// de texto, pero sin menú ni preguntas intermedias (cada trama trae todo)
+	static boolean procesarTrama(Conexion ch, ByteBuffer t) {
+		byte codigo = t.get();
+		Bitacora_B.linea(ch.getDireccion(), "trama 0x" + Integer.toHexString(codigo & 0xFF) + " ("
+				+ t.remaining() + " bytes)");
+		try {
+			switch (codigo) {
+			case Protocolo_Binario.LISTAR_USUARIOS:
+				return listarUsuarios(ch, null);
+			case Protocolo_Binario.LISTAR_CHATS:
+				return listarChats(ch, null);
+			case Protocolo_Binario.MIS_CHATS:
+				enviarChats(ch, ch.getUsuario().getChatsAsociados());
+				return true;
+			case Protocolo_Binario.CREAR_CHAT: {
+				String nombre = Protocolo_Binario.leerNombre(t);
+				int n = t.getShort() & 0xFFFF;
+				List<Integer> ids = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) ids.add(t.getInt());
+				crearChat(ch, nombre, ids);
+				return true;
+			}
+			case Protocolo_Binario.ENTRAR_CHAT: {
+				int id = t.getInt();
+				entrarChat(ch, chats.buscarPorId(id), "#" + id);
+				return true;
+			}
+			case Protocolo_Binario.SALIR_CHAT: {
+				int id = t.getInt();
+				salirChat(ch, chats.buscarPorId(id), "#" + id);
+				return true;
+			}
+			case Protocolo_Binario.ADIOS:
+				return despedir(ch, null);
+			case Protocolo_Binario.LOGIN: {
+				String nombre = Protocolo_Binario.leerNombre(t);
+				return login(ch, nombre, t.hasRemaining() ? Protocolo_Binario.leerNombre(t) : null);
+			}
+			case Protocolo_Binario.MENSAJE:
+				if (ch.getEstado() != Estado_Conexion.IN_CHAT) {
+					enviar(ch, "Error: No estás en un chat activo.\n");
+					return true;
 				}
+				// una trama es un mensaje: sin saltos de línea para los clientes de texto
+				return mensajeChat(ch, Protocolo_Binario.leerResto(t).replace('\n', ' '));
+			case Protocolo_Binario.PRIVADO: {
+				int destino = t.getInt();
+				enviarPrivado(ch, destino, Protocolo_Binario.leerResto(t).replace('\n', ' '));
+				return true;
+			}
+			case Protocolo_Binario.PEDIR_HISTORIAL: {
+				int n = t.getShort() & 0xFFFF;
+				paginaHistorial(ch, n == 0 ? PAGINA_HISTORIAL : Math.min(n, MAX_PAGINA_HISTORIAL));
+				return true;
+			}
+			case Protocolo_Binario.MENU:
+				return volverAlMenu(ch, null);
+			case Protocolo_Binario.SUBIR_INICIO: {
+				String id = Protocolo_Binario.leerNombre(t);
+				long tamano = t.getLong();
+				iniciarTransferencia(ch, id, tamano, Protocolo_Binario.leerNombre(t));
+				return true;
+			}
+			case Protocolo_Binario.SUBIR_BLOQUE: {
+				String id = Protocolo_Binario.leerNombre(t);
+				bloqueTrama(ch, id, t.slice());
+				return true;
+			}
+			case Protocolo_Binario.SUBIR_FIN: {
+				String id = Protocolo_Binario.leerNombre(t);
+				finalizarTransferencia(ch, id, Long.toHexString(t.getInt() & 0xFFFFFFFFL));
+				return true;
+			}
+			case Protocolo_Binario.DESCARGAR:
+				descargarHash(ch, Protocolo_Binario.leerNombre(t));
+				return true;
+			case Protocolo_Binario.METRICAS:
+				return metricas(ch, null);
+			default:
+				enviar(ch, "Error: código de trama desconocido: 0x" + Integer.toHexString(codigo & 0xFF) + "\n");
+				return true;
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			enviar(ch, "Error: trama mal formada (código 0x" + Integer.toHexString(codigo & 0xFF) + ").\n");
+			return true;
+		}
+	}
 
-				if (key.isReadable()) {
-					SocketChannel ch = (SocketChannel) key.channel();
-					tmp.clear();
-					int read;
-					try {
-						read = ch.read(tmp);
-					} catch (IOException e) {
-						read = -1;
-					}
-					if (read == -1) {
-						cleanupChannel(ch, key, readMap, writeMap);
-						continue;
-					} else if (read > 0) {
-						tmp.flip();
-						String data = charset.decode(tmp).toString();
-						StringBuilder sb = readMap.get(ch);
-						if (sb == null) sb = new StringBuilder();
-						sb.append(data);
-						int idx;
-						while ((idx = sb.indexOf("\n")) != -1) {
-							String line = sb.substring(0, idx).trim();
-							sb.delete(0, idx + 1);
-							System.out.println("[" + safeRemoteAddress(ch) + "] " + line);
-
-							// obtener usuario asociado al socket
-							Usuario usuario = socketToUsuario.get(ch);
-							String state = pendingState.getOrDefault(ch, S_IDLE);
-
-							// Flujos interactivos primera prioridad
-							// Si está en modo de chat activo, tratamos las líneas como mensajes de chat
-							if (S_IN_CHAT.equals(state)) {
-								// 1. Lógica de Mensaje Privado (/priv)
-								if (line.toLowerCase().startsWith("/priv ")) {
-									String[] parts = line.substring(6).trim().split("\\s+", 2);
-									if (parts.length == 2) {
-										try {
-											int destId = Integer.parseInt(parts[0]);
-											String privMsg = parts[1];
-											
-											// Encontrar el SocketChannel del destinatario usando el ID
-											SocketChannel destCh = userIdToSocket.get(destId);
-											Usuario destUser = listaUsuarios.getUsuarioPorId(destId);
-											
-											if (destCh != null && destCh.isOpen() && destUser != null) {
-												// Mensaje que verá el DESTINATARIO
-												String time = LocalTime.now().format(TIME_FMT);
-												String msgForDest = "[PRIVADO de " + usuario.getNombre() + " - " + time + "] : " + privMsg;
-												
-												// Enviar al DESTINATARIO
-												enqueueWrite(destCh, writeMap, ByteBuffer.wrap((msgForDest + "\n").getBytes(charset)));
-												SelectionKey sk = destCh.keyFor(selector);
-												if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-												
-												// Mensaje de confirmación que verá el EMISOR
-												String confirmation = "[PRIVADO a " + destUser.getNombre() + "] Enviado.";
-												enqueueWrite(ch, writeMap, ByteBuffer.wrap((confirmation + "\n").getBytes(charset)));
-											} else {
-												enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Error: ID " + destId + " no encontrado o no conectado.\n").getBytes(charset)));
-											}
-											
-										} catch (NumberFormatException e) {
-											enqueueWrite(ch, writeMap, ByteBuffer.wrap("Error: Formato incorrecto. Uso: /priv <ID> <mensaje>\n".getBytes(charset)));
-										}
-									} else {
-										enqueueWrite(ch, writeMap, ByteBuffer.wrap("Error: Uso: /priv <ID> <mensaje>\n".getBytes(charset)));
-									}
-								}
-								
-								// 2. Lógica de Envío de Archivo (/file)
-								else if (line.toLowerCase().startsWith("/file ")) {
-									String fileDataLine = line.substring(6).trim();
-									String[] parts = fileDataLine.split("\\s+", 2);
-
-									if (parts.length == 2) {
-										String fileName = parts[0].trim();
-										String base64Content = parts[1].trim();
-										
-										// PROTOCOLO DE RECEPCIÓN: FILE_INCOMING|<sender>|<name>|<base64>
-										String protocolMsg = "FILE_INCOMING|" + usuario.getNombre() + "|" + fileName + "|" + base64Content; 
-
-										// Difundir el mensaje de archivo a TODOS los miembros del chat.
-										String chatName = pendingTemp.get(ch);
-										if (chatName != null) {
-											Chat_Grupal current = null;
-											for (Chat_Grupal c : chats) if (c.getNombre().equalsIgnoreCase(chatName)) { current = c; break; }
-											if (current != null) {
-												// Notificar a todos los miembros del chat 
-												for (Usuario member : current.getMiembros()) {
-													SocketChannel dest = userIdToSocket.get(member.getId());
-													if (dest != null && dest.isOpen()) {
-														// Enviamos el mensaje de protocolo de recepción (FILE_INCOMING)
-														enqueueWrite(dest, writeMap, ByteBuffer.wrap((protocolMsg + "\n").getBytes(charset)));
-														SelectionKey sk = dest.keyFor(selector);
-														if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-													}
-												}
-											} else {
-												enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Error: No estás en un chat activo.\n").getBytes(charset)));
-											}
-										}
-									} else {
-										enqueueWrite(ch, writeMap, ByteBuffer.wrap("Error: Uso: /file <nombre_archivo> <contenido_base64>\n".getBytes(charset)));
-									}
-								}
-								
-								// 3. Lógica para volver al menú (MEN0)
-								else if ("MEN0".equalsIgnoreCase(line.trim())) {
-									pendingState.put(ch, S_IDLE);
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Saliendo del chat. " + menuTexto()).getBytes(charset)));
-								} else {
-									// Lógica de difusión Grupal (Mensaje normal)
-									String chatName = pendingTemp.get(ch);
-									if (chatName != null) {
-										Chat_Grupal current = null;
-										for (Chat_Grupal c : chats) if (c.getNombre().equalsIgnoreCase(chatName)) { current = c; break; }
-										if (current != null && usuario != null) {
-											String time = LocalTime.now().format(TIME_FMT);
-											String msg = usuario.getNombre() + " - [" + time + "] : " + line;
-											// Guardar en historial (sin \n)
-											current.addMessage(msg);
-											// difundir a todos los miembros conectados (incluye emisor)
-											for (Usuario member : current.getMiembros()) {
-												SocketChannel dest = userIdToSocket.get(member.getId());
-												if (dest != null && dest.isOpen()) {
-													enqueueWrite(dest, writeMap, ByteBuffer.wrap((msg + "\n").getBytes(charset)));
-													SelectionKey sk = dest.keyFor(selector);
-													if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-												}
-											}
-										} else {
-											enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Chat no disponible: " + chatName + "\n").getBytes(charset)));
-											pendingState.put(ch, S_IDLE);
-										}
-									} else {
-										enqueueWrite(ch, writeMap, ByteBuffer.wrap("No hay chat activo.\n".getBytes(charset)));
-										pendingState.put(ch, S_IDLE);
-									}
-								}
-								SelectionKey ck0 = ch.keyFor(selector);
-								if (ck0 != null) ck0.interestOps(ck0.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							}
-
-							if (S_AWAIT_CREATE_IDS.equals(state)) {
-								// línea recibida: IDs separados por comas
-								pendingTemp.put(ch, line);
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap("Escribe nombre del chat grupal:\n".getBytes(charset)));
-								pendingState.put(ch, S_AWAIT_CREATE_NAME);
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else if (S_AWAIT_CREATE_NAME.equals(state)) {
-								// línea recibida: nombre del chat
-								String idsLine = pendingTemp.remove(ch);
-								String chatName = line;
-								Chat_Grupal nuevoChat = new Chat_Grupal(chatName);
-								if (idsLine != null && !idsLine.trim().isEmpty()) {
-									String[] parts = idsLine.split("[,\\s]+");
-									for (String p : parts) {
-										try {
-											int uid = Integer.parseInt(p.trim());
-											Usuario u = listaUsuarios.getUsuarioPorId(uid);
-											if (u != null) {
-												nuevoChat.agregarMiembro(u);
-											}
-										} catch (NumberFormatException ignore) {}
-									}
-								}
-								// Asegurar al menos agregar al creador
-								if (usuario != null) nuevoChat.agregarMiembro(usuario);
-								chats.add(nuevoChat);
-
-								// Notificar historial (nuevo chat vacío) y notificaciones de unión
-								// Crear notificación de unión del creador
-								String joinNotif = (usuario != null ? usuario.getNombre() : "usuario") + " se unió al chat";
-								// Guardar en historial
-								nuevoChat.addMessage(joinNotif);
-								// Enviar notificación a miembros conectados
-								for (Usuario member : nuevoChat.getMiembros()) {
-									SocketChannel dest = userIdToSocket.get(member.getId());
-									if (dest != null && dest.isOpen()) {
-										enqueueWrite(dest, writeMap, ByteBuffer.wrap((joinNotif + "\n").getBytes(charset)));
-										SelectionKey sk = dest.keyFor(selector);
-										if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-									}
-								}
-
-								StringBuilder out = new StringBuilder();
-								out.append("Chat creado: ").append(chatName).append("\nMiembros:\n");
-								for (String n : nuevoChat.listarNombresMiembros()) {
-									out.append("- ").append(n).append("\n");
-								}
-								out.append("Entrando al chat. Para volver al menu escribe MEN0\n");
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-								// entrar automáticamente al chat creado
-								pendingState.put(ch, S_IN_CHAT);
-								pendingTemp.put(ch, chatName);
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else if (S_AWAIT_ENTER_CHAT.equals(state)) {
-								// Entrar a chat por nombre
-								String chatName = line;
-								Chat_Grupal target = null;
-								for (Chat_Grupal c : chats) if (c.getNombre().equalsIgnoreCase(chatName)) { target = c; break; }
-								if (target != null && usuario != null) {
-									target.agregarMiembro(usuario);
-
-									// 1) Enviar inmediatamente el historial al cliente que entra
-									List<String> history = target.getHistory();
-									if (!history.isEmpty()) {
-										for (String h : history) {
-											enqueueWrite(ch, writeMap, ByteBuffer.wrap((h + "\n").getBytes(charset)));
-										}
-									}
-
-									// 2) Enviar estado de presencia (debug) al cliente que entra
-									for (Usuario m : target.getMiembros()) {
-										boolean online = (userIdToSocket.get(m.getId()) != null && userIdToSocket.get(m.getId()).isOpen());
-										String pres = "DEBUG: " + m.getNombre() + (online ? " está en linea" : " está desconectado");
-										enqueueWrite(ch, writeMap, ByteBuffer.wrap((pres + "\n").getBytes(charset)));
-									}
-
-									// 3) Notificar a todos que este usuario se unió y guardar en historial
-									String joinNotif = usuario.getNombre() + " se unió al chat";
-									target.addMessage(joinNotif);
-									for (Usuario member : target.getMiembros()) {
-										SocketChannel dest = userIdToSocket.get(member.getId());
-										if (dest != null && dest.isOpen()) {
-											enqueueWrite(dest, writeMap, ByteBuffer.wrap((joinNotif + "\n").getBytes(charset)));
-											SelectionKey sk = dest.keyFor(selector);
-											if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-										}
-									}
-
-									// 4) Informar al que entró y poner estado IN_CHAT
-									StringBuilder out = new StringBuilder();
-									out.append("Te has unido a ").append(target.getNombre()).append("\nMiembros:\n");
-									for (String n : target.listarNombresMiembros()) out.append("- ").append(n).append("\n");
-									out.append("Entrando al chat. Para volver al menu escribe MEN0\n");
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-
-									// poner estado IN_CHAT
-									pendingState.put(ch, S_IN_CHAT);
-									pendingTemp.put(ch, target.getNombre());
-								} else {
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Chat no encontrado: " + chatName + "\n").getBytes(charset)));
-									// sólo volver a IDLE si no se encontró el chat
-									pendingState.put(ch, S_IDLE);
-								}
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else if (S_AWAIT_LEAVE_CHAT.equals(state)) {
-								// Salir de chat por nombre
-								String chatName = line;
-								Chat_Grupal target = null;
-								for (Chat_Grupal c : chats) if (c.getNombre().equalsIgnoreCase(chatName)) { target = c; break; }
-								if (target != null && usuario != null) {
-									target.eliminarMiembro(usuario);
-									String leaveNotif = usuario.getNombre() + " ha salido del chat";
-									// guardar en historial y notificar
-									target.addMessage(leaveNotif);
-									for (Usuario member : target.getMiembros()) {
-										SocketChannel dest = userIdToSocket.get(member.getId());
-										if (dest != null && dest.isOpen()) {
-											enqueueWrite(dest, writeMap, ByteBuffer.wrap((leaveNotif + "\n").getBytes(charset)));
-											SelectionKey sk = dest.keyFor(selector);
-											if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-										}
-									}
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Has salido de " + target.getNombre() + "\n").getBytes(charset)));
-								} else {
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(("Chat no encontrado: " + chatName + "\n").getBytes(charset)));
-								}
-								pendingState.put(ch, S_IDLE);
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							}
-
-							// Procesar comandos simples cuando está en IDLE
-							if ("salir".equalsIgnoreCase(line) || "5".equals(line)) {
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap("Adios!\n".getBytes(charset)));
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								enqueueWrite(ch, writeMap, ByteBuffer.allocate(0)); // marcador de cierre
-								SelectionKey k = ch.keyFor(selector);
-								if (k != null) k.attach(Boolean.TRUE); // marcar para cerrar después de escribir
-								break;
-							} else if ("1".equals(line)) {
-								// listar usuarios
-								List<String> nombres = listaUsuarios.listarNombres();
-								if (nombres.isEmpty()) {
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap("No hay usuarios.\n".getBytes(charset)));
-								} else {
-									StringBuilder out = new StringBuilder();
-									out.append("Usuarios (id - nombre):\n");
-									for (Usuario u : listaUsuarios.listarUsuariosActivos()) {
-										out.append(u.getId()).append(" - ").append(u.getNombre()).append("\n");
-									}
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-								}
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-							} else if ("2".equals(line)) {
-								// listar chats disponibles
-								if (chats.isEmpty()) {
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap("No hay chats disponibles.\n".getBytes(charset)));
-								} else {
-									StringBuilder out = new StringBuilder();
-									out.append("Chats:\n");
-									for (Chat_Grupal c : chats) {
-										out.append("- ").append(c.getNombre()).append(" (miembros: ").append(c.getMiembros().size()).append(")\n");
-									}
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-								}
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-							} else if ("3".equals(line)) {
-								// Crear chat grupal: enviar lista de usuarios y pedir IDs
-								StringBuilder out = new StringBuilder();
-								out.append("Crear chat - lista de usuarios (id - nombre):\n");
-								for (Usuario u : listaUsuarios.listarUsuariosActivos()) {
-									out.append(u.getId()).append(" - ").append(u.getNombre()).append("\n");
-								}
-								out.append("Escribe los IDs separados por comas (puedes incluirte):\n");
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-								pendingState.put(ch, S_AWAIT_CREATE_IDS);
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else if ("4".equals(line)) {
-								// Listar los chats a los que pertenece y pedir nombre para entrar
-								if (usuario == null) {
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap("Usuario no registrado.\n".getBytes(charset)));
-								} else {
-									List<Chat_Grupal> mine = usuario.getChatsAsociados();
-									StringBuilder out = new StringBuilder();
-									out.append("Tus chats:\n");
-									for (Chat_Grupal c : mine) {
-										out.append("- ").append(c.getNombre()).append("\n");
-									}
-									out.append("Si quieres entrar a un chat (o crearlo con opción 3), escribe el nombre del chat ahora:\n");
-									enqueueWrite(ch, writeMap, ByteBuffer.wrap(out.toString().getBytes(charset)));
-									pendingState.put(ch, S_AWAIT_ENTER_CHAT);
-								}
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else if ("6".equals(line)) {
-								// Salir de un chat grupal: pedir nombre
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap("Escribe el nombre del chat del que quieres salir:\n".getBytes(charset)));
-								pendingState.put(ch, S_AWAIT_LEAVE_CHAT);
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-								continue;
-							} else {
-								// eco simple y volver a enviar menú
-								String resp = "Recibido: " + line + "\n" + menuTexto();
-								enqueueWrite(ch, writeMap, ByteBuffer.wrap(resp.getBytes(charset)));
-								SelectionKey ck = ch.keyFor(selector);
-								if (ck != null) ck.interestOps(ck.interestOps() | SelectionKey.OP_WRITE);
-							}
-						}
-						readMap.put(ch, sb);
-					}
+	// Métricas del servidor (sólo administradores)
+	static boolean metricas(Conexion ch, String line) {
+		if (Metricas_B.esAdmin(ch)) {
+			enviar(ch, Metricas_B.reporte());
+		} else {
+			enviar(ch, "Error: /metricas sólo para administradores.\n");
+		}
+		return true;
+	}
+
+	// ---- Menú principal (IDLE) ----
+
+	static boolean despedir(Conexion ch, String line) {
+		// quien se despide no vuelve a su sesión
+		Registro_Sesiones.terminar(ch);
+		enviar(ch, "Adios!\n");
+		// cerrar después de escribir
+		ch.cerrarTrasEscribir();
+		return false;
+	}
+
+	// 1: listar usuarios conectados
+	static boolean listarUsuarios(Conexion ch, String line) {
+		List<Usuario> activos = listaUsuarios.listarUsuariosActivos();
+		if (ch.isBinario()) {
+			Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.USUARIOS, 4 + activos.size() * 16)
+					.entero(activos.size());
+			for (Usuario u : activos) t.entero(u.getId()).nombre(u.getNombre());
+			ch.enviar(t.fin());
+		} else if (activos.isEmpty()) {
+			enviar(ch, "No hay usuarios.\n");
+		} else {
+			StringBuilder out = new StringBuilder();
+			out.append("Usuarios (id - nombre):\n");
+			for (Usuario u : activos) {
+				out.append(u.getId()).append(" - ").append(u.getNombre()).append("\n");
+			}
+			enviar(ch, out.toString());
+		}
+		return true;
+	}
+
+	// 2: listar chats disponibles
+	static boolean listarChats(Conexion ch, String line) {
+		if (ch.isBinario()) {
+			enviarChats(ch, chats.todos());
+		} else if (chats.isEmpty()) {
+			enviar(ch, "No hay chats disponibles.\n");
+		} else {
+			StringBuilder out = new StringBuilder();
+			out.append("Chats:\n");
+			for (Chat_Grupal c : chats.todos()) {
+				out.append("- ").append(c.getNombre()).append(" (miembros: ").append(c.contarMiembros()).append(")\n");
+			}
+			enviar(ch, out.toString());
+		}
+		return true;
+	}
+
+	// Trama CHATS: id, miembros y nombre de cada chat
+	private static void enviarChats(Conexion ch, Collection<Chat_Grupal> lista) {
+		List<Chat_Grupal> copia = new ArrayList<>(lista);
+		Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.CHATS, 4 + copia.size() * 24)
+				.entero(copia.size());
+		for (Chat_Grupal c : copia) t.entero(c.getId()).entero(c.contarMiembros()).nombre(c.getNombre());
+		ch.enviar(t.fin());
+	}
+
+	// 3: crear chat grupal: enviar lista de usuarios y pedir IDs
+	static boolean pedirIdsChat(Conexion ch, String line) {
+		StringBuilder out = new StringBuilder();
+		out.append("Crear chat - lista de usuarios (id - nombre):\n");
+		for (Usuario u : listaUsuarios.listarUsuariosActivos()) {
+			out.append(u.getId()).append(" - ").append(u.getNombre()).append("\n");
+		}
+		out.append("Escribe los IDs separados por comas (puedes incluirte):\n");
+		enviar(ch, out.toString());
+		ch.setEstado(Estado_Conexion.AWAIT_CREATE_IDS);
+		return true;
+	}
+
+	// 4: listar los chats a los que pertenece y pedir nombre para entrar
+	static boolean pedirChatEntrar(Conexion ch, String line) {
+		Usuario usuario = ch.getUsuario();
+		if (usuario == null) {
+			enviar(ch, "Usuario no registrado.\n");
+			return true;
+		}
+		List<Chat_Grupal> mine = usuario.getChatsAsociados();
+		StringBuilder out = new StringBuilder();
+		out.append("Tus chats:\n");
+		for (Chat_Grupal c : mine) {
+			out.append("- ").append(c.getNombre()).append("\n");
+		}
+		out.append("Si quieres entrar a un chat (o crearlo con opción 3), escribe el nombre del chat ahora:\n");
+		enviar(ch, out.toString());
+		ch.setEstado(Estado_Conexion.AWAIT_ENTER_CHAT);
+		return true;
+	}
+
+	// 6: salir de un chat grupal: pedir nombre
+	static boolean pedirChatSalir(Conexion ch, String line) {
+		enviar(ch, "Escribe el nombre del chat del que quieres salir:\n");
+		ch.setEstado(Estado_Conexion.AWAIT_LEAVE_CHAT);
+		return true;
+	}
+
+	// 7: volver a entrar como un usuario que ya existía
+	static boolean pedirLogin(Conexion ch, String line) {
+		enviar(ch, "Escribe tu nombre de usuario y su clave (<nombre> <clave>):\n");
+		ch.setEstado(Estado_Conexion.AWAIT_LOGIN);
+		return true;
+	}
+
+	// eco simple y volver a enviar menú
+	static boolean eco(Conexion ch, String line) {
+		enviarConMenu(ch, "Recibido: " + line + "\n");
+		return true;
+	}
+
+	// ---- Respuestas a las preguntas del menú ----
+
+	// línea recibida: IDs separados por comas
+	static boolean recibirIdsChat(Conexion ch, String line) {
+		ch.setTemp(line);
+		enviar(ch, "Escribe nombre del chat grupal:\n");
+		ch.setEstado(Estado_Conexion.AWAIT_CREATE_NAME);
+		return true;
+	}
+
+	// línea recibida: nombre del chat
+	static boolean crearChat(Conexion ch, String line) {
+		String idsLine = ch.getTemp();
+		ch.setTemp(null);
+		List<Integer> ids = new ArrayList<>();
+		if (idsLine != null && !idsLine.trim().isEmpty()) {
+			for (String p : idsLine.split("[,\\s]+")) {
+				try {
+					ids.add(Integer.parseInt(p.trim()));
+				} catch (NumberFormatException ignore) {}
+			}
+		}
+		crearChat(ch, line, ids);
+		return true;
+	}
+
+	// Crea el chat con esos miembros (más el creador) y entra en él. Mientras
+	// el chat abre su historial (o responde su nodo dueño) la conexión queda
+	// en el menú; la entrada la hace el actor del chat.
+	private static void crearChat(Conexion ch, String chatName, List<Integer> ids) {
+		Usuario usuario = ch.getUsuario();
+		ch.setEstado(Estado_Conexion.IDLE);
+		// En cluster el nombre lo reserva el nodo dueño del chat; se sigue al llegar su respuesta
+		if (Cluster_B.esRemoto(chatName)) {
+			if (!Cluster_B.pedirCrear(chatName, usuario, ids, id -> chatCreadoEnOtroNodo(ch, chatName, id))) {
+				noCreado(ch, chatName, "su nodo no está disponible.");
+			}
+			return;
+		}
+		boolean reservado = altaChat(chatName, usuario, ids, nuevoChat -> chatCreado(ch, chatName, nuevoChat, usuario));
+		if (!reservado) noCreado(ch, chatName, "nombre vacío o ya existente. Usa la opción 4 para entrar.");
+	}
+
+	// Alta atómica en el registro (evita dos chats con el mismo nombre). El
+	// resto sigue en el actor del chat, ya con su historial abierto: agrega
+	// los miembros, anuncia el chat a los otros nodos y llama a listo con él,
+	// o con null si no se pudo abrir el historial (y el nombre queda libre).
+	// Devuelve false, sin llamar a listo, si el nombre está vacío u ocupado.
+	private static boolean altaChat(String chatName, Usuario creador, List<Integer> ids, Consumer<Chat_Grupal> listo) {
+		Chat_Grupal nuevoChat = chats.crear(chatName);
+		if (nuevoChat == null) return false;
+		nuevoChat.ejecutar(() -> {
+			if (!nuevoChat.isHistorialAbierto()) {
+				chats.quitar(nuevoChat);
+				listo.accept(null);
+				return;
+			}
+			for (int uid : ids) {
+				Usuario u = listaUsuarios.getUsuarioPorId(uid);
+				if (u != null) {
+					nuevoChat.agregarMiembro(u);
 				}
+			}
+			// Asegurar al menos agregar al creador
+			if (creador != null) nuevoChat.agregarMiembro(creador);
+			Cluster_B.eventoChat(nuevoChat);
+			listo.accept(nuevoChat);
+		});
+		return true;
+	}
 
-				if (key.isWritable()) {
-					SocketChannel ch = (SocketChannel) key.channel();
-					Queue<ByteBuffer> q = writeMap.get(ch);
-					boolean closeAfter = Boolean.TRUE.equals(key.attachment());
-					try {
-						while (q != null && !q.isEmpty()) {
-							ByteBuffer buf = q.peek();
-							// marker: zero-length buffer indicates cierre pedido
-							if (buf.remaining() == 0) {
-								q.poll();
-								closeAfter = true;
-								continue;
-							}
-							ch.write(buf);
-							if (buf.hasRemaining()) {
-								// socket no puede aceptar más ahora
-								break;
-							} else {
-								q.poll();
-							}
-						}
-					} catch (IOException e) {
-						cleanupChannel(ch, key, readMap, writeMap);
-						continue;
-					}
-					if (q == null || q.isEmpty()) {
-						// quitar flag de escritura
-						try {
-							key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-						} catch (CancelledKeyException ignored) {}
-					}
-					if (closeAfter) {
-						cleanupChannel(ch, key, readMap, writeMap);
+	// Actor del chat recién creado en este nodo: entra y avisa a los miembros
+	private static void chatCreado(Conexion ch, String chatName, Chat_Grupal nuevoChat, Usuario creador) {
+		if (nuevoChat == null) {
+			ch.getReactor().ejecutar(() -> noCreado(ch, chatName, "no se pudo abrir su historial."));
+			return;
+		}
+		entrarAlCreado(ch, chatName, nuevoChat);
+		// Guardar en historial y avisar a los miembros conectados
+		if (creador != null) difundirMiembro(nuevoChat, creador, true);
+	}
+
+	// Hilo del cluster: respuesta del nodo dueño, con el id del chat (ya
+	// registrado aquí por su evento), 0 si el nombre estaba ocupado,
+	// Cluster_B.SIN_HISTORIAL o -1 si se perdió el enlace. La entrada va al
+	// actor antes que los eventos siguientes del enlace (el alta del creador).
+	private static void chatCreadoEnOtroNodo(Conexion ch, String chatName, int id) {
+		if (!ch.isAbierta()) return;
+		Chat_Grupal nuevoChat = id > 0 ? chats.buscarPorId(id) : null;
+		if (nuevoChat != null) {
+			nuevoChat.ejecutar(() -> entrarAlCreado(ch, chatName, nuevoChat));
+			return;
+		}
+		String motivo = id == Cluster_B.SIN_HISTORIAL ? "no se pudo abrir su historial."
+				: id < 0 ? "su nodo no está disponible." : "nombre vacío o ya existente. Usa la opción 4 para entrar.";
+		ch.getReactor().ejecutar(() -> noCreado(ch, chatName, motivo));
+	}
+
+	// Actor del chat creado: el aviso y la ventana (si el nombre ya tuvo un
+	// chat, su historial se recupera del disco) salen en orden con los
+	// mensajes del chat. El estado de la conexión lo cambia su reactor; la
+	// tarea se encola antes que el aviso, así el reactor la corre antes de
+	// escribirlo y lo que el cliente mande después ya va al chat.
+	private static void entrarAlCreado(Conexion ch, String chatName, Chat_Grupal nuevoChat) {
+		if (!ch.isAbierta()) return;
+		ch.getReactor().ejecutar(() -> {
+			ch.setEstado(Estado_Conexion.IN_CHAT);
+			ch.setChatActual(nuevoChat);
+		});
+		anunciarEntrada(ch, nuevoChat, "Chat creado: " + chatName);
+		enviarVentana(ch, nuevoChat);
+	}
+
+	// Reactor de la conexión
+	private static void noCreado(Conexion ch, String chatName, String motivo) {
+		enviarConMenu(ch, "No se pudo crear el chat '" + chatName + "': " + motivo + "\n");
+		ch.setEstado(Estado_Conexion.IDLE);
+	}
+
+	// "Chat creado" / "Te has unido" con los miembros; en binario, trama EN_CHAT
+	private static void anunciarEntrada(Conexion ch, Chat_Grupal chat, String encabezado) {
+		if (ch.isBinario()) {
+			List<Usuario> miembros = chat.getMiembros();
+			Protocolo_Binario.Trama t = new Protocolo_Binario.Trama(Protocolo_Binario.EN_CHAT, 32 + miembros.size() * 16)
+					.entero(chat.getId()).nombre(chat.getNombre()).entero(miembros.size());
+			for (Usuario m : miembros) t.entero(m.getId()).nombre(m.getNombre());
+			ch.enviar(t.fin());
+			return;
+		}
+		StringBuilder out = new StringBuilder();
+		out.append(encabezado).append("\nMiembros:\n");
+		for (String n : chat.listarNombresMiembros()) {
+			out.append("- ").append(n).append("\n");
+		}
+		out.append("Entrando al chat. Para volver al menu escribe MEN0\n");
+		enviar(ch, out.toString());
+	}
+
+	// Entrar a chat por nombre
+	static boolean entrarChat(Conexion ch, String line) {
+		entrarChat(ch, chats.buscar(line), line);
+		return true;
+	}
+
+	private static void entrarChat(Conexion ch, Chat_Grupal target, String pedido) {
+		Usuario usuario = ch.getUsuario();
+		if (target != null && usuario != null) {
+			// La unión corre en el actor del chat para que el historial enviado
+			// y los mensajes siguientes no se crucen ni se dupliquen
+			final Chat_Grupal chat = target;
+			chat.ejecutar(() -> {
+				chat.agregarMiembro(usuario);
+
+				// 1) Enviar los últimos mensajes del historial de una vez
+				enviarVentana(ch, chat);
+
+				// 2) Foto de la presencia de los miembros, en un solo aviso;
+				// los cambios siguientes llegan agrupados (ver Presencia)
+				Presencia.enviarFoto(ch, chat);
+
+				// 3) Notificar a todos que este usuario se unió y guardar en historial
+				difundirMiembro(chat, usuario, true);
+
+				// 4) Informar al que entró
+				anunciarEntrada(ch, chat, "Te has unido a " + chat.getNombre());
+			});
+
+			// poner estado IN_CHAT
+			ch.setEstado(Estado_Conexion.IN_CHAT);
+			ch.setChatActual(target);
+		} else {
+			enviar(ch, "Chat no encontrado: " + pedido + "\n");
+			// sólo volver a IDLE si no se encontró el chat
+			ch.setEstado(Estado_Conexion.IDLE);
+		}
+	}
+
+	static boolean login(Conexion ch, String line) {
+		String[] nc = Claves_Usuarios.separar(line, listaUsuarios.getUsuarioPorNombre(line.trim()) != null);
+		return login(ch, nc[0], nc[1]);
+	}
+
+	// Sólo con la clave del usuario se pasa a él (ver Claves_Usuarios)
+	static boolean login(Conexion ch, String nombre, String clave) {
+		Usuario usuario = ch.getUsuario();
+		ch.setEstado(Estado_Conexion.IDLE);
+		Usuario existente = listaUsuarios.getUsuarioPorNombre(nombre);
+		boolean autenticada = clave != null && existente != null && Claves_Usuarios.comprobar(existente.getNombre(), clave);
+		if (existente == null) {
+			enviarConMenu(ch, "Usuario no encontrado: " + nombre + "\n");
+		} else if (existente == usuario && clave == null) {
+			enviarConMenu(ch, "Ya eres " + usuario.getNombre() + ".\n");
+		} else if (clave == null) {
+			enviarConMenu(ch, Claves_Usuarios.tieneClave(existente.getNombre())
+					? "Para entrar como " + existente.getNombre() + " escribe: " + existente.getNombre() + " <clave>\n"
+					: "El usuario " + existente.getNombre() + " no tiene clave: no se puede entrar como él.\n");
+		} else if (!autenticada) {
+			Bitacora_B.evento(ch.getDireccion(), "Clave incorrecta para " + existente.getNombre());
+			enviarConMenu(ch, "Clave incorrecta para " + existente.getNombre() + ".\n");
+		} else if (existente == usuario) {
+			if (!ch.isAutenticada()) {
+				ch.setAutenticada(true);
+				Cluster_B.usuarioCambiado(usuario);
+				Buzon_Privado.entregar(usuario.getId(), ch);
+			}
+			enviarConMenu(ch, "Ya eres " + usuario.getNombre() + ".\n");
+		} else if (!asociarUsuario(ch, existente)) {
+			enviarConMenu(ch, "El usuario " + existente.getNombre() + " ya está conectado.\n");
+		} else if (ch.isBinario()) {
+			ch.enviar(new Protocolo_Binario.Trama(Protocolo_Binario.BIENVENIDA).entero(existente.getId())
+					.nombre(existente.getNombre()).fin());
+		} else {
+			enviarConMenu(ch, "Ahora eres " + existente.getNombre() + " (id " + existente.getId() + ").\n");
+		}
+		return true;
+	}
+
+	// Salir de chat por nombre
+	static boolean salirChat(Conexion ch, String line) {
+		salirChat(ch, chats.buscar(line), line);
+		return true;
+	}
+
+	private static void salirChat(Conexion ch, Chat_Grupal target, String pedido) {
+		Usuario usuario = ch.getUsuario();
+		if (target != null && usuario != null) {
+			final Chat_Grupal chat = target;
+			chat.ejecutar(() -> {
+				chat.eliminarMiembro(usuario);
+				// guardar en historial y notificar
+				difundirMiembro(chat, usuario, false);
+				enviar(ch, "Has salido de " + chat.getNombre() + "\n");
+			});
+		} else {
+			enviar(ch, "Chat no encontrado: " + pedido + "\n");
+		}
+		ch.setEstado(Estado_Conexion.IDLE);
+	}
+
+	// ---- Dentro de un chat (IN_CHAT) ----
+
+	// /priv <id> <mensaje>
+	static boolean mensajePrivado(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+", 2);
+		if (parts.length != 2) {
+			enviar(ch, "Error: Uso: /priv <ID> <mensaje>\n");
+			return true;
+		}
+		try {
+			enviarPrivado(ch, Integer.parseInt(parts[0]), parts[1]);
+		} catch (NumberFormatException e) {
+			enviar(ch, "Error: Formato incorrecto. Uso: /priv <ID> <mensaje>\n");
+		}
+		return true;
+	}
+
+	private static void enviarPrivado(Conexion ch, int destId, String privMsg) {
+		Usuario usuario = ch.getUsuario();
+		// Encontrar la conexión del destinatario usando el ID
+		Conexion destCh = userIdToSocket.get(destId);
+		Usuario destUser = listaUsuarios.getUsuarioPorId(destId);
+
+		if (destUser == null) {
+			enviar(ch, "Error: ID " + destId + " no encontrado.\n");
+			return;
+		}
+		// Mensaje que verá el DESTINATARIO
+		String time = Reloj_Cache.texto();
+		String msgForDest = "[PRIVADO de " + usuario.getNombre() + " - " + time + "] : " + privMsg;
+
+		// conectado sin autenticar (sólo con el nombre): se le guarda como a un desconectado
+		boolean aqui = recibePrivados(destCh);
+		boolean conectadoAqui = destCh != null && destCh.isAbierta();
+		if (aqui || (!conectadoAqui && Cluster_B.pedirPrivado(destId, usuario, msgForDest, privMsg))) {
+			// Enviar al DESTINATARIO (aquí o en el nodo del cluster donde está)
+			if (aqui) entregarPrivado(destCh, usuario, msgForDest, privMsg);
+
+			// Mensaje de confirmación que verá el EMISOR
+			String confirmation = "[PRIVADO a " + destUser.getNombre() + "] Enviado.";
+			enviar(ch, confirmation + "\n");
+		} else if (Buzon_Privado.guardar(destId, msgForDest)) {
+			// Desconectado: queda en su buzón hasta que vuelva
+			enviar(ch, "[PRIVADO a " + destUser.getNombre() + "] Guardado, se entregará cuando se conecte.\n");
+			// por si se conectó justo ahora y ya vació su buzón
+			Conexion ahora = userIdToSocket.get(destId);
+			if (ahora != null) Buzon_Privado.entregar(destId, ahora);
+		} else {
+			enviar(ch, "Error: el buzón de " + destUser.getNombre() + " está lleno.\n");
+		}
+	}
+
+	private static void entregarPrivado(Conexion destCh, Usuario emisor, String msgForDest, String privMsg) {
+		if (destCh.isBinario()) {
+			destCh.enviar(new Protocolo_Binario.Trama(Protocolo_Binario.PRIVADO_DE, 4 + privMsg.length())
+					.entero(emisor.getId()).resto(privMsg).fin());
+		} else {
+			enviar(destCh, msgForDest + "\n");
+		}
+	}
+
+	// /file <nombre> <base64> (formato antiguo)
+	static boolean archivoAntiguo(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+", 2);
+		if (parts.length != 2) {
+			enviar(ch, "Error: Uso: /file <nombre_archivo> <contenido_base64>\n");
+			return true;
+		}
+		String fileName = parts[0].trim().replace('|', '_');
+		String base64Content = parts[1].trim();
+
+		// Difundir el archivo a TODOS los miembros del chat.
+		Chat_Grupal current = ch.getChatActual();
+		if (current != null) {
+			archivoBase64(ch, current, ch.getUsuario(), fileName, base64Content);
+		} else {
+			enviar(ch, "Error: No estás en un chat activo.\n");
+		}
+		return true;
+	}
+
+	// MEN0: volver al menú
+	static boolean volverAlMenu(Conexion ch, String line) {
+		ch.setEstado(Estado_Conexion.IDLE);
+		ch.setChatActual(null);
+		ch.setCursorHistorial(-1);
+		enviarConMenu(ch, "Saliendo del chat. ");
+		return true;
+	}
+
+	// Mensaje normal: difusión al chat actual
+	static boolean mensajeChat(Conexion ch, String line) {
+		Usuario usuario = ch.getUsuario();
+		// El chat actual se guarda en la conexión: sin búsquedas por mensaje
+		Chat_Grupal current = ch.getChatActual();
+		if (current == null) {
+			enviar(ch, "No hay chat activo.\n");
+			ch.setEstado(Estado_Conexion.IDLE);
+		} else if (usuario == null) {
+			enviar(ch, "Chat no disponible: " + current.getNombre() + "\n");
+			ch.setEstado(Estado_Conexion.IDLE);
+		} else if (!Cluster_B.pedirMensaje(current, usuario, line)) {
+			// El reactor sólo despacha; el actor del chat formatea, guarda y difunde.
+			// Si el chat es de otro nodo del cluster, lo hace su dueño.
+			current.ejecutar(() -> publicarMensaje(current, usuario, line));
+		}
+		return true;
+	}
+
+	// Actor del chat (en el nodo dueño): formatea, guarda y difunde el mensaje,
+	// y lo pasa a los otros nodos del cluster
+	private static void publicarMensaje(Chat_Grupal chat, Usuario usuario, String line) {
+		// Se codifica una sola vez para todos los destinatarios
+		ByteBuffer msg = codificarMensajeChat(usuario, line);
+		// Guardar en historial (sin \n)
+		String linea = new String(msg.array(), 0, msg.limit() - 1, charset);
+		long seq = chat.addMessage(linea);
+		// difundir a todos los miembros conectados (incluye emisor)
+		difundir(chat, seq, msg, () -> Protocolo_Binario.mensajeChat(chat.getId(), usuario.getId(), line));
+		Cluster_B.eventoMensaje(chat, usuario, linea, line);
+	}
+
+	// /fileinit <id> <tamaño> <nombre>
+	static boolean iniciarTransferencia(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+", 3);
+		if (parts.length != 3) {
+			enviar(ch, "Error: Uso: /fileinit <id> <tamaño> <nombre>\n");
+			return true;
+		}
+		long tamano;
+		try {
+			tamano = Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			tamano = -1;
+		}
+		iniciarTransferencia(ch, parts[0], tamano, parts[2]);
+		return true;
+	}
+
+	private static void iniciarTransferencia(Conexion ch, String id, long tamano, String nombreArchivo) {
+		Chat_Grupal chat = ch.getChatActual();
+		if (chat == null) {
+			enviar(ch, "Error: No estás en un chat activo.\n");
+			return;
+		}
+		if (tamano < 0) {
+			enviar(ch, "Error: tamaño inválido en /fileinit.\n");
+			return;
+		}
+		String nombre = nombreArchivo.replace('|', '_');
+		if (ch.getTransferencias().containsKey(id)) {
+			enviar(ch, "Error: ya hay una transferencia con id " + id + ".\n");
+			return;
+		}
+		if (ch.getTransferencias().size() >= Transferencia.MAX_ABIERTAS) {
+			enviar(ch, "Error: ya tienes " + Transferencia.MAX_ABIERTAS + " transferencias abiertas; termina alguna antes.\n");
+			return;
+		}
+		Transferencia t = new Transferencia(id, nombre, tamano, ch.getUsuario(), chat);
+		ch.getTransferencias().put(id, t);
+		// el archivo temporal se crea en el actor, fuera del reactor
+		chat.ejecutar(() -> t.abrir(almacen));
+	}
+
+	// /chunk <id> <n>: los n bytes siguientes se entregan en bloqueRecibido()
+	static boolean procesarChunk(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+");
+		int n = -1;
+		if (parts.length == 2) {
+			try {
+				n = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException ignore) {}
+		}
+		if (n < 0 || n > Transferencia.MAX_BLOQUE) {
+			// sin un tamaño válido no se puede saber dónde acaba el bloque
+			enviar(ch, "Error: bloque inválido (máx. " + Transferencia.MAX_BLOQUE + " bytes). Cerrando conexión.\n");
+			ch.cerrarTrasEscribir();
+			return false;
+		}
+		Transferencia t = ch.getTransferencias().get(parts[0]);
+		if (t == null || t.getRecibido() + n > t.getTamano()) {
+			enviar(ch, "Error: bloque fuera de una transferencia válida (" + parts[0] + "), descartado.\n");
+			t = null;
+		} else {
+			t.contarBloque(n);
+		}
+		// si t es null el bloque se lee y se descarta
+		ch.setDestinoBloque(t);
+		ch.getLector().esperarBinario(n);
+		return true;
+	}
+
+	// Bloque de una subida en una trama SUBIR_BLOQUE (los datos vienen en la trama)
+	private static void bloqueTrama(Conexion ch, String id, ByteBuffer datos) {
+		int n = datos.remaining();
+		Transferencia t = ch.getTransferencias().get(id);
+		if (n > Transferencia.MAX_BLOQUE || t == null || t.getRecibido() + n > t.getTamano()) {
+			enviar(ch, "Error: bloque fuera de una transferencia válida (" + id + "), descartado.\n");
+			return;
+		}
+		t.contarBloque(n);
+		escribirBloque(ch, t, datos);
+	}
+
+	// Bytes de un bloque: el actor del chat los guarda en el almacén
+	static void bloqueRecibido(Conexion ch, ByteBuffer datos) {
+		Transferencia t = ch.getDestinoBloque();
+		ch.setDestinoBloque(null);
+		if (t == null) return;
+		escribirBloque(ch, t, datos);
+	}
+
+	// El bloque queda en el buzón del actor hasta escribirse: se cuenta en la
+	// conexión para que el reactor deje de leerla si se acumulan (ver
+	// Reactor_B.leer) y el actor le avisa cuando vuelve a haber lugar
+	private static void escribirBloque(Conexion ch, Transferencia t, ByteBuffer datos) {
+		int n = datos.remaining();
+		ch.subidaEnCola.addAndGet(n);
+		t.getChat().ejecutar(() -> {
+			try {
+				t.escribir(datos);
+			} finally {
+				long quedan = ch.subidaEnCola.addAndGet(-n);
+				if (quedan + n > Transferencia.MAX_EN_COLA && quedan <= Transferencia.MAX_EN_COLA) {
+					ch.getReactor().ejecutar(() -> ch.getReactor().reanudarSubida(ch));
+				}
+			}
+		});
+	}
+
+	// /fileend <id> <crc32>
+	static boolean finalizarTransferencia(Conexion ch, String line) {
+		String[] parts = Tabla_Comandos.argumentos(line).split("\\s+");
+		finalizarTransferencia(ch, parts[0], parts.length > 1 ? parts[1] : "");
+		return true;
+	}
+
+	private static void finalizarTransferencia(Conexion ch, String id, String crcCliente) {
+		Transferencia t = ch.getTransferencias().remove(id);
+		if (t == null) {
+			enviar(ch, "Error: transferencia desconocida: " + id + "\n");
+			return;
+		}
+		Chat_Grupal chat = t.getChat();
+		chat.ejecutar(() -> {
+			String motivo = null;
+			if (!t.isCompleta()) {
+				motivo = "incompleta (" + t.getRecibido() + " de " + t.getTamano() + " bytes)";
+			} else if (t.getError() != null) {
+				motivo = t.getError();
+			} else if (!t.getCrcHex().equalsIgnoreCase(crcCliente)) {
+				motivo = "checksum distinto";
+			}
+			Almacen_Blobs.Blob blob = null;
+			if (motivo == null) {
+				try {
+					blob = t.confirmar();
+				} catch (IOException e) {
+					motivo = "error de disco: " + e.getMessage();
+				}
+			}
+			if (motivo != null) {
+				t.cancelar();
+				enviar(ch, "Error: transferencia " + t.getIdCliente() + " " + motivo + ".\n");
+				return;
+			}
+			// El historial guarda la referencia al blob, no el contenido
+			chat.addMessage(t.getEmisor().getNombre() + " - [" + Reloj_Cache.texto() + "] : compartió el archivo "
+					+ t.getNombre() + " (" + t.getTamano() + " bytes) [blob:" + blob.getHash() + "]");
+			entregarArchivo(miembrosConectados(chat), t.getId(), t.getEmisor(), t.getNombre(), blob, t.getCrcHex());
+		});
+	}
+
+	// Al cerrar la conexión, descartar las subidas que quedaron a medias
+	private static void abortarTransferencias(Conexion ch) {
+		for (Transferencia t : ch.getTransferencias().values()) {
+			t.getChat().ejecutar(t::cancelar);
+		}
+		ch.getTransferencias().clear();
+	}
+
+	// /file <nombre> <base64> (formato antiguo): se guarda decodificado en el
+	// almacén y se reenvía como FILE_INCOMING leyendo la copia Base64 del disco
+	private static void archivoBase64(Conexion ch, Chat_Grupal chat, Usuario usuario, String fileName, String base64Content) {
+		chat.ejecutar(() -> {
+			Almacen_Blobs.Blob blob;
+			Path b64;
+			try {
+				blob = almacen.guardar(Base64.getMimeDecoder().decode(base64Content));
+				b64 = almacen.rutaBase64(blob);
+			} catch (IllegalArgumentException | IOException e) {
+				enviar(ch, "Error: no se pudo guardar el archivo: " + e.getMessage() + "\n");
+				return;
+			}
+			chat.addMessage(usuario.getNombre() + " - [" + Reloj_Cache.texto() + "] : compartió el archivo "
+					+ fileName + " (" + blob.getTamano() + " bytes) [blob:" + blob.getHash() + "]");
+			// PROTOCOLO DE RECEPCIÓN: FILE_INCOMING|<sender>|<name>|<base64>
+			ByteBuffer cabecera = ByteBuffer.wrap(("FILE_INCOMING|" + usuario.getNombre() + "|" + fileName + "|").getBytes(charset)).asReadOnlyBuffer();
+			ByteBuffer finLinea = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+			long largo;
+			try {
+				largo = Files.size(b64);
+			} catch (IOException e) {
+				return;
+			}
+			// los clientes binarios lo reciben en bloques, sin Base64; con
+			// compresión, la línea se lee y se comprime una sola vez. Las
+			// grandes van sin comprimir: un bloque ZLIB| se recibe entero y el
+			// cliente no podría escribirlas a medida que llegan
+			List<Conexion> binarios = new ArrayList<>();
+			ByteBuffer comprimida = null;
+			for (Conexion dest : chat.getConectados()) {
+				if (dest.isBinario()) {
+					binarios.add(dest);
+				} else if (dest.isComprimida() && largo + 1 >= Compresion.UMBRAL && largo <= Transferencia.MAX_BLOQUE) {
+					if (comprimida == null) comprimida = lineaBase64Comprimida(cabecera.duplicate(), b64);
+					if (comprimida != null) {
+						dest.enviarListo(comprimida.duplicate(), false);
+					} else {
+						dest.enviarTodos(cabecera.duplicate(), new Region_Archivo(b64, 0, largo), finLinea.duplicate());
 					}
+				} else {
+					dest.enviarTodos(cabecera.duplicate(), new Region_Archivo(b64, 0, largo), finLinea.duplicate());
 				}
 			}
+			entregarArchivo(binarios, Transferencia.nuevoId(), usuario, fileName, blob, null);
+		});
+	}
+
+	// La línea FILE_INCOMING entera, leída del disco y comprimida; null si no se pudo leer
+	private static ByteBuffer lineaBase64Comprimida(ByteBuffer cabecera, Path b64) {
+		try {
+			byte[] datos = Files.readAllBytes(b64);
+			ByteBuffer linea = ByteBuffer.allocate(cabecera.remaining() + datos.length + 1);
+			linea.put(cabecera).put(datos).put((byte) '\n').flip();
+			return Compresion.comprimir(linea, false).asReadOnlyBuffer();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Actor del chat: envía la ventana de mensajes recientes como un solo
+	// buffer y deja el cursor de /historial justo antes de ella
+	private static void enviarVentana(Conexion ch, Chat_Grupal chat) {
+		long inicio = chat.getInicioVentana();
+		// la ventana (y su forma comprimida) se arma una vez por chat
+		ByteBuffer lote = chat.getLoteEntrada(ch);
+		if (ch.isBinario()) {
+			// la trama HISTORIAL lleva el número del primero: no hace falta aviso
+			ch.enviarListo(lote, false);
+		} else {
+			if (lote.hasRemaining()) ch.enviarListo(lote, false);
+			if (inicio > 0) {
+				enviar(ch, "(Hay " + inicio + " mensajes anteriores. Escribe /historial [n] para verlos)\n");
+			}
+			// con sesión: el número del último de la ventana
+			long fin = chat.getSiguienteSeq();
+			if (ch.getSesion() != null && fin > 0) enviar(ch, Registro_Sesiones.lineaMarca(chat.getId(), fin - 1));
+		}
+		ch.setCursorHistorial(inicio);
+	}
+
+	// /historial [n]: los n mensajes anteriores al cursor, leídos del disco
+	// fuera del reactor y enviados en un solo buffer
+	static boolean paginaHistorial(Conexion ch, String line) {
+		String arg = Tabla_Comandos.argumentos(line);
+		int n = PAGINA_HISTORIAL;
+		if (!arg.isEmpty()) {
+			try {
+				n = Math.max(1, Math.min(MAX_PAGINA_HISTORIAL, Integer.parseInt(arg)));
+			} catch (NumberFormatException e) {
+				enviar(ch, "Error: Uso: /historial [n] (máx. " + MAX_PAGINA_HISTORIAL + ")\n");
+				return true;
+			}
 		}
+		paginaHistorial(ch, n);
+		return true;
+	}
+
+	private static void paginaHistorial(Conexion ch, int n) {
+		Chat_Grupal chat = ch.getChatActual();
+		long cursor = ch.getCursorHistorial();
+		if (chat == null || cursor < 0) {
+			enviar(ch, "Historial aún no disponible, intenta de nuevo.\n");
+			return;
+		}
+		if (cursor == 0) {
+			enviar(ch, "--- No hay mensajes anteriores ---\n");
+			return;
+		}
+		long hasta = cursor;
+		long desde = Math.max(0, hasta - n);
+		// el cursor avanza ya, así dos /historial seguidos no repiten página
+		ch.setCursorHistorial(desde);
+		Pool_Trabajo.ejecutar(() -> {
+			List<String> pagina = chat.leerHistorial(desde, hasta);
+			if (ch.isBinario()) {
+				ch.enviar(Protocolo_Binario.historial(chat.getId(), desde, pagina));
+				return;
+			}
+			StringBuilder out = new StringBuilder();
+			out.append("--- Historial: mensajes ").append(desde + 1).append(" a ").append(hasta).append(" ---\n");
+			for (String m : pagina) out.append(m).append('\n');
+			out.append(desde > 0 ? "--- Quedan " + desde + " anteriores: /historial para seguir ---\n"
+					: "--- Inicio del historial ---\n");
+			enviar(ch, out.toString());
+		});
+	}
+
+	// /descargar <hash>: vuelve a enviar un archivo del historial a quien lo pide
+	static boolean descargarBlob(Conexion ch, String line) {
+		descargarHash(ch, Tabla_Comandos.argumentos(line));
+		return true;
+	}
+
+	private static void descargarHash(Conexion ch, String hash) {
+		Pool_Trabajo.ejecutar(() -> {
+			Almacen_Blobs.Blob blob = almacen.buscar(hash.toLowerCase());
+			if (blob == null) {
+				enviar(ch, "Error: archivo no encontrado: " + hash + "\n");
+				return;
+			}
+			List<Conexion> solo = new ArrayList<>();
+			solo.add(ch);
+			entregarArchivo(solo, Transferencia.nuevoId(), null, blob.getHash(), blob, null);
+		});
+	}
+
+	// Envía un blob como FILE_BEGIN / FILE_CHUNK / FILE_END. Las cabeceras se
+	// codifican una vez y se comparten; los datos salen del disco con transferTo.
+	private static void entregarArchivo(List<Conexion> destinos, long id, Usuario emisor, String nombre, Almacen_Blobs.Blob blob,
+			String crc) {
+		if (destinos.isEmpty()) return;
+		if (crc == null) {
+			try {
+				crc = crcDe(blob);
+			} catch (IOException e) {
+				return;
+			}
+		}
+		long tamano = blob.getTamano();
+		int bloques = (int) ((tamano + Transferencia.MAX_BLOQUE - 1) / Transferencia.MAX_BLOQUE);
+		// Cabeceras de texto y binarias, cada una armada sólo si algún destino la usa
+		ByteBuffer[] texto = null;
+		ByteBuffer[] binario = null;
+		for (Conexion dest : destinos) {
+			ByteBuffer[] cabeceras;
+			if (dest.isBinario()) {
+				if (binario == null) binario = cabecerasBinarias(id, emisor, nombre, tamano, bloques, crc);
+				cabeceras = binario;
+			} else {
+				if (texto == null) texto = cabecerasTexto(id, emisor, nombre, tamano, bloques, crc);
+				cabeceras = texto;
+			}
+			// cada cabecera con sus bytes va junta; entre bloques pueden
+			// colarse mensajes del chat sin romper el archivo
+			dest.enviarTodos(cabeceras[0].duplicate());
+			for (int i = 0; i < bloques; i++) {
+				long pos = (long) i * Transferencia.MAX_BLOQUE;
+				dest.enviarTodos(cabeceras[1 + i].duplicate(),
+						new Region_Archivo(blob.getRuta(), pos, Math.min(Transferencia.MAX_BLOQUE, tamano - pos)));
+			}
+			dest.enviarTodos(cabeceras[bloques + 1].duplicate());
+		}
+	}
+
+	// FILE_BEGIN, un FILE_CHUNK por bloque y FILE_END
+	private static ByteBuffer[] cabecerasTexto(long id, Usuario emisor, String nombre, long tamano, int bloques, String crc) {
+		ByteBuffer[] c = new ByteBuffer[bloques + 2];
+		String de = emisor != null ? emisor.getNombre() : "almacen";
+		c[0] = codificarLinea("FILE_BEGIN|" + id + "|" + de + "|" + tamano + "|" + nombre).asReadOnlyBuffer();
+		for (int i = 0; i < bloques; i++) {
+			long n = Math.min(Transferencia.MAX_BLOQUE, tamano - (long) i * Transferencia.MAX_BLOQUE);
+			c[1 + i] = codificarLinea("FILE_CHUNK|" + id + "|" + n).asReadOnlyBuffer();
+		}
+		c[bloques + 1] = codificarLinea("FILE_END|" + id + "|" + crc).asReadOnlyBuffer();
+		return c;
+	}
+
+	// ARCHIVO_INICIO, la cabecera de cada ARCHIVO_BLOQUE y ARCHIVO_FIN
+	private static ByteBuffer[] cabecerasBinarias(long id, Usuario emisor, String nombre, long tamano, int bloques, String crc) {
+		ByteBuffer[] c = new ByteBuffer[bloques + 2];
+		c[0] = new Protocolo_Binario.Trama(Protocolo_Binario.ARCHIVO_INICIO).largo(id).entero(emisor != null ? emisor.getId() : 0)
+				.largo(tamano).nombre(nombre).fin().asReadOnlyBuffer();
+		for (int i = 0; i < bloques; i++) {
+			long n = Math.min(Transferencia.MAX_BLOQUE, tamano - (long) i * Transferencia.MAX_BLOQUE);
+			c[1 + i] = Protocolo_Binario.cabeceraBloque(id, (int) n).asReadOnlyBuffer();
+		}
+		c[bloques + 1] = new Protocolo_Binario.Trama(Protocolo_Binario.ARCHIVO_FIN).largo(id)
+				.entero((int) Long.parseLong(crc, 16)).fin().asReadOnlyBuffer();
+		return c;
+	}
+
+	private static String crcDe(Almacen_Blobs.Blob blob) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		try (FileChannel fc = FileChannel.open(blob.getRuta(), StandardOpenOption.READ)) {
+			while (fc.read(buf) > 0) {
+				buf.flip();
+				crc.update(buf);
+				buf.clear();
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	// El cliente mandó una línea mayor que el máximo permitido; se descartó
+	static void lineaDemasiadoLarga(Conexion ch, int maximo) {
+		Bitacora_B.evento(ch.getDireccion(), "línea descartada (> " + maximo + " bytes)");
+		enviar(ch, "Error: línea demasiado larga (máx. " + maximo + " bytes), descartada.\n");
 	}
 
 	private static String menuTexto() {
@@ -546,58 +1475,100 @@ public class Servidor_B {
 		m.append("3 - Crear chat grupal\n");
 		m.append("4 - Listar mis chats y entrar\n");
 		m.append("6 - Salir de chat grupal\n");
+		m.append("7 - Entrar como usuario existente\n");
 		m.append("5 - Salir\n");
 		m.append("Escribe una opción:\n");
 		return m.toString();
 	}
 
-	private static void enqueueWrite(SocketChannel ch, Map<SocketChannel, Queue<ByteBuffer>> writeMap, ByteBuffer buf) {
-		Queue<ByteBuffer> q = writeMap.get(ch);
-		if (q == null) {
-			q = new LinkedList<>();
-			writeMap.put(ch, q);
+	// Alta o baja de un miembro: se guarda en el historial como texto y los
+	// clientes binarios reciben la trama MIEMBRO (con id y nombre). Si el chat
+	// es de otro nodo del cluster, el aviso lo da su dueño.
+	private static void difundirMiembro(Chat_Grupal chat, Usuario u, boolean entra) {
+		if (Cluster_B.pedirMiembro(chat, u, entra)) return;
+		avisarMiembro(chat, u, entra);
+		Cluster_B.eventoMiembro(chat, u, entra);
+	}
+
+	private static void avisarMiembro(Chat_Grupal chat, Usuario u, boolean entra) {
+		String aviso = u.getNombre() + (entra ? " se unió al chat" : " ha salido del chat");
+		long seq = chat.addMessage(aviso);
+		difundir(chat, seq, codificarLinea(aviso), () -> Protocolo_Binario.miembro(chat.getId(), u, entra));
+	}
+
+	// Cada destinatario recibe una vista duplicate() del mismo buffer de sólo
+	// lectura: los bytes se comparten y cada cola lleva su propia posición.
+	// Son descartables: a un cliente lento se le pueden omitir líneas del chat.
+	// La trama binaria y las formas comprimidas se arman una sola vez, y sólo
+	// si algún destino las usa (ver Compresion.Compartido); las conexiones con
+	// sesión reciben además el número del mensaje (ver Registro_Sesiones).
+	private static void difundir(Chat_Grupal chat, long seq, ByteBuffer msg, Supplier<ByteBuffer> binario) {
+		Compresion.Compartido envio = new Compresion.Compartido(() -> msg, binario).conSecuencia(chat.getId(), seq);
+		Conexion[] destinos = chat.getConectados();
+		Metricas_B.difusion.registrar(destinos.length);
+		for (Conexion dest : destinos) {
+			dest.enviarListo(envio.para(dest), true);
 		}
-		q.add(buf);
 	}
 
-	private static void cleanupChannel(SocketChannel ch, SelectionKey key, Map<SocketChannel, StringBuilder> readMap, Map<SocketChannel, Queue<ByteBuffer>> writeMap) {
+	// Foto de las conexiones de los miembros conectados (sin copiar ni buscar).
+	// Una conexión que se está cerrando puede aparecer aún: enviar la ignora.
+	private static List<Conexion> miembrosConectados(Chat_Grupal chat) {
+		return Arrays.asList(chat.getConectados());
+	}
+
+	// "<nombre> - [HH:mm:ss] : <línea>\n" armado con el prefijo del usuario y
+	// la hora ya codificados; sólo se codifica la línea recibida.
+	static ByteBuffer codificarMensajeChat(Usuario usuario, String line) {
+		byte[] prefijo = usuario.getPrefijoBytes();
+		byte[] hora = Reloj_Cache.bytes();
+		byte[] texto = line.getBytes(charset);
+		ByteBuffer buf = ByteBuffer.allocate(prefijo.length + hora.length + SEPARADOR_MSG.length + texto.length + 1);
+		buf.put(prefijo).put(hora).put(SEPARADOR_MSG).put(texto).put((byte) '\n');
+		buf.flip();
+		return buf;
+	}
+
+	private static ByteBuffer codificarLinea(String msg) {
+		byte[] texto = msg.getBytes(charset);
+		ByteBuffer buf = ByteBuffer.allocate(texto.length + 1);
+		buf.put(texto).put((byte) '\n');
+		buf.flip();
+		return buf;
+	}
+
+	private static void enviar(Conexion c, String texto) {
+		c.enviarTexto(texto);
+	}
+
+	// Respuesta seguida del menú; los clientes binarios no reciben el menú
+	private static void enviarConMenu(Conexion c, String texto) {
+		enviar(c, c.isBinario() ? texto : texto + menuTexto());
+	}
+
+	// Llamado por el reactor dueño de la conexión
+	static void cleanupChannel(Conexion ch) {
 		try {
-			System.out.println("Cerrando canal: " + safeRemoteAddress(ch));
-			if (key != null) key.cancel();
-			readMap.remove(ch);
-			writeMap.remove(ch);
-			Usuario u = socketToUsuario.remove(ch);
+			Bitacora_B.evento(ch.getDireccion(), "Cerrando canal");
+			ch.marcarCerrada();
+			ch.getLector().liberar();
+			abortarTransferencias(ch);
+			ch.descartarEscrituras();
+			Usuario u = ch.getUsuario();
 			if (u != null) {
 				// marcar como desconectado en el registro global
-				u.setActive(false);
-				userIdToSocket.remove(u.getId());
-				// Notificar a los chats de este usuario que está desconectado (debug)
-				for (Chat_Grupal c : u.getChatsAsociados()) {
-					String off = "DEBUG: " + u.getNombre() + " se ha desconectado";
-					c.addMessage(off);
-					for (Usuario member : c.getMiembros()) {
-						SocketChannel dest = userIdToSocket.get(member.getId());
-						if (dest != null && dest.isOpen()) {
-							enqueueWrite(dest, writeMap, ByteBuffer.wrap((off + "\n").getBytes(StandardCharsets.UTF_8)));
-							SelectionKey sk = dest.keyFor(key.selector());
-							if (sk != null) sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
-						}
-					}
-				}
+				listaUsuarios.marcarDesconectado(u);
+				userIdToSocket.remove(u.getId(), ch);
+				// sus chats lo sabrán por Presencia (no queda en el historial)
+				u.quitarConexion(ch);
 			}
-			pendingState.remove(ch);
-			pendingTemp.remove(ch);
-			ch.close();
+			// corte sin despedida: la sesión queda para reanudarla
+			Registro_Sesiones.suspender(ch);
+			// sin sesión, el usuario provisional no tiene a quién volver
+			if (u != null && ch.getSesion() == null) olvidarProvisional(u);
+			ch.getCanal().close();
 		} catch (IOException e) {
 			// ignore
 		}
 	}
-
-	private static String safeRemoteAddress(SocketChannel ch) {
-		try {
-			return ch.getRemoteAddress().toString();
-		} catch (IOException e) {
-			return "desconocido";
-		}
-	}
 }
@@ -0,0 +1,156 @@
+/*
+ * Tabla_Comandos.java
+ * Tabla de despacho de comandos: relaciona la primera palabra de una línea
+ * ("/priv", "MEN0", "3", ...) con el Comando que la atiende.
+ *
+ * Las tablas se arman una vez al iniciar y luego sólo se leen, así que los
+ * reactores las comparten sin sincronizar. Buscar no reserva memoria: la
+ * palabra se compara dentro de la misma línea (hash abierto con sondeo
+ * lineal y regionMatches), sin substring ni toLowerCase.
+ */
+
+public final class Tabla_Comandos {
+
+	// Atiende una línea; devuelve false si no deben procesarse más líneas de
+	// la conexión (igual que Servidor_B.procesarLinea)
+	public interface Comando {
+		boolean ejecutar(Conexion ch, String linea);
+	}
+
+	// Qué debe seguir a la palabra del comando
+	public enum Forma {
+		// nada ("1", "MEN0", "/metricas")
+		SOLO,
+		// al menos un argumento ("/priv <id> <msg>")
+		CON_ARGUMENTOS,
+		// con o sin argumentos ("/historial [n]")
+		OPCIONALES
+	}
+
+	private static final class Entrada {
+		final String palabra;
+		final int hash;
+		final Forma forma;
+		final boolean ignorarMayusculas;
+		final Comando comando;
+
+		Entrada(String palabra, int hash, Forma forma, boolean ignorarMayusculas, Comando comando) {
+			this.palabra = palabra;
+			this.hash = hash;
+			this.forma = forma;
+			this.ignorarMayusculas = ignorarMayusculas;
+			this.comando = comando;
+		}
+	}
+
+	private Entrada[] tabla = new Entrada[16];
+	private int cantidad;
+	private Comando porDefecto;
+
+	// Registra un comando (sólo al armar la tabla, antes de compartirla)
+	public Tabla_Comandos registrar(String palabra, Forma forma, boolean ignorarMayusculas, Comando comando) {
+		if (palabra.isEmpty() || fin(palabra, 0) != palabra.length()) {
+			throw new IllegalArgumentException("Palabra de comando inválida: '" + palabra + "'");
+		}
+		if ((cantidad + 1) * 4 > tabla.length) crecer();
+		int h = hash(palabra, 0, palabra.length());
+		if (buscarEntrada(palabra, 0, palabra.length(), h) != null) {
+			throw new IllegalArgumentException("Comando repetido: " + palabra);
+		}
+		insertar(new Entrada(palabra, h, forma, ignorarMayusculas, comando));
+		cantidad++;
+		return this;
+	}
+
+	// Comando para las líneas que no coinciden con ninguno registrado
+	public Tabla_Comandos porDefecto(Comando comando) {
+		this.porDefecto = comando;
+		return this;
+	}
+
+	// El comando registrado para esta línea, o null si no hay ninguno
+	// (sin contar el de por defecto)
+	public Comando buscar(String linea) {
+		int n = linea.length();
+		int ini = saltarEspacios(linea, 0);
+		int fin = fin(linea, ini);
+		if (fin == ini) return null;
+		Entrada e = buscarEntrada(linea, ini, fin, hash(linea, ini, fin));
+		if (e == null) return null;
+		boolean conArgumentos = saltarEspacios(linea, fin) < n;
+		if (e.forma == Forma.SOLO && conArgumentos) return null;
+		if (e.forma == Forma.CON_ARGUMENTOS && !conArgumentos) return null;
+		return e.comando;
+	}
+
+	// Ejecuta el comando de la línea, o el de por defecto
+	public boolean despachar(Conexion ch, String linea) {
+		Comando c = buscar(linea);
+		if (c == null) c = porDefecto;
+		return c == null || c.ejecutar(ch, linea);
+	}
+
+	// Lo que sigue a la palabra del comando, sin espacios alrededor
+	public static String argumentos(String linea) {
+		int desde = saltarEspacios(linea, fin(linea, saltarEspacios(linea, 0)));
+		int hasta = linea.length();
+		while (hasta > desde && linea.charAt(hasta - 1) <= ' ') hasta--;
+		return linea.substring(desde, hasta);
+	}
+
+	private Entrada buscarEntrada(String texto, int ini, int fin, int h) {
+		int mascara = tabla.length - 1;
+		int largo = fin - ini;
+		for (int i = mezclar(h) & mascara;; i = (i + 1) & mascara) {
+			Entrada e = tabla[i];
+			if (e == null) return null;
+			if (e.hash == h && e.palabra.length() == largo
+					&& texto.regionMatches(e.ignorarMayusculas, ini, e.palabra, 0, largo)) {
+				return e;
+			}
+		}
+	}
+
+	private void insertar(Entrada e) {
+		int mascara = tabla.length - 1;
+		int i = mezclar(e.hash) & mascara;
+		while (tabla[i] != null) i = (i + 1) & mascara;
+		tabla[i] = e;
+	}
+
+	private void crecer() {
+		Entrada[] vieja = tabla;
+		tabla = new Entrada[vieja.length * 2];
+		for (Entrada e : vieja) {
+			if (e != null) insertar(e);
+		}
+	}
+
+	// El hash no distingue mayúsculas ASCII, así "/PRIV" y "/priv" caen en la
+	// misma posición y regionMatches decide según la entrada
+	private static int hash(String s, int ini, int fin) {
+		int h = 0;
+		for (int i = ini; i < fin; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			h = 31 * h + c;
+		}
+		return h;
+	}
+
+	private static int mezclar(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	private static int saltarEspacios(String s, int i) {
+		int n = s.length();
+		while (i < n && s.charAt(i) <= ' ') i++;
+		return i;
+	}
+
+	private static int fin(String s, int i) {
+		int n = s.length();
+		while (i < n && s.charAt(i) > ' ') i++;
+		return i;
+	}
+}
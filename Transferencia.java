@@ -0,0 +1,146 @@
+/*
+ * Transferencia.java
+ * Archivo que un cliente está subiendo a un chat por bloques binarios.
+ *
+ * Protocolo (cliente -> servidor):
+ *   /fileinit <id> <tamaño> <nombre>
+ *   /chunk <id> <n>        seguido de n bytes crudos (n <= MAX_BLOQUE)
+ *   /fileend <id> <crc32>  (crc32 en hexadecimal)
+ * Protocolo (servidor -> miembros del chat), sólo si la subida terminó bien:
+ *   FILE_BEGIN|<id>|<emisor>|<tamaño>|<nombre>
+ *   FILE_CHUNK|<id>|<n>    seguido de n bytes crudos
+ *   FILE_END|<id>|<crc32>
+ * El id que ven los miembros lo asigna el servidor (único en todo el servidor).
+ * Si la subida falla, los miembros no reciben nada y quien subía recibe
+ * "Error: transferencia <id> <motivo>.".
+ *
+ * Los bloques se guardan en el Almacen_Blobs a medida que llegan (desde el
+ * actor del chat, fuera del reactor). Cuando la subida termina y el CRC
+ * coincide, el archivo se envía a los miembros leyéndolo del disco.
+ *
+ * Límites por conexión: como mucho -Dchat.maxTransferencias subidas abiertas
+ * a la vez (por defecto 4; cada una tiene un archivo temporal abierto), y
+ * mientras haya más de -Dchat.subidaEnCola bytes de bloques esperando al
+ * actor (por defecto 4 bloques) el reactor deja de leer esa conexión.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public class Transferencia {
+
+	public static final int MAX_BLOQUE = 256 * 1024;
+	public static final int MAX_ABIERTAS = Math.max(1, Integer.getInteger("chat.maxTransferencias", 4));
+	public static final long MAX_EN_COLA = Math.max(MAX_BLOQUE, Long.getLong("chat.subidaEnCola", 4L * MAX_BLOQUE));
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	private final long id;
+	private final String idCliente;
+	private final String nombre;
+	private final long tamano;
+	private final Usuario emisor;
+	private final Chat_Grupal chat;
+	private final CRC32 crc = new CRC32();
+	// Bytes anunciados en /chunk (lo lleva el reactor para validar tamaños)
+	private long recibido;
+	// Escritura al almacén (sólo la toca el actor del chat)
+	private Almacen_Blobs.Escritura escritura;
+	private String error;
+
+	public Transferencia(String idCliente, String nombre, long tamano, Usuario emisor, Chat_Grupal chat) {
+		this.id = nuevoId();
+		this.idCliente = idCliente;
+		this.nombre = nombre;
+		this.tamano = tamano;
+		this.emisor = emisor;
+		this.chat = chat;
+	}
+
+	// Ids de transferencia vistos por los clientes (subidas y descargas)
+	public static long nuevoId() {
+		return nextId.getAndIncrement();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getIdCliente() {
+		return idCliente;
+	}
+
+	public String getNombre() {
+		return nombre;
+	}
+
+	public long getTamano() {
+		return tamano;
+	}
+
+	public Usuario getEmisor() {
+		return emisor;
+	}
+
+	public Chat_Grupal getChat() {
+		return chat;
+	}
+
+	public long getRecibido() {
+		return recibido;
+	}
+
+	// Reactor: cuenta un bloque anunciado
+	public void contarBloque(int n) {
+		recibido += n;
+	}
+
+	// Actor del chat: abre el archivo temporal en el almacén
+	public void abrir(Almacen_Blobs almacen) {
+		try {
+			escritura = almacen.nuevaEscritura();
+		} catch (IOException e) {
+			error = "error de disco: " + e.getMessage();
+		}
+	}
+
+	// Actor del chat: acumula el CRC y guarda el bloque
+	public void escribir(ByteBuffer datos) {
+		if (escritura == null) return;
+		crc.update(datos.duplicate());
+		try {
+			escritura.escribir(datos);
+		} catch (IOException e) {
+			error = "error de disco: " + e.getMessage();
+			cancelar();
+		}
+	}
+
+	// Actor del chat: cierra y guarda el archivo con su hash
+	public Almacen_Blobs.Blob confirmar() throws IOException {
+		if (escritura == null) throw new IOException(error != null ? error : "transferencia sin abrir");
+		Almacen_Blobs.Blob blob = escritura.confirmar();
+		escritura = null;
+		return blob;
+	}
+
+	public void cancelar() {
+		if (escritura != null) {
+			escritura.cancelar();
+			escritura = null;
+		}
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public String getCrcHex() {
+		return Long.toHexString(crc.getValue());
+	}
+
+	public boolean isCompleta() {
+		return recibido == tamano;
+	}
+}
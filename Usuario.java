@@ -4,23 +4,34 @@
  * Sus datos básicos y chats asociados.
  * El usuario puede participar en múltiples chats, tanto grupales como privados.
  * Puede salir y entrar a chat grupales según su preferencia.
+ * Guarda también su conexión actual: al cambiar, avisa a sus chats para que
+ * actualicen la foto de miembros conectados (ver Chat_Grupal), a Presencia y,
+ * en cluster, a los otros nodos.
  */
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Usuario {
 	private int id;
 	private String nombre;
 	private boolean active;
-	private final List<Chat_Grupal> chatsAsociados;
+	private final Set<Chat_Grupal> chatsAsociados;
+	// Conexión abierta del usuario, o null si no está conectado
+	private final AtomicReference<Conexion> conexion = new AtomicReference<>();
+	// "<nombre> - [" ya codificado, para armar mensajes de chat sin recodificar
+	private final byte[] prefijoBytes;
 
 	public Usuario(String nombre, int id) {
 		this.nombre = nombre;
 		this.id = id;
 		this.active = true;
-		this.chatsAsociados = new ArrayList<>();
+		this.chatsAsociados = new LinkedHashSet<>();
+		this.prefijoBytes = (nombre + " - [").getBytes(StandardCharsets.UTF_8);
 	}
 
 	public int getId() {
@@ -31,6 +42,11 @@ public class Usuario {
         return nombre;
     }   
 
+    // No modificar el arreglo devuelto: es compartido
+    public byte[] getPrefijoBytes() {
+        return prefijoBytes;
+    }
+
     public boolean isActive() {
         return active;
     }
@@ -39,10 +55,30 @@ public class Usuario {
         this.active = active;
     }
 
+    public Conexion getConexion() {
+        return conexion.get();
+    }
+
+    // El usuario pasa a esta conexión. Los chats se actualizan fuera del lock
+    // del usuario (Chat_Grupal toma primero el suyo y luego el del usuario).
+    public void setConexion(Conexion c) {
+        conexion.set(c);
+        avisarChats();
+    }
+
+    // Al cerrar c: sólo si sigue siendo la conexión del usuario
+    public void quitarConexion(Conexion c) {
+        if (conexion.compareAndSet(c, null)) avisarChats();
+    }
+
+    private void avisarChats() {
+        for (Chat_Grupal chat : getChatsAsociados()) chat.actualizarConexion(this);
+        Presencia.cambio(this);
+        Cluster_B.usuarioCambiado(this);
+    }
+
     public synchronized void agregarChat(Chat_Grupal chat) {
-        if (chat != null && !chatsAsociados.contains(chat)) {
-            chatsAsociados.add(chat);
-        }
+        if (chat != null) chatsAsociados.add(chat);
     }
 
     // Nuevo: remover chat asociado
@@ -71,7 +107,7 @@ public class Usuario {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id);
+        return Integer.hashCode(id);
     }
 }
 
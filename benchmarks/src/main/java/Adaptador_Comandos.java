@@ -0,0 +1,79 @@
+/*
+ * Adaptador_Comandos.java
+ * Una tabla con los mismos comandos que el estado IN_CHAT del servidor, y la
+ * cadena de comparaciones que había antes, para medir las dos sobre las
+ * mismas líneas. Los comandos sólo suman su número: se mide la elección.
+ */
+
+public class Adaptador_Comandos implements rendimiento.Adaptadores.Comandos {
+
+	private final Tabla_Comandos globales = new Tabla_Comandos()
+			.registrar("/metricas", Tabla_Comandos.Forma.SOLO, false, (ch, l) -> sumar(1))
+			.registrar("/chunk", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, (ch, l) -> sumar(2))
+			.registrar("/fileend", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, (ch, l) -> sumar(3));
+
+	private final Tabla_Comandos enChat = new Tabla_Comandos()
+			.registrar("/priv", Tabla_Comandos.Forma.CON_ARGUMENTOS, true, (ch, l) -> sumar(4))
+			.registrar("/file", Tabla_Comandos.Forma.CON_ARGUMENTOS, true, (ch, l) -> sumar(5))
+			.registrar("/fileinit", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, (ch, l) -> sumar(6))
+			.registrar("/descargar", Tabla_Comandos.Forma.CON_ARGUMENTOS, false, (ch, l) -> sumar(7))
+			.registrar("/historial", Tabla_Comandos.Forma.OPCIONALES, false, (ch, l) -> sumar(8))
+			.registrar("MEN0", Tabla_Comandos.Forma.SOLO, true, (ch, l) -> sumar(9))
+			.porDefecto((ch, l) -> sumar(10));
+
+	private String[] lineas;
+	private int suma;
+
+	private boolean sumar(int k) {
+		suma += k;
+		return true;
+	}
+
+	@Override
+	public void preparar(String[] lineas) {
+		this.lineas = lineas;
+	}
+
+	@Override
+	public int despacharTabla() {
+		suma = 0;
+		for (String line : lineas) {
+			Tabla_Comandos.Comando global = globales.buscar(line);
+			if (global != null) {
+				global.ejecutar(null, line);
+			} else {
+				enChat.despachar(null, line);
+			}
+		}
+		return suma;
+	}
+
+	@Override
+	public int despacharCadena() {
+		suma = 0;
+		for (String line : lineas) {
+			if (line.equals("/metricas")) {
+				sumar(1);
+			} else if (line.startsWith("/chunk ")) {
+				sumar(2);
+			} else if (line.startsWith("/fileend ")) {
+				sumar(3);
+			} else if (line.toLowerCase().startsWith("/priv ")) {
+				sumar(4);
+			} else if (line.toLowerCase().startsWith("/file ")) {
+				sumar(5);
+			} else if (line.startsWith("/fileinit ")) {
+				sumar(6);
+			} else if (line.startsWith("/descargar ")) {
+				sumar(7);
+			} else if (line.equals("/historial") || line.startsWith("/historial ")) {
+				sumar(8);
+			} else if ("MEN0".equalsIgnoreCase(line.trim())) {
+				sumar(9);
+			} else {
+				sumar(10);
+			}
+		}
+		return suma;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Adaptador_Difusion.java
+ * Difusión a un chat: el mensaje se codifica una vez y cada miembro recibe
+ * un duplicate() en su Cola_Escritura, como en Servidor_B.difundir().
+ */
+
+import java.nio.ByteBuffer;
+
+public class Adaptador_Difusion implements rendimiento.Adaptadores.Difusion {
+
+	private final Usuario emisor = new Usuario("emisor", 1);
+	private Cola_Escritura[] colas;
+
+	@Override
+	public void preparar(int miembros) {
+		colas = new Cola_Escritura[miembros];
+		for (int i = 0; i < miembros; i++) colas[i] = new Cola_Escritura();
+	}
+
+	@Override
+	public long difundir(String texto) {
+		ByteBuffer compartido = Servidor_B.codificarMensajeChat(emisor, texto).asReadOnlyBuffer();
+		long total = 0;
+		for (Cola_Escritura q : colas) {
+			q.agregarDescartable(compartido.duplicate());
+			total += q.getBytes();
+			// el reactor la vaciaría al escribir; aquí se vacía para no acumular
+			q.vaciar();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Adaptador_Historial.java
+ * Historial de un chat: mensajes nuevos, ventana de entrada y páginas
+ * anteriores leídas de disco.
+ */
+
+public class Adaptador_Historial implements rendimiento.Adaptadores.Historial {
+
+	private Chat_Grupal chat;
+
+	@Override
+	public void preparar(String nombreChat) {
+		chat = new Chat_Grupal(nombreChat, 1);
+	}
+
+	@Override
+	public void agregar(String mensaje) {
+		chat.addMessage(mensaje);
+	}
+
+	@Override
+	public int leerVentana() {
+		return chat.getLoteEntrada().remaining();
+	}
+
+	@Override
+	public int leerPagina(int n) {
+		long inicio = chat.getInicioVentana();
+		return chat.leerHistorial(Math.max(0, inicio - n), inicio).size();
+	}
+}
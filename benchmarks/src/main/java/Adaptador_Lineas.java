@@ -0,0 +1,98 @@
+/*
+ * Adaptador_Lineas.java
+ * Camino de lectura del servidor: Lector_Lineas sobre un canal en memoria
+ * que entrega los datos en trozos del tamaño de una lectura de socket.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+public class Adaptador_Lineas implements rendimiento.Adaptadores.Lineas {
+
+	// Lo que devuelve como mucho un read() de socket típico
+	private static final int LECTURA = 64 * 1024;
+
+	private byte[] entrada;
+
+	// Canal que devuelve la entrada en trozos de LECTURA bytes
+	private static final class Canal implements ReadableByteChannel {
+		private final byte[] datos;
+		private int pos;
+
+		Canal(byte[] datos) {
+			this.datos = datos;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (pos == datos.length) return -1;
+			int n = Math.min(Math.min(dst.remaining(), LECTURA), datos.length - pos);
+			dst.put(datos, pos, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static final class Contador implements Lector_Lineas.Receptor {
+		int lineas;
+
+		@Override
+		public boolean linea(String linea) {
+			lineas++;
+			return true;
+		}
+
+		@Override
+		public void lineaDemasiadoLarga(int maximo) {
+		}
+
+		@Override
+		public void bloque(ByteBuffer datos) {
+		}
+
+		@Override
+		public boolean trama(ByteBuffer datos) {
+			return true;
+		}
+	}
+
+	@Override
+	public void preparar(int largoLinea, int bytesTotales) {
+		int lineas = Math.max(1, bytesTotales / (largoLinea + 1));
+		entrada = new byte[lineas * (largoLinea + 1)];
+		// texto de tipo Base64, como las líneas /file
+		byte[] linea = new byte[largoLinea];
+		Arrays.fill(linea, (byte) 'A');
+		for (int i = 0; i < lineas; i++) {
+			System.arraycopy(linea, 0, entrada, i * (largoLinea + 1), largoLinea);
+			entrada[i * (largoLinea + 1) + largoLinea] = '\n';
+		}
+	}
+
+	@Override
+	public int leerTodo() {
+		Lector_Lineas lector = new Lector_Lineas();
+		Contador receptor = new Contador();
+		Canal canal = new Canal(entrada);
+		try {
+			while (lector.leer(canal) >= 0) {
+				lector.extraer(receptor);
+			}
+		} catch (java.io.IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			lector.liberar();
+		}
+		return receptor.lineas;
+	}
+}
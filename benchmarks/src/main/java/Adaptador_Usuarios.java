@@ -0,0 +1,27 @@
+/*
+ * Adaptador_Usuarios.java
+ * Tabla de usuarios del servidor con N usuarios ya cargados.
+ */
+
+public class Adaptador_Usuarios implements rendimiento.Adaptadores.Usuarios {
+
+	private List_usuario lista;
+
+	@Override
+	public void preparar(int usuarios) {
+		lista = new List_usuario();
+		for (int i = 1; i <= usuarios; i++) {
+			lista.agregarUsuario(new Usuario("user-" + i, i));
+		}
+	}
+
+	@Override
+	public Object buscar(int id) {
+		return lista.getUsuarioPorId(id);
+	}
+
+	@Override
+	public boolean agregar(int id) {
+		return lista.agregarUsuario(new Usuario("user-" + id, id));
+	}
+}
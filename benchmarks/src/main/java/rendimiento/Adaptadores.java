@@ -0,0 +1,73 @@
+/*
+ * Adaptadores.java
+ * JMH no admite benchmarks en el paquete por defecto, y desde un paquete con
+ * nombre no se pueden usar las clases del servidor (que están en el paquete
+ * por defecto). Por eso cada benchmark habla con una de estas interfaces, y
+ * la implementa una clase Adaptador_* del paquete por defecto que llama al
+ * código del servidor directamente.
+ */
+package rendimiento;
+
+public final class Adaptadores {
+
+	private Adaptadores() {
+	}
+
+	// Lector_Lineas: separar en líneas lo leído de un canal
+	public interface Lineas {
+		void preparar(int largoLinea, int bytesTotales);
+
+		// Lee toda la entrada preparada; devuelve las líneas entregadas
+		int leerTodo();
+	}
+
+	// Codificar un mensaje de chat y encolarlo a todos los miembros
+	public interface Difusion {
+		void preparar(int miembros);
+
+		// Devuelve los bytes encolados en total
+		long difundir(String texto);
+	}
+
+	// List_usuario: búsquedas y altas por id
+	public interface Usuarios {
+		void preparar(int usuarios);
+
+		Object buscar(int id);
+
+		boolean agregar(int id);
+	}
+
+	// Chat_Grupal: agregar mensajes y leer la ventana de entrada
+	public interface Historial {
+		void preparar(String nombreChat);
+
+		void agregar(String mensaje);
+
+		// Bytes de la ventana que recibiría alguien al entrar
+		int leerVentana();
+
+		// Mensajes leídos de disco con /historial
+		int leerPagina(int n);
+	}
+
+	// Tabla_Comandos: elegir el comando de cada línea dentro de un chat
+	public interface Comandos {
+		void preparar(String[] lineas);
+
+		// Despacha todas las líneas; devuelve una suma de los comandos elegidos
+		int despacharTabla();
+
+		// Lo mismo con la cadena de if/startsWith anterior a la tabla
+		int despacharCadena();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> T cargar(String clase, Class<T> tipo) {
+		try {
+			return (T) Class.forName(clase).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No se pudo cargar " + clase, e);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Rendimiento_Comandos.java
+ * Elegir el comando de cada línea recibida dentro de un chat: Tabla_Comandos
+ * contra la cadena de if/toLowerCase().startsWith que había antes.
+ * Cada operación despacha 1024 líneas (sobre todo mensajes normales, con
+ * algunos /priv, /historial, /chunk y MEN0), de 16 a 1024 caracteres.
+ */
+package rendimiento;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Rendimiento_Comandos {
+
+	private static final int LINEAS = 1024;
+
+	@Param({ "16", "128", "1024" })
+	public int largoMensaje;
+
+	private Adaptadores.Comandos comandos;
+
+	@Setup
+	public void preparar() {
+		StringBuilder texto = new StringBuilder();
+		while (texto.length() < largoMensaje) texto.append("Hola a todos ");
+		String mensaje = texto.substring(0, largoMensaje);
+		String[] especiales = { "/priv 1001 " + mensaje, "/historial", "/historial 20", "/chunk 7 65536", "MEN0",
+				"/PRIV 1002 hola", "/descargar 0a1b2c" };
+		SplittableRandom r = new SplittableRandom(42);
+		String[] lineas = new String[LINEAS];
+		for (int i = 0; i < LINEAS; i++) {
+			// 90 % mensajes normales
+			lineas[i] = r.nextInt(10) == 0 ? especiales[r.nextInt(especiales.length)] : mensaje;
+		}
+		comandos = Adaptadores.cargar("Adaptador_Comandos", Adaptadores.Comandos.class);
+		comandos.preparar(lineas);
+	}
+
+	@Benchmark
+	public int tabla() {
+		return comandos.despacharTabla();
+	}
+
+	@Benchmark
+	public int cadena() {
+		return comandos.despacharCadena();
+	}
+}
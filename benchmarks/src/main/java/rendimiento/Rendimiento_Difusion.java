@@ -0,0 +1,45 @@
+/*
+ * Rendimiento_Difusion.java
+ * Difusión de un mensaje de chat a salas de 10 a 10.000 miembros: una
+ * codificación y un duplicate() encolado por miembro.
+ */
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Dchat.blobs=target/rendimiento/blobs", "-Dchat.historial=target/rendimiento/historial",
+		"-Dchat.privados=target/rendimiento/privados" })
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Rendimiento_Difusion {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int miembros;
+
+	private Adaptadores.Difusion difusion;
+
+	@Setup
+	public void preparar() {
+		difusion = Adaptadores.cargar("Adaptador_Difusion", Adaptadores.Difusion.class);
+		difusion.preparar(miembros);
+	}
+
+	@Benchmark
+	public long difundir() {
+		return difusion.difundir("hola a todos, ¿qué tal va la reunión de hoy?");
+	}
+}
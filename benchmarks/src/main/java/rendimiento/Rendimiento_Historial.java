@@ -0,0 +1,75 @@
+/*
+ * Rendimiento_Historial.java
+ * Historial de un chat con contención: tres hilos agregan mensajes mientras
+ * otro lee la ventana que recibe quien entra. Aparte, lectura de una página
+ * de /historial desde disco.
+ */
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Dchat.historial=target/rendimiento/historial", "-Dchat.historialSync=false" })
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Rendimiento_Historial {
+
+	private static final String MENSAJE = "user-1000 - [12:00:00] : mensaje de prueba para el historial";
+
+	@State(Scope.Group)
+	public static class Sala {
+		Adaptadores.Historial chat;
+
+		@Setup
+		public void preparar() {
+			chat = Adaptadores.cargar("Adaptador_Historial", Adaptadores.Historial.class);
+			chat.preparar("rendimiento-contencion");
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SalaConHistorial {
+		Adaptadores.Historial chat;
+
+		@Setup
+		public void preparar() throws InterruptedException {
+			chat = Adaptadores.cargar("Adaptador_Historial", Adaptadores.Historial.class);
+			chat.preparar("rendimiento-paginas");
+			for (int i = 0; i < 20_000; i++) chat.agregar(MENSAJE);
+			// dar tiempo al escritor del historial a pasarlo a disco
+			Thread.sleep(2000);
+		}
+	}
+
+	@Benchmark
+	@Group("contencion")
+	@GroupThreads(3)
+	public void agregarMensaje(Sala s) {
+		s.chat.agregar(MENSAJE);
+	}
+
+	@Benchmark
+	@Group("contencion")
+	@GroupThreads(1)
+	public int leerVentana(Sala s) {
+		return s.chat.leerVentana();
+	}
+
+	@Benchmark
+	public int leerPagina50(SalaConHistorial s) {
+		return s.chat.leerPagina(50);
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Rendimiento_Lineas.java
+ * Camino de lectura: separar en líneas 4 MB recibidos en lecturas de 64 KB,
+ * desde líneas de chat cortas hasta líneas /file de 1 MB.
+ * Cada operación procesa los 4 MB completos.
+ */
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Rendimiento_Lineas {
+
+	private static final int BYTES_TOTALES = 4 * 1024 * 1024;
+
+	@Param({ "64", "1024", "65536", "1048576" })
+	public int largoLinea;
+
+	private Adaptadores.Lineas lineas;
+
+	@Setup
+	public void preparar() {
+		lineas = Adaptadores.cargar("Adaptador_Lineas", Adaptadores.Lineas.class);
+		lineas.preparar(largoLinea, BYTES_TOTALES);
+	}
+
+	@Benchmark
+	public int leer4MB() {
+		return lineas.leerTodo();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Rendimiento_Usuarios.java
+ * Búsqueda por id y alta en List_usuario con 1.000 a 1.000.000 usuarios.
+ */
+package rendimiento;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Rendimiento_Usuarios {
+
+	// Tabla compartida por los hilos que buscan
+	@State(Scope.Benchmark)
+	public static class Cargada {
+		@Param({ "1000", "100000", "1000000" })
+		public int usuarios;
+
+		Adaptadores.Usuarios tabla;
+
+		@Setup(Level.Trial)
+		public void preparar() {
+			tabla = Adaptadores.cargar("Adaptador_Usuarios", Adaptadores.Usuarios.class);
+			tabla.preparar(usuarios);
+		}
+	}
+
+	// Ids aleatorios por hilo, precalculados para no medir el generador
+	@State(Scope.Thread)
+	public static class Ids {
+		private static final int CANTIDAD = 1 << 16;
+		final int[] ids = new int[CANTIDAD];
+		int i;
+
+		@Setup(Level.Trial)
+		public void preparar(Cargada c) {
+			SplittableRandom r = new SplittableRandom(42);
+			for (int k = 0; k < CANTIDAD; k++) ids[k] = 1 + r.nextInt(c.usuarios);
+		}
+
+		int siguiente() {
+			return ids[i++ & (CANTIDAD - 1)];
+		}
+	}
+
+	// Tabla nueva en cada iteración para medir altas sobre N usuarios
+	@State(Scope.Thread)
+	public static class Altas {
+		@Param({ "1000", "100000", "1000000" })
+		public int usuarios;
+
+		Adaptadores.Usuarios tabla;
+		int siguienteId;
+
+		@Setup(Level.Iteration)
+		public void preparar() {
+			tabla = Adaptadores.cargar("Adaptador_Usuarios", Adaptadores.Usuarios.class);
+			tabla.preparar(usuarios);
+			siguienteId = usuarios + 1;
+		}
+	}
+
+	@Benchmark
+	public Object buscarPorId(Cargada c, Ids ids) {
+		return c.tabla.buscar(ids.siguiente());
+	}
+
+	@Benchmark
+	public boolean agregarUsuario(Altas a) {
+		return a.tabla.agregar(a.siguienteId++);
+	}
+}